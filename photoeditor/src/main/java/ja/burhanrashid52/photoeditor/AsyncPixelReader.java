@@ -0,0 +1,224 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Asynchronous <code>glReadPixels</code> using a ring of pixel buffer objects and fences. A read
+ * requested while frame N is drawn only queues the transfer, the pixels are collected with
+ * {@link #collect(boolean)} while frame N+1 renders so the GL thread doesn't stall on the copy.
+ * </p>
+ * <p>
+ * Pixel buffers and fences need OpenGL ES 3.0, use {@link #isSupported()} and fall back to
+ * {@link BitmapUtil#createBitmapFromGlFrameBuffer(int, int, int, int)} otherwise. All methods must be
+ * called on the GL thread.
+ * </p>
+ */
+public class AsyncPixelReader {
+
+    private static final int RING_SIZE = 2;
+    private static final long BLOCKING_TIMEOUT_NS = 1000000000L;
+
+    private final int[] mPixelBuffers = new int[RING_SIZE];
+    private final int[] mPixelBufferSizes = new int[RING_SIZE];
+    private final PendingRead[] mPendingReads = new PendingRead[RING_SIZE];
+    private int mNextSlot;
+    private Boolean isSupported;
+
+    private static class PendingRead {
+        final long fence;
+        final int width;
+        final int height;
+        final OnSaveBitmap callback;
+
+        PendingRead(long fence, int width, int height, OnSaveBitmap callback) {
+            this.fence = fence;
+            this.width = width;
+            this.height = height;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * @return true if the current GL context supports pixel buffers and fences
+     */
+    public boolean isSupported() {
+        if (isSupported == null) {
+            String version = GLES20.glGetString(GLES20.GL_VERSION);
+            isSupported = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                    && version != null && version.startsWith("OpenGL ES ")
+                    && version.length() > 10 && version.charAt(10) >= '3';
+        }
+        return isSupported;
+    }
+
+    /**
+     * Queue a read of the bound frame buffer
+     *
+     * @param callback receives the bitmap on the GL thread once it is collected, rows are in
+     *                 <code>glReadPixels</code> order
+     * @return false if asynchronous reads are not supported and nothing was queued
+     */
+    public boolean readPixels(int x, int y, int width, int height, @NonNull OnSaveBitmap callback) {
+        if (!isSupported()) {
+            return false;
+        }
+        queueRead(x, y, width, height, callback);
+        return true;
+    }
+
+    /**
+     * Queue a read of a texture at its own size
+     *
+     * @return false if asynchronous reads are not supported or the texture can't be read
+     */
+    public boolean readTexture(int texId, int width, int height, @NonNull OnSaveBitmap callback) {
+        if (!isSupported()) {
+            return false;
+        }
+        int frameBuffer = BitmapUtil.bindTextureFrameBuffer(texId);
+        if (frameBuffer == 0) {
+            return false;
+        }
+        try {
+            queueRead(0, 0, width, height, callback);
+        } finally {
+            BitmapUtil.deleteFrameBuffer(frameBuffer);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if there are reads which are not collected yet
+     */
+    public boolean hasPendingReads() {
+        for (PendingRead pendingRead : mPendingReads) {
+            if (pendingRead != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deliver the reads which are finished by the GPU, oldest first
+     *
+     * @param block true to wait for all pending reads
+     */
+    public void collect(boolean block) {
+        for (int i = 0; i < RING_SIZE; i++) {
+            int slot = (mNextSlot + i) % RING_SIZE;
+            if (mPendingReads[slot] != null && !collectSlot(slot, block) && !block) {
+                // Later reads can't be finished before an earlier one
+                return;
+            }
+        }
+    }
+
+    /**
+     * Delete the pixel buffers and drop pending reads while the context is still current
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void release() {
+        for (int slot = 0; slot < RING_SIZE; slot++) {
+            if (mPendingReads[slot] != null) {
+                GLES30.glDeleteSync(mPendingReads[slot].fence);
+            }
+        }
+        if (mPixelBuffers[0] != 0) {
+            GLES20.glDeleteBuffers(RING_SIZE, mPixelBuffers, 0);
+        }
+        abandon();
+    }
+
+    /**
+     * Forget the pixel buffers after the GL context was lost, pending reads fail
+     */
+    public void abandon() {
+        for (int slot = 0; slot < RING_SIZE; slot++) {
+            PendingRead pendingRead = mPendingReads[slot];
+            mPendingReads[slot] = null;
+            mPixelBuffers[slot] = 0;
+            mPixelBufferSizes[slot] = 0;
+            if (pendingRead != null) {
+                pendingRead.callback.onFailure(new IllegalStateException("GL context lost before pixels were read"));
+            }
+        }
+        isSupported = null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void queueRead(int x, int y, int width, int height, OnSaveBitmap callback) {
+        int slot = mNextSlot;
+        if (mPendingReads[slot] != null) {
+            // The ring is full, the oldest read has to finish before its buffer is reused
+            collectSlot(slot, true);
+        }
+        if (mPixelBuffers[0] == 0) {
+            GLES20.glGenBuffers(RING_SIZE, mPixelBuffers, 0);
+        }
+        int size = width * height * 4;
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffers[slot]);
+        if (mPixelBufferSizes[slot] != size) {
+            GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+            mPixelBufferSizes[slot] = size;
+        }
+        GLES30.glReadPixels(x, y, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        long fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GLES20.glFlush();
+        mPendingReads[slot] = new PendingRead(fence, width, height, callback);
+        mNextSlot = (slot + 1) % RING_SIZE;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private boolean collectSlot(int slot, boolean block) {
+        PendingRead pendingRead = mPendingReads[slot];
+        int status = GLES30.glClientWaitSync(pendingRead.fence,
+                block ? GLES30.GL_SYNC_FLUSH_COMMANDS_BIT : 0,
+                block ? BLOCKING_TIMEOUT_NS : 0);
+        if (status == GLES30.GL_TIMEOUT_EXPIRED && !block) {
+            return false;
+        }
+        mPendingReads[slot] = null;
+        GLES30.glDeleteSync(pendingRead.fence);
+        if (status == GLES30.GL_WAIT_FAILED || status == GLES30.GL_TIMEOUT_EXPIRED) {
+            pendingRead.callback.onFailure(new IllegalStateException("Waiting for pixels failed: " + status));
+            return true;
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapPool.getDefault().obtainDirty(pendingRead.width, pendingRead.height,
+                    Bitmap.Config.ARGB_8888);
+        } catch (OutOfMemoryError e) {
+            pendingRead.callback.onFailure(e);
+            return true;
+        }
+        int size = pendingRead.width * pendingRead.height * 4;
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffers[slot]);
+        Buffer mapped = GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, size, GLES30.GL_MAP_READ_BIT);
+        try {
+            if (mapped == null) {
+                BitmapPool.getDefault().release(bitmap);
+                pendingRead.callback.onFailure(new IllegalStateException("Mapping pixel buffer failed"));
+                return true;
+            }
+            bitmap.copyPixelsFromBuffer((ByteBuffer) mapped);
+        } finally {
+            if (mapped != null) {
+                GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+            }
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        }
+        pendingRead.callback.onBitmapReady(bitmap);
+        return true;
+    }
+}
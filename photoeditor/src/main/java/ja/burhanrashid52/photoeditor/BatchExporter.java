@@ -0,0 +1,253 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Save the edited image to several {@link ExportTarget} from a single composite. The
+ * {@link PhotoEditorView} is captured once, transparent borders are cropped once if any target
+ * needs it and then every target is resized and encoded as its own job on the
+ * {@link ExportExecutor}, so the targets run in parallel.
+ * </p>
+ * <p>
+ * When one of the targets asks for source resolution the composite is rendered at source
+ * resolution and the other targets are scaled down to the size of the view.
+ * </p>
+ *
+ * @see PhotoEditor#saveAsFiles(List, OnBatchSaveListener)
+ */
+class BatchExporter {
+
+    private static final String TAG = "BatchExporter";
+
+    private final PhotoEditorView mParentView;
+    private final ExportExecutor mExportExecutor;
+    private final CompositeCache mCompositeCache;
+    private final List<ExportTarget> mTargets;
+    private final String[] mImagePaths;
+    private Composite mComposite;
+    private Throwable mFirstError;
+    private int mRemaining;
+
+    /**
+     * Composited image shared by all the targets
+     */
+    private static class Composite {
+        final Bitmap full;
+        final Bitmap cropped;
+
+        Composite(Bitmap full, Bitmap cropped) {
+            this.full = full;
+            this.cropped = cropped;
+        }
+    }
+
+    /**
+     * @param compositeCache cache of the unchanged layers or null to render all of them
+     */
+    BatchExporter(@NonNull PhotoEditorView parentView, @NonNull ExportExecutor exportExecutor,
+                  CompositeCache compositeCache, @NonNull List<ExportTarget> targets) {
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("At least one export target is required");
+        }
+        mParentView = parentView;
+        mExportExecutor = exportExecutor;
+        mCompositeCache = compositeCache;
+        mTargets = new ArrayList<>(targets);
+        mImagePaths = new String[mTargets.size()];
+    }
+
+    /**
+     * @return highest priority of all the targets which is used to composite the image
+     */
+    SavePriority getPriority() {
+        SavePriority priority = SavePriority.LOW;
+        for (ExportTarget target : mTargets) {
+            if (target.getSaveSettings().getPriority().compareTo(priority) > 0) {
+                priority = target.getSaveSettings().getPriority();
+            }
+        }
+        return priority;
+    }
+
+    boolean isSourceResolutionEnabled() {
+        for (ExportTarget target : mTargets) {
+            if (target.getSaveSettings().isSourceResolutionEnabled()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isClearViewsEnabled() {
+        for (ExportTarget target : mTargets) {
+            if (target.getSaveSettings().isClearViewsEnabled()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isTransparencyEnabled() {
+        for (ExportTarget target : mTargets) {
+            if (target.getSaveSettings().isTransparencyEnabled()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queue the composite and fan out to the targets once it is ready. Must be called on the
+     * main thread.
+     *
+     * @param batchJob   handle returned to the caller, every stage runs as its child
+     * @param compositor compositor in image or view space or null to capture the view
+     * @param listener   called on the main thread once all targets finished
+     */
+    void start(@NonNull final ExportJob batchJob, final ImageSpaceCompositor compositor,
+               @NonNull final OnBatchSaveListener listener) {
+        final boolean cropEnabled = isTransparencyEnabled();
+        final float viewScale = compositor != null
+                ? (float) mParentView.getWidth() / compositor.getWidth() : 1f;
+        ExportJob compositeJob = batchJob.createChild(getPriority());
+        mExportExecutor.execute(compositeJob, new ExportExecutor.ExportTask<Composite>() {
+
+            @Override
+            Composite doInBackground(@NonNull ExportJob exportJob) {
+                Bitmap full;
+                if (compositor != null) {
+                    synchronized (mParentView) {
+                        full = mCompositeCache != null
+                                ? mCompositeCache.render(compositor) : compositor.render();
+                    }
+                } else {
+                    full = BitmapUtil.captureDrawingCache(mParentView);
+                }
+                Bitmap cropped = cropEnabled && !exportJob.isCancelled()
+                        ? BitmapUtil.removeTransparency(full) : null;
+                return new Composite(full, cropped);
+            }
+
+            @Override
+            void onSuccess(Composite composite) {
+                mComposite = composite;
+                mRemaining = mTargets.size();
+                for (int i = 0; i < mTargets.size(); i++) {
+                    encode(batchJob, composite, i, isSourceResolutionEnabled(), viewScale, listener);
+                }
+            }
+
+            @Override
+            void onFailure(@NonNull Throwable throwable) {
+                Log.d(TAG, "Failed to composite the image", throwable);
+                batchJob.setDone();
+                listener.onFailure(throwable);
+            }
+        });
+    }
+
+    private void encode(@NonNull final ExportJob batchJob, final Composite composite, final int index,
+                        final boolean isSourceResolution, final float viewScale,
+                        @NonNull final OnBatchSaveListener listener) {
+        final ExportTarget target = mTargets.get(index);
+        final SaveSettings saveSettings = target.getSaveSettings();
+        ExportJob targetJob = batchJob.createChild(saveSettings.getPriority());
+        mExportExecutor.execute(targetJob, new ExportExecutor.ExportTask<SaveReport>() {
+
+            @Override
+            SaveReport doInBackground(@NonNull ExportJob exportJob) throws Exception {
+                Bitmap base = saveSettings.isTransparencyEnabled() ? composite.cropped : composite.full;
+                float scale = isSourceResolution && !saveSettings.isSourceResolutionEnabled() ? viewScale : 1f;
+                Bitmap output = scale(base, scale, saveSettings.getMaxDimension());
+                SaveReport saveReport = new SaveReport();
+                long peakBytes = composite.full.getByteCount();
+                if (composite.cropped != null && composite.cropped != composite.full) {
+                    peakBytes += composite.cropped.getByteCount();
+                }
+                if (output != base) {
+                    peakBytes += output.getByteCount();
+                }
+                saveReport.setPeakBytes(peakBytes);
+                if (exportJob.isCancelled()) {
+                    return saveReport;
+                }
+                ReplacingFileOutputStream out = new ReplacingFileOutputStream(new File(target.getImagePath()));
+                try {
+                    ByteBudgetEncoder.compress(output, saveSettings, out, saveReport,
+                            new SaveProgress(saveSettings.getOnSaveProgressListener(), null));
+                    if (!exportJob.isCancelled()) {
+                        out.commit();
+                    }
+                } finally {
+                    out.abort();
+                    if (output != base) {
+                        BitmapPool.getDefault().release(output);
+                    }
+                }
+                return saveReport;
+            }
+
+            @Override
+            void onSuccess(SaveReport saveReport) {
+                mImagePaths[index] = target.getImagePath();
+                if (saveSettings.getOnSaveReportListener() != null) {
+                    saveSettings.getOnSaveReportListener().onSaveReport(saveReport);
+                }
+                onTargetFinished(batchJob, listener);
+            }
+
+            @Override
+            void onFailure(@NonNull Throwable throwable) {
+                Log.d(TAG, "Failed to save " + target.getImagePath(), throwable);
+                if (mFirstError == null) {
+                    mFirstError = throwable;
+                }
+                onTargetFinished(batchJob, listener);
+            }
+        });
+    }
+
+    private void onTargetFinished(@NonNull ExportJob batchJob, @NonNull OnBatchSaveListener listener) {
+        if (--mRemaining > 0) {
+            return;
+        }
+        batchJob.setDone();
+        // Every target is done with the shared composite
+        BitmapPool bitmapPool = BitmapPool.getDefault();
+        if (mComposite.cropped != mComposite.full) {
+            bitmapPool.release(mComposite.cropped);
+        }
+        bitmapPool.release(mComposite.full);
+        mComposite = null;
+        if (mFirstError != null) {
+            listener.onFailure(mFirstError);
+        } else {
+            listener.onSuccess(Arrays.asList(mImagePaths));
+        }
+    }
+
+    /**
+     * Resize once for both the view scale and the max dimension of the target
+     */
+    private static Bitmap scale(Bitmap source, float scale, int maxDimension) {
+        int width = Math.max(1, Math.round(source.getWidth() * scale));
+        int height = Math.max(1, Math.round(source.getHeight() * scale));
+        int longest = Math.max(width, height);
+        if (maxDimension > 0 && longest > maxDimension) {
+            width = Math.max(1, Math.round(width * (float) maxDimension / longest));
+            height = Math.max(1, Math.round(height * (float) maxDimension / longest));
+        }
+        if (width == source.getWidth() && height == source.getHeight()) {
+            return source;
+        }
+        return Bitmap.createScaledBitmap(source, width, height, true);
+    }
+}
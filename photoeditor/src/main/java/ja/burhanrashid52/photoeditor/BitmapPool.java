@@ -0,0 +1,208 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * <p>
+ * Pool of bitmaps and pixel arrays which are reused by the save, the GL readback and the filter
+ * previews instead of allocating a new full size buffer every time. Buffers are bucketed by their
+ * exact size and config, so a buffer is only reused for a request of the same size.
+ * </p>
+ * <p>
+ * Released buffers are kept until the pool holds more than {@link #getMaxBytes()}, then the
+ * buffers which were released the longest time ago are evicted first.
+ * </p>
+ * <br></br>
+ * <b>Note :</b> Bitmaps returned by {@link PhotoEditor#saveAsBitmap}, the save previews and the
+ * render jobs can come from the pool. Hand them back with {@link #release(Bitmap)} once they are
+ * not used anymore, the pool owns them from then on and may recycle them.
+ */
+public class BitmapPool {
+
+    private static BitmapPool sDefault;
+
+    private final Map<Object, ArrayDeque<Entry>> mBuckets = new HashMap<>();
+    // Iteration order is the release order, the first entry is the least recently released
+    private final LinkedHashSet<Entry> mLru = new LinkedHashSet<>();
+    private long mMaxBytes;
+    private long mPooledBytes;
+
+    /**
+     * A pooled bitmap or pixel array with the key of its bucket
+     */
+    private static class Entry {
+        final Object key;
+        final Bitmap bitmap;
+        final int[] pixels;
+        final long bytes;
+
+        Entry(Object key, Bitmap bitmap, int[] pixels, long bytes) {
+            this.key = key;
+            this.bitmap = bitmap;
+            this.pixels = pixels;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * @param maxBytes bytes the pool keeps at most, zero to disable pooling
+     */
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * @return pool shared by all the editors, it keeps up to an eighth of the heap by default
+     */
+    public static synchronized BitmapPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new BitmapPool(Runtime.getRuntime().maxMemory() / 8);
+        }
+        return sDefault;
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Change the size of the pool, buffers above the new size are evicted right away
+     *
+     * @param maxBytes bytes the pool keeps at most, zero to disable pooling
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        mMaxBytes = Math.max(0, maxBytes);
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * @return bytes currently held by the released buffers
+     */
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    /**
+     * @return a mutable bitmap cleared to transparent, reused from the pool if one of the same
+     * size and config was released
+     */
+    @NonNull
+    public Bitmap obtain(int width, int height, @NonNull Bitmap.Config config) {
+        Bitmap bitmap = obtainDirty(width, height, config);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * Like {@link #obtain(int, int, Bitmap.Config)} but a reused bitmap keeps its old pixels, for
+     * callers which overwrite every pixel anyway
+     */
+    @NonNull
+    Bitmap obtainDirty(int width, int height, @NonNull Bitmap.Config config) {
+        Entry entry = take(bitmapKey(width, height, config));
+        if (entry != null) {
+            return entry.bitmap;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Hand a bitmap back to the pool. Immutable bitmaps and bitmaps which don't fit in the pool
+     * are recycled.
+     *
+     * @param bitmap bitmap which is not used by the caller anymore, null is ignored
+     */
+    public void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || !put(new Entry(bitmapKey(bitmap.getWidth(), bitmap.getHeight(),
+                bitmap.getConfig()), bitmap, null, bitmap.getByteCount()))) {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * @return an array of exactly <code>length</code> ints with undefined content
+     */
+    @NonNull
+    public int[] obtainPixels(int length) {
+        Entry entry = take(length);
+        return entry != null ? entry.pixels : new int[length];
+    }
+
+    /**
+     * Hand a pixel array back to the pool
+     *
+     * @param pixels array which is not used by the caller anymore, null is ignored
+     */
+    public void releasePixels(int[] pixels) {
+        if (pixels != null) {
+            put(new Entry(pixels.length, null, pixels, pixels.length * 4L));
+        }
+    }
+
+    /**
+     * Recycle all the pooled bitmaps and drop the pixel arrays, e.g. when the app is trimmed
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    private synchronized Entry take(Object key) {
+        ArrayDeque<Entry> bucket = mBuckets.get(key);
+        if (bucket == null || bucket.isEmpty()) {
+            return null;
+        }
+        // The most recently released buffer is the most likely to still be in the CPU cache
+        Entry entry = bucket.pollLast();
+        mLru.remove(entry);
+        mPooledBytes -= entry.bytes;
+        return entry;
+    }
+
+    private synchronized boolean put(Entry entry) {
+        if (entry.bytes > mMaxBytes) {
+            return false;
+        }
+        ArrayDeque<Entry> bucket = mBuckets.get(entry.key);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            mBuckets.put(entry.key, bucket);
+        }
+        bucket.addLast(entry);
+        mLru.add(entry);
+        mPooledBytes += entry.bytes;
+        trimToSize(mMaxBytes);
+        return true;
+    }
+
+    private void trimToSize(long maxBytes) {
+        Iterator<Entry> iterator = mLru.iterator();
+        while (mPooledBytes > maxBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            ArrayDeque<Entry> bucket = mBuckets.get(eldest.key);
+            bucket.remove(eldest);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(eldest.key);
+            }
+            mPooledBytes -= eldest.bytes;
+            if (eldest.bitmap != null) {
+                eldest.bitmap.recycle();
+            }
+        }
+    }
+
+    private static Object bitmapKey(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + ":" + config;
+    }
+}
@@ -1,12 +1,22 @@
 package ja.burhanrashid52.photoeditor;
 
 import android.graphics.Bitmap;
-import android.graphics.Color;
+import android.graphics.Canvas;
 import android.opengl.GLES20;
 import android.opengl.GLException;
 import android.opengl.GLSurfaceView;
+import android.support.annotation.NonNull;
+import android.view.View;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.microedition.khronos.opengles.GL10;
 
@@ -20,55 +30,143 @@ import javax.microedition.khronos.opengles.GL10;
  * @since 5/21/2018
  */
 public class BitmapUtil {
+    private static ExecutorService sScanExecutor;
+    private static final Object READBACK_LOCK = new Object();
+    private static ByteBuffer sReadbackBuffer;
+    // Larger reads get a buffer of their own which is dropped afterwards, so a save at source
+    // resolution doesn't keep its size pinned for the rest of the process
+    static final int MAX_RETAINED_READBACK_BYTES = 16 * 1024 * 1024;
+
     /**
      * Remove transparency in edited bitmap
+     * <p>
+     * The bounds of the visible pixels are found by {@link VisibleBoundsScanner}, which reads the
+     * bitmap in strips of rows instead of copying the whole frame.
+     * </p>
      *
      * @param source edited image
-     * @return bitmap without any transparency
+     * @return bitmap without any transparency, a mutable bitmap from the {@link BitmapPool} if it
+     * was cropped
      */
-    static Bitmap removeTransparency(Bitmap source) {
-        int firstX = 0, firstY = 0;
-        int lastX = source.getWidth();
-        int lastY = source.getHeight();
-        int[] pixels = new int[source.getWidth() * source.getHeight()];
-        source.getPixels(pixels, 0, source.getWidth(), 0, 0, source.getWidth(), source.getHeight());
-        loop:
-        for (int x = 0; x < source.getWidth(); x++) {
-            for (int y = 0; y < source.getHeight(); y++) {
-                if (pixels[x + (y * source.getWidth())] != Color.TRANSPARENT) {
-                    firstX = x;
-                    break loop;
-                }
+    static Bitmap removeTransparency(final Bitmap source) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int[] bounds = VisibleBoundsScanner.findBounds(new VisibleBoundsScanner.RowSource() {
+            @Override
+            public int getWidth() {
+                return source.getWidth();
             }
-        }
-        loop:
-        for (int y = 0; y < source.getHeight(); y++) {
-            for (int x = firstX; x < source.getHeight(); x++) {
-                if (pixels[x + (y * source.getWidth())] != Color.TRANSPARENT) {
-                    firstY = y;
-                    break loop;
-                }
+
+            @Override
+            public int getHeight() {
+                return source.getHeight();
             }
-        }
-        loop:
-        for (int x = source.getWidth() - 1; x >= firstX; x--) {
-            for (int y = source.getHeight() - 1; y >= firstY; y--) {
-                if (pixels[x + (y * source.getWidth())] != Color.TRANSPARENT) {
-                    lastX = x;
-                    break loop;
-                }
+
+            @Override
+            public void readRows(int[] strip, int top, int rows) {
+                source.getPixels(strip, 0, source.getWidth(), 0, top, source.getWidth(), rows);
             }
+        }, getScanExecutor(), Runtime.getRuntime().availableProcessors());
+        if (bounds == null) {
+            // Nothing is visible, keep the image as it is
+            return source;
+        }
+        int left = bounds[0];
+        int top = bounds[1];
+        int right = bounds[2];
+        int bottom = bounds[3];
+        if (left == 0 && top == 0 && right == width - 1 && bottom == height - 1) {
+            return source;
         }
-        loop:
-        for (int y = source.getHeight() - 1; y >= firstY; y--) {
-            for (int x = source.getWidth() - 1; x >= firstX; x--) {
-                if (pixels[x + (y * source.getWidth())] != Color.TRANSPARENT) {
-                    lastY = y;
-                    break loop;
+        Bitmap cropped = BitmapPool.getDefault().obtain(right - left + 1, bottom - top + 1, Bitmap.Config.ARGB_8888);
+        new Canvas(cropped).drawBitmap(source, -left, -top, null);
+        return cropped;
+    }
+
+    /**
+     * @return daemon pool shared by the CPU bound helpers which split their work in parallel parts
+     */
+    static synchronized ExecutorService getScanExecutor() {
+        if (sScanExecutor == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PhotoEditor-scan");
+                    thread.setDaemon(true);
+                    return thread;
                 }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            sScanExecutor = executor;
+        }
+        return sScanExecutor;
+    }
+
+    /**
+     * Capture the drawing cache of the view. Saves from the same editor can run in parallel on
+     * the {@link ExportExecutor} so the capture is serialized on the view.
+     *
+     * @param view laid out view to capture
+     * @return copy of the drawing cache which stays valid after the cache is destroyed
+     */
+    static Bitmap captureDrawingCache(@NonNull View view) {
+        synchronized (view) {
+            view.setDrawingCacheEnabled(true);
+            Bitmap drawingCache = view.getDrawingCache();
+            if (drawingCache == null) {
+                view.setDrawingCacheEnabled(false);
+                throw new IllegalStateException("Failed to capture the drawing cache");
             }
+            Bitmap copy = drawingCache.copy(Bitmap.Config.ARGB_8888, false);
+            view.setDrawingCacheEnabled(false);
+            return copy;
+        }
+    }
+
+    /**
+     * Scale the bitmap down so its longest edge fits in <code>maxDimension</code>
+     *
+     * @param source       image to scale
+     * @param maxDimension longest edge in pixels, zero or less to keep the source
+     * @return scaled copy or the source itself if it already fits
+     */
+    static Bitmap scaleToMaxDimension(Bitmap source, int maxDimension) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        if (maxDimension <= 0 || (width <= maxDimension && height <= maxDimension)) {
+            return source;
+        }
+        float scale = (float) maxDimension / Math.max(width, height);
+        int scaledWidth = Math.max(1, Math.round(width * scale));
+        int scaledHeight = Math.max(1, Math.round(height * scale));
+        return Bitmap.createScaledBitmap(source, scaledWidth, scaledHeight, true);
+    }
+
+    /**
+     * Apply presets and looks with the {@link CpuFilterEngine}, for when no GL context is available
+     *
+     * @param source  image to filter, it is not modified
+     * @param filters {@link PhotoFilter} and {@link LutFilter} stages in the order they apply
+     * @return filtered copy from the {@link BitmapPool}
+     */
+    static Bitmap applyFiltersOnCpu(@NonNull Bitmap source, @NonNull List<?> filters) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        BitmapPool pool = BitmapPool.getDefault();
+        int[] pixels = pool.obtainPixels(width * height);
+        int[] scratch = pool.obtainPixels(width * height);
+        try {
+            source.getPixels(pixels, 0, width, 0, 0, width, height);
+            CpuFilterEngine.getDefault().apply(pixels, scratch, width, height, filters);
+            Bitmap result = pool.obtain(width, height, Bitmap.Config.ARGB_8888);
+            result.setPixels(pixels, 0, width, 0, 0, width, height);
+            return result;
+        } finally {
+            pool.releasePixels(pixels);
+            pool.releasePixels(scratch);
         }
-        return Bitmap.createBitmap(source, firstX, firstY, lastX - firstX, lastY - firstY);
     }
 
     /**
@@ -78,7 +176,11 @@ public class BitmapUtil {
      * @param gl            open gl source to read pixels from {@link GLSurfaceView}
      * @return save bitmap
      * @throws OutOfMemoryError error when system is out of memory to load and save bitmap
+     * @deprecated converts and flips every pixel in Java, render flipped with
+     * {@link TextureRenderer#renderTexture(int, boolean)} and use
+     * {@link #createBitmapFromGlFrameBuffer(int, int, int, int)} instead
      */
+    @Deprecated
     public static Bitmap createBitmapFromGLSurface(GLSurfaceView glSurfaceView, GL10 gl) throws OutOfMemoryError {
         int w = glSurfaceView.getWidth();
         int h = glSurfaceView.getHeight();
@@ -94,17 +196,104 @@ public class BitmapUtil {
         return Bitmap.createBitmap(bitmapBuffer, w, h, Bitmap.Config.ARGB_8888);
     }
 
+    /**
+     * Read pixels of the bound frame buffer into a bitmap. The pixels are read into a direct buffer
+     * and copied into the bitmap as they are, RGBA bytes in memory are the layout of
+     * {@link Bitmap.Config#ARGB_8888} so no conversion is needed. The buffer is reused for reads up
+     * to {@link #MAX_RETAINED_READBACK_BYTES}.
+     * <br></br>
+     * <b>Note :</b> Rows are returned in the order of <code>glReadPixels</code>, bottom first for
+     * the window surface. Render flipped with {@link TextureRenderer#renderTexture(int, boolean)}
+     * to read the surface top first.
+     *
+     * @return bitmap from the {@link BitmapPool} with the pixels or null if reading failed
+     * @throws OutOfMemoryError error when system is out of memory to load and save bitmap
+     */
     public static Bitmap createBitmapFromGlFrameBuffer(int x, int y, int width, int height) throws OutOfMemoryError {
-        int bitmapBuffer[] = new int[width * height];
-        IntBuffer intBuffer = IntBuffer.wrap(bitmapBuffer);
-        intBuffer.position(0);
+        Bitmap bitmap = BitmapPool.getDefault().obtainDirty(width, height, Bitmap.Config.ARGB_8888);
+        synchronized (READBACK_LOCK) {
+            ByteBuffer buffer = obtainReadbackBuffer(width * height * 4);
+            try {
+                GLES20.glReadPixels(x, y, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+            } catch (GLException e) {
+                BitmapPool.getDefault().release(bitmap);
+                return null;
+            }
+            bitmap.copyPixelsFromBuffer(buffer);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Free the direct buffer kept for GL read back, it is allocated again on the next read
+     */
+    public static void releaseReadbackBuffer() {
+        synchronized (READBACK_LOCK) {
+            sReadbackBuffer = null;
+        }
+    }
+
+    private static ByteBuffer obtainReadbackBuffer(int size) {
+        if (size > MAX_RETAINED_READBACK_BYTES) {
+            return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+        if (sReadbackBuffer == null || sReadbackBuffer.capacity() < size) {
+            sReadbackBuffer = null;
+            sReadbackBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+        sReadbackBuffer.clear();
+        sReadbackBuffer.limit(size);
+        return sReadbackBuffer;
+    }
+
+    /**
+     * Read a texture at its own resolution by attaching it to a temporary frame buffer
+     *
+     * @param texId  texture to read
+     * @param width  width of the texture
+     * @param height height of the texture
+     * @return bitmap with the content of the texture, top row first
+     * @throws OutOfMemoryError error when system is out of memory to load and save bitmap
+     */
+    public static Bitmap createBitmapFromGlTexture(int texId, int width, int height) throws OutOfMemoryError {
+        int frameBuffer = bindTextureFrameBuffer(texId);
         try {
-            GLES20.glReadPixels(x, y, width, height, GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, intBuffer);
-            convertRgbaToArgb(bitmapBuffer);
-        } catch (GLException e) {
-            return null;
+            if (frameBuffer == 0) {
+                return null;
+            }
+            return createBitmapFromGlFrameBuffer(0, 0, width, height);
+        } finally {
+            deleteFrameBuffer(frameBuffer);
+        }
+    }
+
+    /**
+     * Bind a new frame buffer with the texture as its color attachment
+     *
+     * @return frame buffer name or 0 if the texture can't be attached, delete it with
+     * {@link #deleteFrameBuffer(int)}
+     */
+    static int bindTextureFrameBuffer(int texId) {
+        int[] frameBuffers = new int[1];
+        GLES20.glGenFramebuffers(1, frameBuffers, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffers[0]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, texId, 0);
+        if (GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER) != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            deleteFrameBuffer(frameBuffers[0]);
+            return 0;
+        }
+        return frameBuffers[0];
+    }
+
+    /**
+     * Bind the default frame buffer again and delete the given one
+     */
+    static void deleteFrameBuffer(int frameBuffer) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (frameBuffer != 0) {
+            GLES20.glDeleteFramebuffers(1, new int[]{frameBuffer}, 0);
         }
-        return Bitmap.createBitmap(bitmapBuffer, width, height, Bitmap.Config.ARGB_8888);
     }
 
     private static void convertRgbaToArgbAndFlip(int []pixels, final int w, final int h) {
@@ -142,16 +331,4 @@ public class BitmapUtil {
         }
     }
 
-    private static void convertRgbaToArgb(int []pixels) {
-        final int len = pixels.length;
-        for (int i = 0; i < len; ++i) {
-            int rgbaPixel = pixels[i];
-            int topArgbPixel =
-                    (rgbaPixel & 0xff00ff00) // green
-                            | ((rgbaPixel << 16) & 0x00ff0000) // red
-                            | ((rgbaPixel >> 16) & 0xff); // blue
-            pixels[i] = topArgbPixel;
-        }
-    }
-
 }
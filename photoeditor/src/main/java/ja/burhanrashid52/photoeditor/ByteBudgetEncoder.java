@@ -0,0 +1,263 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ * Encode a bitmap with the {@link SaveSettings} of a save. When a maximum file size is set the
+ * highest quality which fits is searched first:
+ * </p>
+ * <p>
+ * 1. The bitmap is scaled down to a small probe which is encoded at several quality levels in
+ * parallel, only the encoded size is kept.<br></br>
+ * 2. The probe sizes are scaled by the ratio of the pixel counts to predict the size of the full
+ * image and the highest quality which fits is encoded at full size.<br></br>
+ * 3. If the full encode is still too large the predictions are corrected by the measured error and
+ * the next lower quality is tried.
+ * </p>
+ *
+ * @see SaveSettings.Builder#setMaxFileSize(long)
+ */
+class ByteBudgetEncoder {
+
+    private static final int PROBE_DIMENSION = 512;
+    private static final int QUALITY_STEP = 10;
+    private static final int MIN_QUALITY = 5;
+    private static final int MAX_FULL_ENCODES = 4;
+    private static final int MIN_BUFFER_SIZE = 32 * 1024;
+    // A wrong prediction costs a few copies while the buffer grows, not a huge allocation up front
+    private static final int MAX_INITIAL_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    private ByteBudgetEncoder() {
+    }
+
+    /**
+     * Compress the bitmap into the stream and record the chosen quality in the report
+     *
+     * @param bitmap       image to encode
+     * @param saveSettings format, quality and maximum file size
+     * @param out          stream which receives the encoded image
+     * @param saveReport   report which receives the chosen quality and the encoded size
+     * @throws IOException when writing to the stream fails
+     */
+    static void compress(@NonNull Bitmap bitmap, @NonNull SaveSettings saveSettings,
+                         @NonNull OutputStream out, @NonNull SaveReport saveReport) throws IOException {
+        Bitmap.CompressFormat format = saveSettings.getCompressFormat();
+        int quality = saveSettings.getCompressQuality();
+        long maxFileSize = saveSettings.getMaxFileSize();
+        if (!isSizeSearched(saveSettings)) {
+            CountingOutputStream countingOut = new CountingOutputStream(out);
+            bitmap.compress(format, quality, countingOut);
+            saveReport.setCompressQuality(quality);
+            saveReport.setEncodedBytes(countingOut.getCount());
+            return;
+        }
+
+        int[] qualities = candidateQualities(quality);
+        long[] predictedBytes = predictSizes(bitmap, format, qualities);
+        double correction = 1d;
+        int index = pickQuality(predictedBytes, correction, maxFileSize, 0);
+        // Sized for the predicted encode instead of the whole budget, it grows if the guess is short
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(
+                initialBufferSize(bitmap, predictedBytes[index], maxFileSize));
+        for (int attempt = 1; ; attempt++) {
+            encoded.reset();
+            bitmap.compress(format, qualities[index], encoded);
+            long actualBytes = encoded.size();
+            if (actualBytes <= maxFileSize || index == qualities.length - 1 || attempt == MAX_FULL_ENCODES) {
+                saveReport.setTrialEncodes(qualities.length + attempt);
+                break;
+            }
+            correction = (double) actualBytes / Math.max(1, predictedBytes[index]);
+            index = pickQuality(predictedBytes, correction, maxFileSize, index + 1);
+        }
+        encoded.writeTo(out);
+        saveReport.setCompressQuality(qualities[index]);
+        saveReport.setEncodedBytes(encoded.size());
+        saveReport.setFileSizeMet(encoded.size() <= maxFileSize);
+    }
+
+    /**
+     * Compress like {@link #compress(Bitmap, SaveSettings, OutputStream, SaveReport)} and report
+     * the {@link SaveStage#ENCODE} and {@link SaveStage#WRITE} stages. The encoder streams into
+     * the output, the time spent in its writes is reported as the write stage.
+     */
+    static void compress(@NonNull Bitmap bitmap, @NonNull SaveSettings saveSettings,
+                         @NonNull OutputStream out, @NonNull SaveReport saveReport,
+                         @NonNull SaveProgress saveProgress) throws IOException {
+        if (!saveProgress.isStageTracked()) {
+            compress(bitmap, saveSettings, out, saveReport);
+            return;
+        }
+        CountingOutputStream timedOut = new CountingOutputStream(out);
+        saveProgress.stageStarted(SaveStage.ENCODE);
+        compress(bitmap, saveSettings, timedOut, saveReport);
+        timedOut.flush();
+        // Only the size search holds the encoded image in memory
+        saveProgress.stageCompleted(SaveStage.ENCODE, isSizeSearched(saveSettings) ? saveReport.getEncodedBytes() : 0);
+        saveProgress.stageInterleaved(SaveStage.WRITE, SaveStage.ENCODE, timedOut.getWriteNanos());
+    }
+
+    /**
+     * @return true if the quality is searched to meet the maximum file size, PNG is lossless and
+     * ignores the quality so there is nothing to search
+     */
+    private static boolean isSizeSearched(SaveSettings saveSettings) {
+        return saveSettings.getMaxFileSize() > 0 && saveSettings.getCompressFormat() != Bitmap.CompressFormat.PNG;
+    }
+
+    /**
+     * @return capacity for the encoded image, the prediction with some headroom but never more
+     * than the budget or the raw pixels
+     */
+    private static int initialBufferSize(Bitmap bitmap, long predictedBytes, long maxFileSize) {
+        long size = predictedBytes + predictedBytes / 8;
+        size = Math.min(size, Math.min(maxFileSize, bitmap.getByteCount()));
+        return (int) Math.max(MIN_BUFFER_SIZE, Math.min(size, MAX_INITIAL_BUFFER_SIZE));
+    }
+
+    /**
+     * @return requested quality followed by lower levels down to {@link #MIN_QUALITY}
+     */
+    private static int[] candidateQualities(int maxQuality) {
+        List<Integer> qualities = new ArrayList<>();
+        qualities.add(maxQuality);
+        int next = (maxQuality - 1) / QUALITY_STEP * QUALITY_STEP;
+        for (; next >= MIN_QUALITY; next -= QUALITY_STEP) {
+            qualities.add(next);
+        }
+        if (qualities.get(qualities.size() - 1) > MIN_QUALITY) {
+            qualities.add(MIN_QUALITY);
+        }
+        int[] result = new int[qualities.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = qualities.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Encode the probe at every quality in parallel
+     *
+     * @return predicted size of the full image for every quality
+     */
+    private static long[] predictSizes(Bitmap bitmap, final Bitmap.CompressFormat format, int[] qualities) {
+        final Bitmap probe = BitmapUtil.scaleToMaxDimension(bitmap, PROBE_DIMENSION);
+        double pixelRatio = (double) bitmap.getWidth() * bitmap.getHeight()
+                / ((double) probe.getWidth() * probe.getHeight());
+        ExecutorService executor = BitmapUtil.getScanExecutor();
+        List<Future<Long>> futures = new ArrayList<>(qualities.length);
+        for (final int quality : qualities) {
+            futures.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    CountingOutputStream countingOut = new CountingOutputStream(null);
+                    probe.compress(format, quality, countingOut);
+                    return countingOut.getCount();
+                }
+            }));
+        }
+        long[] predicted = new long[qualities.length];
+        boolean isProbed = false;
+        try {
+            for (int i = 0; i < qualities.length; i++) {
+                predicted[i] = (long) (futures.get(i).get() * pixelRatio);
+            }
+            isProbed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while searching the quality", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to search the quality", e.getCause());
+        } finally {
+            if (isProbed) {
+                if (probe != bitmap) {
+                    probe.recycle();
+                }
+            } else {
+                // Probes which already run may still be compressing the probe, it is left to the
+                // garbage collector then
+                for (Future<Long> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        }
+        return predicted;
+    }
+
+    /**
+     * @return index of the highest quality from <code>from</code> which is predicted to fit or the
+     * lowest quality if none does
+     */
+    private static int pickQuality(long[] predictedBytes, double correction, long maxFileSize, int from) {
+        for (int i = from; i < predictedBytes.length; i++) {
+            if (predictedBytes[i] * correction <= maxFileSize) {
+                return i;
+            }
+        }
+        return predictedBytes.length - 1;
+    }
+
+    /**
+     * Stream which counts the bytes and optionally forwards them, measuring the time spent in the
+     * forwarded writes
+     */
+    private static class CountingOutputStream extends OutputStream {
+
+        private final OutputStream mOut;
+        private long mCount;
+        private long mWriteNanos;
+
+        CountingOutputStream(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mCount++;
+            if (mOut != null) {
+                long start = System.nanoTime();
+                mOut.write(b);
+                mWriteNanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            mCount += len;
+            if (mOut != null) {
+                long start = System.nanoTime();
+                mOut.write(b, off, len);
+                mWriteNanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mOut != null) {
+                long start = System.nanoTime();
+                mOut.flush();
+                mWriteNanos += System.nanoTime() - start;
+            }
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        long getWriteNanos() {
+            return mWriteNanos;
+        }
+    }
+}
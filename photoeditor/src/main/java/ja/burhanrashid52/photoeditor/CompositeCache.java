@@ -0,0 +1,143 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.support.annotation.NonNull;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>
+ * Cache of the composite of the bottom layers which didn't change between two saves. Every save
+ * finds the lowest layer which was added, removed, reordered or invalidated since the previous
+ * save, keeps the composite of everything below it and only redraws that layer and the ones on
+ * top of it. Saving again after moving one sticker only redraws that sticker and the layers above.
+ * </p>
+ * <p>
+ * {@link PhotoEditor} invalidates the layers on edit, undo and redo, the order of the layers is
+ * compared on every save so added and removed layers are detected without invalidation.
+ * </p>
+ *
+ * @see PhotoEditor.Builder#setCompositeCacheEnabled(boolean)
+ */
+class CompositeCache {
+
+    // Replaces the old pixels of a reused bitmap instead of blending over them
+    private static final Paint COPY_PAINT = new Paint();
+
+    static {
+        COPY_PAINT.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    private final Object mDirtyLock = new Object();
+    private final Set<View> mDirtyLayers = new HashSet<>();
+    private boolean isAllDirty = true;
+
+    private List<View> mLastLayers = Collections.emptyList();
+    private List<View> mCachedLayers = Collections.emptyList();
+    private List<Object> mBaseKey;
+    private Bitmap mCachedPrefix;
+
+    /**
+     * Mark a layer as changed, it and all the layers above it are redrawn on the next save
+     */
+    void invalidate(@NonNull View layer) {
+        synchronized (mDirtyLock) {
+            mDirtyLayers.add(layer);
+        }
+    }
+
+    /**
+     * Drop the cached composite on the next save
+     */
+    void invalidateAll() {
+        synchronized (mDirtyLock) {
+            isAllDirty = true;
+        }
+    }
+
+    /**
+     * Composite all the layers, reusing the cached bottom layers when they didn't change
+     *
+     * @param compositor compositor which draws the base and the layers
+     * @return a mutable bitmap from the {@link BitmapPool} which is owned by the caller
+     */
+    synchronized Bitmap render(@NonNull ImageSpaceCompositor compositor) {
+        Set<View> dirtyLayers;
+        boolean allDirty;
+        synchronized (mDirtyLock) {
+            dirtyLayers = new HashSet<>(mDirtyLayers);
+            allDirty = isAllDirty;
+            mDirtyLayers.clear();
+            isAllDirty = false;
+        }
+        List<View> layers = compositor.getLayers();
+        List<Object> baseKey = compositor.getBaseKey();
+        if (allDirty || !baseKey.equals(mBaseKey) || mCachedPrefix == null
+                || mCachedPrefix.getWidth() != compositor.getWidth()
+                || mCachedPrefix.getHeight() != compositor.getHeight()) {
+            releasePrefix();
+        }
+
+        int boundary = findFirstChangedLayer(layers, dirtyLayers);
+        int cachedCount = mCachedPrefix != null && mCachedLayers.size() <= boundary
+                ? mCachedLayers.size() : -1;
+        if (cachedCount < 0) {
+            releasePrefix();
+            mCachedPrefix = BitmapPool.getDefault().obtain(compositor.getWidth(), compositor.getHeight(),
+                    Bitmap.Config.ARGB_8888);
+            compositor.drawBase(new Canvas(mCachedPrefix));
+            cachedCount = 0;
+        }
+        // The layers between the old and the new boundary didn't change either, they are added
+        // to the cached composite in place
+        compositor.drawLayers(new Canvas(mCachedPrefix), layers, cachedCount, boundary);
+        mCachedLayers = new ArrayList<>(layers.subList(0, boundary));
+        mLastLayers = new ArrayList<>(layers);
+        mBaseKey = baseKey;
+
+        Bitmap result = BitmapPool.getDefault().obtainDirty(mCachedPrefix.getWidth(),
+                mCachedPrefix.getHeight(), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(result);
+        canvas.drawBitmap(mCachedPrefix, 0, 0, COPY_PAINT);
+        compositor.drawLayers(canvas, layers, boundary, layers.size());
+        return result;
+    }
+
+    /**
+     * @return bytes held by the cached composite
+     */
+    synchronized long getCachedBytes() {
+        return mCachedPrefix != null ? mCachedPrefix.getByteCount() : 0;
+    }
+
+    /**
+     * @return index of the first layer which differs from the last save or was invalidated, the
+     * number of layers if nothing changed
+     */
+    private int findFirstChangedLayer(List<View> layers, Set<View> dirtyLayers) {
+        for (int i = 0; i < layers.size(); i++) {
+            View layer = layers.get(i);
+            if (i >= mLastLayers.size() || mLastLayers.get(i) != layer || dirtyLayers.contains(layer)) {
+                return i;
+            }
+        }
+        return layers.size();
+    }
+
+    private void releasePrefix() {
+        if (mCachedPrefix != null) {
+            BitmapPool.getDefault().release(mCachedPrefix);
+            mCachedPrefix = null;
+        }
+        mCachedLayers = Collections.emptyList();
+    }
+}
@@ -0,0 +1,441 @@
+package ja.burhanrashid52.photoeditor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Apply every {@link PhotoFilter} and {@link LutFilter} on the CPU to unpremultiplied ARGB pixels,
+ * as returned by <code>Bitmap.getPixels</code>. It is the fallback when no GL context is available
+ * and the reference the GL output can be compared with. It is plain Java so it also runs on the JVM.
+ * </p>
+ * <p>
+ * The image is split into bands of rows which are filtered in parallel, the loops over the pixels
+ * don't allocate. The filters follow the snippets of {@link ShaderFilterRenderer}, so they
+ * approximate the parameters {@link ImageFilterView} uses for the effect framework.
+ * {@link PhotoFilter#AUTO_FIX}, which has no shader, stretches the levels between the 1% and the
+ * 99% luma percentile half way.
+ * </p>
+ * <br></br>
+ * <b>Note :</b> Filters which move pixels or read neighbours need a destination which is not the
+ * source, the others can filter in place.
+ */
+public class CpuFilterEngine {
+
+    private static final float LUMA_RED = 0.299f;
+    private static final float LUMA_GREEN = 0.587f;
+    private static final float LUMA_BLUE = 0.114f;
+    // Rows per band below which splitting costs more than it saves
+    private static final int MIN_BAND_ROWS = 16;
+
+    private static CpuFilterEngine sDefault;
+
+    private final ExecutorService mExecutor;
+    private final int mParallelism;
+
+    /**
+     * @param executor    executor which runs the bands
+     * @param parallelism number of bands an image is split into at most
+     */
+    public CpuFilterEngine(ExecutorService executor, int parallelism) {
+        mExecutor = executor;
+        mParallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @return engine shared by the editors with one thread per core
+     */
+    public static synchronized CpuFilterEngine getDefault() {
+        if (sDefault == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CpuFilterEngine");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            sDefault = new CpuFilterEngine(executor, threads);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Apply a preset
+     *
+     * @param source      pixels to filter, row by row
+     * @param destination receives the filtered pixels, may be the source for filters which only
+     *                    look at one pixel, see {@link #isPixelLocal(PhotoFilter)}
+     * @param width       width of the image
+     * @param height      height of the image
+     * @param filter      preset to apply
+     */
+    public void apply(final int[] source, final int[] destination, final int width, final int height,
+                      final PhotoFilter filter) {
+        if (source.length < width * height || destination.length < width * height) {
+            throw new IllegalArgumentException("Buffers are smaller than " + width + "x" + height);
+        }
+        if (source == destination && !isPixelLocal(filter)) {
+            throw new IllegalArgumentException(filter + " can't filter in place");
+        }
+        final FilterMatrix matrix = FilterMatrix.forFilter(filter);
+        final float[] levels = filter == PhotoFilter.AUTO_FIX ? findLevels(source, width, height) : null;
+        runInBands(height, new Band() {
+            @Override
+            public void run(int top, int bottom) {
+                if (matrix != null) {
+                    if (source != destination) {
+                        System.arraycopy(source, top * width, destination, top * width, (bottom - top) * width);
+                    }
+                    matrix.apply(destination, top * width, (bottom - top) * width);
+                } else {
+                    applyBand(filter, source, destination, width, height, top, bottom, levels);
+                }
+            }
+        });
+    }
+
+    /**
+     * Apply a look in place, see {@link LutFilter#apply(int[], int, int)}
+     */
+    public void apply(final int[] pixels, final int width, int height, final LutFilter lutFilter) {
+        runInBands(height, new Band() {
+            @Override
+            public void run(int top, int bottom) {
+                lutFilter.apply(pixels, top * width, (bottom - top) * width);
+            }
+        });
+    }
+
+    /**
+     * Apply the stages one after the other
+     *
+     * @param pixels  pixels which are filtered in place
+     * @param scratch buffer of the same size for the presets which can't filter in place
+     * @param stages  {@link PhotoFilter} and {@link LutFilter} stages in the order they apply
+     */
+    public void apply(int[] pixels, int[] scratch, int width, int height, List<?> stages) {
+        FilterMatrix folded = null;
+        for (Object stage : stages) {
+            if (stage instanceof LutFilter) {
+                applyMatrix(pixels, width, height, folded);
+                folded = null;
+                apply(pixels, width, height, (LutFilter) stage);
+                continue;
+            }
+            PhotoFilter filter = (PhotoFilter) stage;
+            FilterMatrix matrix = FilterMatrix.forFilter(filter);
+            if (matrix != null) {
+                // Consecutive matrices cost one pass unless the clamp in between matters
+                if (folded != null && !folded.isInRange()) {
+                    applyMatrix(pixels, width, height, folded);
+                    folded = null;
+                }
+                folded = folded == null ? matrix : folded.then(matrix);
+                continue;
+            }
+            applyMatrix(pixels, width, height, folded);
+            folded = null;
+            if (isPixelLocal(filter)) {
+                apply(pixels, pixels, width, height, filter);
+            } else {
+                apply(pixels, scratch, width, height, filter);
+                System.arraycopy(scratch, 0, pixels, 0, width * height);
+            }
+        }
+        applyMatrix(pixels, width, height, folded);
+    }
+
+    /**
+     * @return true if the stages are all presets or looks, which this engine can apply
+     */
+    public static boolean isSupported(List<?> stages) {
+        for (Object stage : stages) {
+            if (!(stage instanceof PhotoFilter) && !(stage instanceof LutFilter)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the preset only looks at the pixel it filters and can filter in place
+     */
+    public static boolean isPixelLocal(PhotoFilter filter) {
+        switch (filter) {
+            case FISH_EYE:
+            case FLIP_HORIZONTAL:
+            case FLIP_VERTICAL:
+            case ROTATE:
+            case SHARPEN:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private void applyMatrix(final int[] pixels, final int width, int height, final FilterMatrix matrix) {
+        if (matrix == null) {
+            return;
+        }
+        runInBands(height, new Band() {
+            @Override
+            public void run(int top, int bottom) {
+                matrix.apply(pixels, top * width, (bottom - top) * width);
+            }
+        });
+    }
+
+    /**
+     * Rows from <code>top</code> to <code>bottom</code> exclusive
+     */
+    private interface Band {
+        void run(int top, int bottom);
+    }
+
+    private void runInBands(int height, final Band band) {
+        int bands = Math.max(1, Math.min(mParallelism, height / MIN_BAND_ROWS));
+        if (bands == 1 || mExecutor == null) {
+            band.run(0, height);
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<>(bands);
+        for (int i = 0; i < bands; i++) {
+            final int top = height * i / bands;
+            final int bottom = height * (i + 1) / bands;
+            futures.add(mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    band.run(top, bottom);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while filtering", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to filter", e.getCause());
+        }
+    }
+
+    private static void applyBand(PhotoFilter filter, int[] src, int[] dst, int width, int height,
+                                  int top, int bottom, float[] levels) {
+        float texelX = 1f / width;
+        float texelY = 1f / height;
+        for (int y = top; y < bottom; y++) {
+            float coordY = (y + 0.5f) * texelY;
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                float coordX = (x + 0.5f) * texelX;
+                switch (filter) {
+                    case FLIP_HORIZONTAL:
+                        dst[row + x] = src[row + width - 1 - x];
+                        continue;
+                    case FLIP_VERTICAL:
+                        dst[row + x] = src[(height - 1 - y) * width + x];
+                        continue;
+                    case ROTATE:
+                        dst[row + x] = src[(height - 1 - y) * width + width - 1 - x];
+                        continue;
+                    case FISH_EYE: {
+                        float dx = coordX - 0.5f;
+                        float dy = coordY - 0.5f;
+                        float scale = 0.5f + 0.5f * (float) Math.sqrt(dx * dx + dy * dy) * 1.4142f;
+                        dst[row + x] = sampleBilinear(src, width, height,
+                                (0.5f + dx * scale) * width - 0.5f, (0.5f + dy * scale) * height - 0.5f);
+                        continue;
+                    }
+                    default:
+                        break;
+                }
+                int pixel = src[row + x];
+                float r = ((pixel >> 16) & 0xff) / 255f;
+                float g = ((pixel >> 8) & 0xff) / 255f;
+                float b = (pixel & 0xff) / 255f;
+                float luma = LUMA_RED * r + LUMA_GREEN * g + LUMA_BLUE * b;
+                switch (filter) {
+                    case AUTO_FIX:
+                        r += 0.5f * ((r - levels[0]) / levels[1] - r);
+                        g += 0.5f * ((g - levels[0]) / levels[1] - g);
+                        b += 0.5f * ((b - levels[0]) / levels[1] - b);
+                        break;
+                    case CROSS_PROCESS:
+                        r = r * r * (3f - 2f * r);
+                        g = g + 0.5f * (g * g * (3f - 2f * g) - g);
+                        b = b * 0.75f + 0.125f;
+                        break;
+                    case DOCUMENTARY: {
+                        float shade = 1f - 0.5f * smoothstep(0.3f, 0.8f, distanceToCenter(coordX, coordY));
+                        r = (luma + 0.3f * (r - luma)) * shade;
+                        g = (luma + 0.3f * (g - luma)) * shade;
+                        b = (luma + 0.3f * (b - luma)) * shade;
+                        break;
+                    }
+                    case FILL_LIGHT: {
+                        float exponent = 1f - 0.4f * 0.8f * (1f - luma);
+                        r = (float) Math.pow(r, exponent);
+                        g = (float) Math.pow(g, exponent);
+                        b = (float) Math.pow(b, exponent);
+                        break;
+                    }
+                    case GRAIN: {
+                        double hash = Math.sin((x + 0.5) * 12.9898 + (y + 0.5) * 78.233) * 43758.5453;
+                        float noise = 0.1f * ((float) (hash - Math.floor(hash)) - 0.5f);
+                        r += noise;
+                        g += noise;
+                        b += noise;
+                        break;
+                    }
+                    case LOMISH: {
+                        float shade = 1f - 0.7f * smoothstep(0.25f, 0.75f, distanceToCenter(coordX, coordY));
+                        r = ((luma + 1.4f * (r - luma) - 0.5f) * 1.2f + 0.5f) * shade;
+                        g = ((luma + 1.4f * (g - luma) - 0.5f) * 1.2f + 0.5f) * shade;
+                        b = ((luma + 1.4f * (b - luma) - 0.5f) * 1.2f + 0.5f) * shade;
+                        break;
+                    }
+                    case POSTERIZE:
+                        r = (float) Math.floor(r * 7f + 0.5f) / 7f;
+                        g = (float) Math.floor(g * 7f + 0.5f) / 7f;
+                        b = (float) Math.floor(b * 7f + 0.5f) / 7f;
+                        break;
+                    case SHARPEN: {
+                        int left = src[row + Math.max(0, x - 1)];
+                        int right = src[row + Math.min(width - 1, x + 1)];
+                        int up = src[Math.max(0, y - 1) * width + x];
+                        int down = src[Math.min(height - 1, y + 1) * width + x];
+                        r += 0.5f * (4f * r - (channel(left, 16) + channel(right, 16) + channel(up, 16) + channel(down, 16)));
+                        g += 0.5f * (4f * g - (channel(left, 8) + channel(right, 8) + channel(up, 8) + channel(down, 8)));
+                        b += 0.5f * (4f * b - (channel(left, 0) + channel(right, 0) + channel(up, 0) + channel(down, 0)));
+                        break;
+                    }
+                    case VIGNETTE: {
+                        float shade = 1f - 0.5f * smoothstep(0.3f, 0.75f, distanceToCenter(coordX, coordY));
+                        r *= shade;
+                        g *= shade;
+                        b *= shade;
+                        break;
+                    }
+                    default:
+                        // NONE, the matrix presets are applied by FilterMatrix
+                        break;
+                }
+                dst[row + x] = (pixel & 0xff000000) | (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+            }
+        }
+    }
+
+    /**
+     * @return black point and range of the luma between the 1% and the 99% percentile
+     */
+    private float[] findLevels(final int[] pixels, final int width, int height) {
+        final int[][] histograms = new int[Math.max(1, Math.min(mParallelism, height / MIN_BAND_ROWS))][];
+        final int bandCount = histograms.length;
+        runInBands(height, new Band() {
+            @Override
+            public void run(int top, int bottom) {
+                int[] histogram = new int[256];
+                for (int i = top * width; i < bottom * width; i++) {
+                    int pixel = pixels[i];
+                    int luma = (299 * ((pixel >> 16) & 0xff) + 587 * ((pixel >> 8) & 0xff) + 114 * (pixel & 0xff)) / 1000;
+                    histogram[luma]++;
+                }
+                synchronized (histograms) {
+                    for (int i = 0; i < bandCount; i++) {
+                        if (histograms[i] == null) {
+                            histograms[i] = histogram;
+                            break;
+                        }
+                    }
+                }
+            }
+        });
+        int[] total = new int[256];
+        for (int[] histogram : histograms) {
+            if (histogram != null) {
+                for (int i = 0; i < 256; i++) {
+                    total[i] += histogram[i];
+                }
+            }
+        }
+        long count = (long) width * height;
+        int low = percentile(total, count / 100);
+        int high = percentile(total, count - count / 100 - 1);
+        if (high <= low) {
+            // A flat image has no levels to stretch
+            return new float[]{0f, 1f};
+        }
+        return new float[]{low / 255f, (high - low) / 255f};
+    }
+
+    private static int percentile(int[] histogram, long rank) {
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen > rank) {
+                return i;
+            }
+        }
+        return histogram.length - 1;
+    }
+
+    private static int sampleBilinear(int[] src, int width, int height, float x, float y) {
+        x = Math.max(0f, Math.min(width - 1f, x));
+        y = Math.max(0f, Math.min(height - 1f, y));
+        int x0 = (int) x;
+        int y0 = (int) y;
+        int x1 = Math.min(width - 1, x0 + 1);
+        int y1 = Math.min(height - 1, y0 + 1);
+        float fx = x - x0;
+        float fy = y - y0;
+        int topLeft = src[y0 * width + x0];
+        int topRight = src[y0 * width + x1];
+        int bottomLeft = src[y1 * width + x0];
+        int bottomRight = src[y1 * width + x1];
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            float top = lerp((topLeft >>> shift) & 0xff, (topRight >>> shift) & 0xff, fx);
+            float bottom = lerp((bottomLeft >>> shift) & 0xff, (bottomRight >>> shift) & 0xff, fx);
+            result |= Math.round(lerp(top, bottom, fy)) << shift;
+        }
+        return result;
+    }
+
+    private static float lerp(float from, float to, float amount) {
+        return from + (to - from) * amount;
+    }
+
+    private static float channel(int pixel, int shift) {
+        return ((pixel >> shift) & 0xff) / 255f;
+    }
+
+    private static float distanceToCenter(float x, float y) {
+        float dx = x - 0.5f;
+        float dy = y - 0.5f;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private static float smoothstep(float edge0, float edge1, float x) {
+        float t = Math.max(0f, Math.min(1f, (x - edge0) / (edge1 - edge0)));
+        return t * t * (3f - 2f * t);
+    }
+
+    private static int toByte(float value) {
+        return value <= 0f ? 0 : value >= 1f ? 255 : Math.round(value * 255f);
+    }
+}
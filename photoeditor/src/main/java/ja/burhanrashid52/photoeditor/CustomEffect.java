@@ -3,6 +3,7 @@ package ja.burhanrashid52.photoeditor;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -37,6 +38,48 @@ public class CustomEffect {
         return parametersMap;
     }
 
+    /**
+     * Effects with the same name and parameters are equal, so an unchanged stage of an
+     * {@link EffectChain} is not applied again
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CustomEffect)) {
+            return false;
+        }
+        CustomEffect other = (CustomEffect) o;
+        if (!mEffectName.equals(other.mEffectName) || parametersMap.size() != other.parametersMap.size()) {
+            return false;
+        }
+        for (Map.Entry<String, Object> parameter : parametersMap.entrySet()) {
+            String name = parameter.getKey();
+            if (!other.parametersMap.containsKey(name)
+                    || !isEqual(parameter.getValue(), other.parametersMap.get(name))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int parametersHash = 0;
+        for (Map.Entry<String, Object> parameter : parametersMap.entrySet()) {
+            // Order independent like Map.hashCode(), arrays hash by their content
+            parametersHash += parameter.getKey().hashCode()
+                    ^ Arrays.deepHashCode(new Object[]{parameter.getValue()});
+        }
+        return 31 * mEffectName.hashCode() + parametersHash;
+    }
+
+    private static boolean isEqual(Object first, Object second) {
+        // Compares the content of array values like float[] as well
+        return Arrays.deepEquals(new Object[]{first}, new Object[]{second});
+    }
+
     /**
      * Set customize effect to image using this builder class
      */
@@ -0,0 +1,123 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.media.effect.Effect;
+import android.media.effect.EffectContext;
+import android.media.effect.EffectFactory;
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * <p>
+ * Cache of the {@link Effect} instances created in one {@link EffectContext}. Effects are keyed by
+ * their name and the names of their parameters, so switching back to a filter reuses its effect
+ * and only the parameter values which changed since it was last used are pushed to it.
+ * </p>
+ * <p>
+ * The parameter names are part of the key because an effect keeps the parameters which are not
+ * set again, e.g. a flip which was horizontal can't be reused for a vertical flip.
+ * </p>
+ * <br></br>
+ * <b>Note :</b> All methods must be called on the GL thread of the context.
+ */
+class EffectCache {
+
+    private static final int MAX_EFFECTS = 8;
+
+    private final EffectFactory mEffectFactory;
+    private final LinkedHashMap<String, CachedEffect> mEffects =
+            new LinkedHashMap<String, CachedEffect>(MAX_EFFECTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedEffect> eldest) {
+                    if (size() > MAX_EFFECTS) {
+                        eldest.getValue().effect.release();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+    private int mCreatedCount;
+    private int mParameterUpdateCount;
+
+    /**
+     * An effect with the parameter values which were last pushed to it
+     */
+    private static class CachedEffect {
+        final Effect effect;
+        final Map<String, Object> parameters = new HashMap<>();
+
+        CachedEffect(Effect effect) {
+            this.effect = effect;
+        }
+    }
+
+    EffectCache(@NonNull EffectContext effectContext) {
+        mEffectFactory = effectContext.getFactory();
+    }
+
+    /**
+     * @param effectName name from {@link EffectFactory#createEffect(String)}
+     * @param parameters parameters for {@link Effect#setParameter(String, Object)}
+     * @return cached effect with the given parameters, created on first use
+     */
+    @NonNull
+    Effect obtain(@NonNull String effectName, @NonNull Map<String, Object> parameters) {
+        String key = effectName + new TreeSet<>(parameters.keySet());
+        CachedEffect cached = mEffects.get(key);
+        if (cached == null) {
+            cached = new CachedEffect(mEffectFactory.createEffect(effectName));
+            mEffects.put(key, cached);
+            mCreatedCount++;
+        }
+        for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+            String name = parameter.getKey();
+            Object value = parameter.getValue();
+            if (!cached.parameters.containsKey(name) || !isEqual(cached.parameters.get(name), value)) {
+                cached.effect.setParameter(name, value);
+                cached.parameters.put(name, value);
+                mParameterUpdateCount++;
+            }
+        }
+        return cached.effect;
+    }
+
+    /**
+     * @return number of effects created by this cache
+     */
+    int getCreatedCount() {
+        return mCreatedCount;
+    }
+
+    /**
+     * @return number of parameter values pushed to the effects
+     */
+    int getParameterUpdateCount() {
+        return mParameterUpdateCount;
+    }
+
+    /**
+     * Release all the effects, the context must still be current
+     */
+    void release() {
+        for (CachedEffect cached : mEffects.values()) {
+            cached.effect.release();
+        }
+        mEffects.clear();
+    }
+
+    /**
+     * Forget the effects without releasing them after their GL context was lost
+     */
+    void abandon() {
+        mEffects.clear();
+    }
+
+    private static boolean isEqual(Object first, Object second) {
+        // Compares the content of array values like float[] as well
+        return Arrays.deepEquals(new Object[]{first}, new Object[]{second});
+    }
+}
@@ -0,0 +1,95 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * Several filters applied one after the other, e.g. {@link PhotoFilter#CONTRAST} followed by
+ * {@link PhotoFilter#VIGNETTE} and {@link PhotoFilter#GRAIN}. Define your chain using
+ * {@link Builder} class.
+ * </p>
+ * <p>
+ * The output of every stage is kept on the GPU, so setting a chain which only differs from the
+ * current one from stage k on only runs stages k to N again.
+ * </p>
+ *
+ * @see PhotoEditor#setFilterEffect(EffectChain)
+ */
+public class EffectChain {
+
+    private final List<Object> mStages;
+
+    private EffectChain(Builder builder) {
+        mStages = Collections.unmodifiableList(new ArrayList<>(builder.mStages));
+    }
+
+    /**
+     * @return number of stages in the chain
+     */
+    public int size() {
+        return mStages.size();
+    }
+
+    /**
+     * @return stages in the order they are applied, every stage is a {@link PhotoFilter}, a
+     * {@link LutFilter} or a {@link CustomEffect}
+     */
+    public List<Object> getStages() {
+        return mStages;
+    }
+
+    /**
+     * Build the chain stage by stage
+     */
+    public static class Builder {
+
+        private final List<Object> mStages = new ArrayList<>();
+
+        /**
+         * Add a pre-defined filter as the next stage, {@link PhotoFilter#NONE} is skipped
+         *
+         * @param filterType type of filter to apply
+         * @return builder instance to add more stages
+         */
+        public Builder addFilter(@NonNull PhotoFilter filterType) {
+            if (filterType != PhotoFilter.NONE) {
+                mStages.add(filterType);
+            }
+            return this;
+        }
+
+        /**
+         * Add a look from a color lookup table as the next stage
+         *
+         * @param lutFilter look loaded with {@link LutFilter#fromCube(String, java.io.InputStream)}
+         *                  or {@link LutFilter#fromStrip(String, android.graphics.Bitmap)}
+         * @return builder instance to add more stages
+         */
+        public Builder addLut(@NonNull LutFilter lutFilter) {
+            mStages.add(lutFilter);
+            return this;
+        }
+
+        /**
+         * Add a custom effect as the next stage
+         *
+         * @param customEffect effect built with {@link CustomEffect.Builder}
+         * @return builder instance to add more stages
+         */
+        public Builder addCustomEffect(@NonNull CustomEffect customEffect) {
+            mStages.add(customEffect);
+            return this;
+        }
+
+        /**
+         * @return instance of the effect chain
+         */
+        public EffectChain build() {
+            return new EffectChain(this);
+        }
+    }
+}
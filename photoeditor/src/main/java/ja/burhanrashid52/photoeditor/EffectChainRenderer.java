@@ -0,0 +1,121 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.media.effect.Effect;
+import android.opengl.GLES20;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Apply a chain of {@link Effect} on the GL thread. Every stage reads the output texture of the
+ * previous stage and writes its own texture, the outputs stay cached between frames. Each stage
+ * is identified by a key, when the chain changes only the stages from the first changed key on
+ * run again.
+ * </p>
+ * <br></br>
+ * <b>Note :</b> All methods must be called on the GL thread. One texture at image size is held per
+ * stage.
+ */
+public class EffectChainRenderer {
+
+    /**
+     * Run a stage which changed
+     */
+    public interface StageRenderer {
+        /**
+         * Render the stage from the input texture into the output texture, e.g. with
+         * {@link Effect#apply(int, int, int, int)}
+         */
+        void renderStage(int stage, int inputTexture, int width, int height, int outputTexture);
+    }
+
+    private int[] mStageTextures = new int[0];
+    private final List<Object> mRenderedKeys = new ArrayList<>();
+    private int mSourceTexture;
+    private int mWidth;
+    private int mHeight;
+    private int mStageRunCount;
+
+    /**
+     * Run the stages which changed since the last call
+     *
+     * @param sourceTexture texture with the unfiltered image
+     * @param width         width of the image
+     * @param height        height of the image
+     * @param stageKeys     one key per stage compared with {@link Object#equals(Object)}
+     * @param stageRenderer renders the stages which have to run
+     * @return texture with the output of the last stage or the source texture if there are none
+     */
+    public int render(int sourceTexture, int width, int height, @NonNull List<?> stageKeys,
+                      @NonNull StageRenderer stageRenderer) {
+        if (sourceTexture != mSourceTexture || width != mWidth || height != mHeight) {
+            invalidate();
+            mSourceTexture = sourceTexture;
+            mWidth = width;
+            mHeight = height;
+        }
+        int stageCount = stageKeys.size();
+        if (stageCount == 0) {
+            return sourceTexture;
+        }
+        int firstChanged = 0;
+        while (firstChanged < stageCount && firstChanged < mRenderedKeys.size()
+                && mRenderedKeys.get(firstChanged).equals(stageKeys.get(firstChanged))) {
+            firstChanged++;
+        }
+        ensureTextures(stageCount);
+        for (int stage = firstChanged; stage < stageCount; stage++) {
+            int input = stage == 0 ? sourceTexture : mStageTextures[stage - 1];
+            stageRenderer.renderStage(stage, input, width, height, mStageTextures[stage]);
+            mStageRunCount++;
+        }
+        mRenderedKeys.clear();
+        mRenderedKeys.addAll(stageKeys);
+        return mStageTextures[stageCount - 1];
+    }
+
+    /**
+     * Run all the stages on the next render, e.g. after the source texture was reloaded
+     */
+    public void invalidate() {
+        mRenderedKeys.clear();
+    }
+
+    /**
+     * @return number of stages which ran, rendering an unchanged chain doesn't run any
+     */
+    public int getStageRunCount() {
+        return mStageRunCount;
+    }
+
+    /**
+     * Delete the stage textures, the context must still be current
+     */
+    public void release() {
+        if (mStageTextures.length > 0) {
+            GLES20.glDeleteTextures(mStageTextures.length, mStageTextures, 0);
+        }
+        abandon();
+    }
+
+    /**
+     * Forget the stage textures without deleting them after their GL context was lost
+     */
+    public void abandon() {
+        mStageTextures = new int[0];
+        mSourceTexture = 0;
+        invalidate();
+    }
+
+    private void ensureTextures(int stageCount) {
+        int existing = mStageTextures.length;
+        if (existing >= stageCount) {
+            return;
+        }
+        mStageTextures = Arrays.copyOf(mStageTextures, stageCount);
+        GLES20.glGenTextures(stageCount - existing, mStageTextures, existing);
+    }
+}
@@ -0,0 +1,202 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Executor which runs the background part of the saves requested on {@link PhotoEditor}. Saves are
+ * ordered by {@link SavePriority}, run in parallel up to a configured limit and the number of
+ * waiting saves is bounded.
+ * </p>
+ * <p>
+ * A single executor can be shared by several {@link PhotoEditor} instances using
+ * {@link PhotoEditor.Builder#setExportExecutor(ExportExecutor)}
+ * </p>
+ */
+public class ExportExecutor {
+
+    private static final int DEFAULT_MAX_CONCURRENT_SAVES = 2;
+    private static final int DEFAULT_MAX_QUEUED_SAVES = 16;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ExportExecutor sDefaultExecutor;
+
+    private final ThreadPoolExecutor mThreadPoolExecutor;
+    private final int mMaxQueuedSaves;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /**
+     * @param maxConcurrentSaves number of saves which can run at the same time
+     * @param maxQueuedSaves     number of saves which can wait for a free thread, further saves
+     *                           fail with {@link RejectedExecutionException}
+     */
+    public ExportExecutor(int maxConcurrentSaves, int maxQueuedSaves) {
+        if (maxConcurrentSaves <= 0) {
+            throw new IllegalArgumentException("maxConcurrentSaves must be larger than zero");
+        }
+        mMaxQueuedSaves = Math.max(0, maxQueuedSaves);
+        mThreadPoolExecutor = new ThreadPoolExecutor(maxConcurrentSaves, maxConcurrentSaves,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ExportThreadFactory());
+        mThreadPoolExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return executor shared by all {@link PhotoEditor} instances which didn't set their own
+     */
+    public static synchronized ExportExecutor getDefault() {
+        if (sDefaultExecutor == null) {
+            sDefaultExecutor = new ExportExecutor(DEFAULT_MAX_CONCURRENT_SAVES, DEFAULT_MAX_QUEUED_SAVES);
+        }
+        return sDefaultExecutor;
+    }
+
+    /**
+     * Stop accepting new saves. Saves which are already queued still run.
+     */
+    public void shutdown() {
+        mThreadPoolExecutor.shutdown();
+    }
+
+    /**
+     * Queue the background work of a save. The callbacks of <code>exportTask</code> are called on
+     * the main thread.
+     */
+    <Result> void execute(@NonNull ExportJob exportJob, @NonNull ExportTask<Result> exportTask) {
+        QueuedTask<Result> queuedTask = new QueuedTask<>(exportJob, exportTask, mSequence.getAndIncrement());
+        if (exportJob.isCancelled()) {
+            queuedTask.deliverFailure(new CancellationException("Save cancelled"));
+            return;
+        }
+        try {
+            synchronized (this) {
+                if (mThreadPoolExecutor.getQueue().size() >= mMaxQueuedSaves
+                        && mThreadPoolExecutor.getActiveCount() >= mThreadPoolExecutor.getMaximumPoolSize()) {
+                    throw new RejectedExecutionException("Too many saves waiting, limit is " + mMaxQueuedSaves);
+                }
+                exportJob.setQueued(this, queuedTask);
+                mThreadPoolExecutor.execute(queuedTask);
+            }
+        } catch (RejectedExecutionException e) {
+            queuedTask.deliverFailure(e);
+        }
+    }
+
+    void remove(QueuedTask<?> queuedTask) {
+        if (mThreadPoolExecutor.remove(queuedTask)) {
+            queuedTask.deliverFailure(new CancellationException("Save cancelled"));
+        }
+    }
+
+    /**
+     * Background part of a save, similar to an {@link android.os.AsyncTask}
+     */
+    abstract static class ExportTask<Result> {
+
+        /**
+         * Runs on an export thread
+         *
+         * @param exportJob handle of the save to check for cancellation between stages
+         */
+        abstract Result doInBackground(@NonNull ExportJob exportJob) throws Exception;
+
+        /**
+         * Runs on the main thread with the result of {@link #doInBackground(ExportJob)}
+         */
+        abstract void onSuccess(Result result);
+
+        /**
+         * Runs on the main thread when the save failed, was rejected or was cancelled
+         */
+        abstract void onFailure(@NonNull Throwable throwable);
+    }
+
+    class QueuedTask<Result> implements Runnable, Comparable<QueuedTask<?>> {
+
+        private final ExportJob mExportJob;
+        private final ExportTask<Result> mExportTask;
+        private final long mSequence;
+
+        QueuedTask(ExportJob exportJob, ExportTask<Result> exportTask, long sequence) {
+            mExportJob = exportJob;
+            mExportTask = exportTask;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if (mExportJob.isCancelled()) {
+                deliverFailure(new CancellationException("Save cancelled"));
+                return;
+            }
+            try {
+                Result result = mExportTask.doInBackground(mExportJob);
+                if (mExportJob.isCancelled()) {
+                    deliverFailure(new CancellationException("Save cancelled"));
+                } else {
+                    deliverSuccess(result);
+                }
+            } catch (Throwable t) {
+                deliverFailure(t);
+            }
+        }
+
+        @Override
+        public int compareTo(@NonNull QueuedTask<?> other) {
+            int priority = other.mExportJob.getPriority().compareTo(mExportJob.getPriority());
+            if (priority != 0) {
+                return priority;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+
+        private void deliverSuccess(final Result result) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mExportJob.setDone();
+                    mExportTask.onSuccess(result);
+                }
+            });
+        }
+
+        void deliverFailure(final Throwable throwable) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mExportJob.setDone();
+                    mExportTask.onFailure(throwable);
+                }
+            });
+        }
+    }
+
+    private static class ExportThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "PhotoEditor-export-" + mCount.getAndIncrement());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ja.burhanrashid52.photoeditor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Handle for a save started with {@link PhotoEditor#saveAsFile(String, SaveSettings, PhotoEditor.OnSaveListener)}
+ * or {@link PhotoEditor#saveAsBitmap(SaveSettings, OnSaveBitmap)} which can be used to cancel it.
+ * A batch save from {@link PhotoEditor#saveAsFiles(List, OnBatchSaveListener)} runs every stage as
+ * a child job which is cancelled together with its parent.
+ * </p>
+ */
+public class ExportJob {
+
+    private final SavePriority mPriority;
+    private volatile boolean isCancelled;
+    private volatile boolean isDone;
+    private ExportExecutor mExecutor;
+    private ExportExecutor.QueuedTask<?> mQueuedTask;
+    private List<ExportJob> mChildren;
+
+    ExportJob(SavePriority priority) {
+        mPriority = priority;
+    }
+
+    /**
+     * Cancel the save. A queued save is removed from the {@link ExportExecutor} and a running
+     * save stops before its next stage. The listener receives
+     * {@link java.util.concurrent.CancellationException} in <code>onFailure</code>.
+     *
+     * @return true if the save was not finished yet
+     */
+    public boolean cancel() {
+        ExportExecutor executor;
+        ExportExecutor.QueuedTask<?> queuedTask;
+        List<ExportJob> children;
+        synchronized (this) {
+            if (isDone || isCancelled) {
+                return false;
+            }
+            isCancelled = true;
+            executor = mExecutor;
+            queuedTask = mQueuedTask;
+            children = mChildren;
+            mChildren = null;
+        }
+        if (executor != null && queuedTask != null) {
+            executor.remove(queuedTask);
+        }
+        if (children != null) {
+            for (ExportJob child : children) {
+                child.cancel();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if {@link #cancel()} was called before the save finished
+     */
+    public boolean isCancelled() {
+        return isCancelled;
+    }
+
+    /**
+     * @return true if the save finished, failed or was cancelled and its listener was called
+     */
+    public boolean isDone() {
+        return isDone;
+    }
+
+    public SavePriority getPriority() {
+        return mPriority;
+    }
+
+    synchronized void setQueued(ExportExecutor executor, ExportExecutor.QueuedTask<?> queuedTask) {
+        mExecutor = executor;
+        mQueuedTask = queuedTask;
+    }
+
+    /**
+     * Create a job for one stage of this save which is cancelled when this job is cancelled
+     */
+    ExportJob createChild(SavePriority priority) {
+        ExportJob child = new ExportJob(priority);
+        synchronized (this) {
+            if (!isCancelled) {
+                if (mChildren == null) {
+                    mChildren = new ArrayList<>();
+                }
+                mChildren.add(child);
+                return child;
+            }
+        }
+        child.cancel();
+        return child;
+    }
+
+    synchronized void setDone() {
+        isDone = true;
+        mExecutor = null;
+        mQueuedTask = null;
+        mChildren = null;
+    }
+}
@@ -0,0 +1,193 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+/**
+ * <p>
+ * Memory budget of a save. Before a save starts the bytes needed for the readback, the composite,
+ * the crop, the resize and the encode buffer are estimated and compared with the memory which is
+ * still available. The first path which fits is chosen:
+ * </p>
+ * <p>
+ * 1. {@link Mode#FULL} at the requested resolution.<br></br>
+ * 2. {@link Mode#TILED} for PNG files, only one band is held in memory.<br></br>
+ * 3. {@link Mode#FULL} at view resolution when source resolution was requested.<br></br>
+ * 4. {@link Mode#DOWNSCALED} with the largest scale which fits.
+ * </p>
+ * <p>
+ * Pixel memory of bitmaps lives in the Java heap before Android O and in the native heap since,
+ * so the budget is the free heap or the available system memory accordingly.
+ * </p>
+ *
+ * @see SaveSettings.Builder#setMemoryPlanningEnabled(boolean)
+ */
+class ExportPlan {
+
+    enum Mode {
+        FULL,
+        TILED,
+        DOWNSCALED
+    }
+
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final float BUDGET_FRACTION = 0.75f;
+    private static final float MIN_SCALE = 0.1f;
+    private static final float FALLBACK_SCALE = 0.5f;
+
+    private final Mode mMode;
+    private final boolean isSourceResolution;
+    private final float mScale;
+    private final boolean isTiledAllowed;
+    private final long mEstimatedBytes;
+
+    private ExportPlan(Mode mode, boolean sourceResolution, float scale, boolean tiledAllowed,
+                       long estimatedBytes) {
+        mMode = mode;
+        isSourceResolution = sourceResolution;
+        mScale = scale;
+        isTiledAllowed = tiledAllowed;
+        mEstimatedBytes = estimatedBytes;
+    }
+
+    /**
+     * Plan a save of the editor
+     *
+     * @param photoEditorView  editor which is saved, must be laid out
+     * @param saveSettings     options of the save
+     * @param cacheEnabled     true if the composite cache holds an extra frame
+     * @param tiledAllowed     false if the save needs the whole image in memory, e.g. as bitmap
+     * @return plan which fits in the available memory as far as it can be estimated
+     */
+    static ExportPlan create(@NonNull PhotoEditorView photoEditorView, @NonNull SaveSettings saveSettings,
+                             boolean cacheEnabled, boolean tiledAllowed) {
+        boolean sourceResolution = saveSettings.isSourceResolutionEnabled();
+        tiledAllowed = tiledAllowed && saveSettings.getCompressFormat() == Bitmap.CompressFormat.PNG;
+        boolean tiledRequested = tiledAllowed && saveSettings.isTiledExportEnabled();
+        if (!saveSettings.isMemoryPlanningEnabled()) {
+            return new ExportPlan(tiledRequested ? Mode.TILED : Mode.FULL, sourceResolution, 1f,
+                    tiledAllowed, 0);
+        }
+
+        long budget = (long) (availableBytes(photoEditorView.getContext()) * BUDGET_FRACTION);
+        long viewPixels = (long) photoEditorView.getWidth() * photoEditorView.getHeight();
+        Bitmap sourceBitmap = ((FilterImageView) photoEditorView.getSource()).getBitmap();
+        long sourcePixels = sourceBitmap != null
+                ? (long) sourceBitmap.getWidth() * sourceBitmap.getHeight() : viewPixels;
+        if (sourceBitmap == null) {
+            sourceResolution = false;
+        }
+
+        long pixels = sourceResolution ? sourcePixels : viewPixels;
+        // The filtered source and the direct buffer it is read through
+        long readback = sourceResolution ? sourcePixels * BYTES_PER_PIXEL * 2 : 0;
+        if (tiledRequested) {
+            long tiled = readback + tiledBytes(photoEditorView, saveSettings, sourceResolution, sourceBitmap);
+            return new ExportPlan(Mode.TILED, sourceResolution, 1f, true, tiled);
+        }
+        long full = readback + fullBytes(pixels, saveSettings, cacheEnabled);
+        if (full <= budget) {
+            return new ExportPlan(Mode.FULL, sourceResolution, 1f, tiledAllowed, full);
+        }
+        if (tiledAllowed) {
+            long tiled = readback + tiledBytes(photoEditorView, saveSettings, sourceResolution, sourceBitmap);
+            if (tiled <= budget) {
+                return new ExportPlan(Mode.TILED, sourceResolution, 1f, true, tiled);
+            }
+        }
+        if (sourceResolution) {
+            long viewFull = fullBytes(viewPixels, saveSettings, cacheEnabled);
+            if (viewFull <= budget) {
+                return new ExportPlan(Mode.FULL, false, 1f, tiledAllowed, viewFull);
+            }
+            // The readback can't be scaled, fall back to the smaller view resolution first
+            sourceResolution = false;
+            pixels = viewPixels;
+            readback = 0;
+            full = viewFull;
+        }
+        float scale = (float) Math.sqrt((double) Math.max(0, budget - readback) / Math.max(1, full - readback));
+        scale = Math.max(MIN_SCALE, Math.min(1f, scale));
+        long scaledPixels = (long) (pixels * scale * scale);
+        return new ExportPlan(Mode.DOWNSCALED, sourceResolution, scale, tiledAllowed,
+                readback + fullBytes(scaledPixels, saveSettings, false));
+    }
+
+    /**
+     * @return a cheaper plan to retry with after an {@link OutOfMemoryError}
+     */
+    ExportPlan fallback() {
+        if (mMode != Mode.TILED && isTiledAllowed) {
+            return new ExportPlan(Mode.TILED, isSourceResolution, 1f, true, mEstimatedBytes);
+        }
+        float scale = Math.max(MIN_SCALE, mScale * FALLBACK_SCALE);
+        return new ExportPlan(Mode.DOWNSCALED, isSourceResolution, scale, false,
+                (long) (mEstimatedBytes * FALLBACK_SCALE * FALLBACK_SCALE));
+    }
+
+    Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * @return true if the composite is rendered at source resolution
+     */
+    boolean isSourceResolution() {
+        return isSourceResolution;
+    }
+
+    /**
+     * @return scale applied to the composite, 1 unless the mode is {@link Mode#DOWNSCALED}
+     */
+    float getScale() {
+        return mScale;
+    }
+
+    long getEstimatedBytes() {
+        return mEstimatedBytes;
+    }
+
+    private static long fullBytes(long pixels, SaveSettings saveSettings, boolean cacheEnabled) {
+        long frame = pixels * BYTES_PER_PIXEL;
+        long bytes = frame;
+        if (cacheEnabled) {
+            bytes += frame;
+        }
+        if (saveSettings.isTransparencyEnabled()) {
+            // Worst case of a crop which only removes a few rows
+            bytes += frame;
+        }
+        if (saveSettings.getMaxDimension() > 0) {
+            bytes += frame;
+        }
+        if (saveSettings.getMaxFileSize() > 0) {
+            // The size search encodes into memory before it is written
+            bytes += frame / 2;
+        }
+        return bytes;
+    }
+
+    private static long tiledBytes(PhotoEditorView photoEditorView, SaveSettings saveSettings,
+                                   boolean sourceResolution, Bitmap sourceBitmap) {
+        int width = sourceResolution ? sourceBitmap.getWidth() : photoEditorView.getWidth();
+        // One band bitmap, its pixel array and the row buffers of the encoder
+        return (long) width * saveSettings.getTileHeight() * BYTES_PER_PIXEL * 2
+                + (long) width * BYTES_PER_PIXEL + 64 * 1024;
+    }
+
+    private static long availableBytes(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            if (activityManager != null) {
+                ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+                activityManager.getMemoryInfo(memoryInfo);
+                return Math.max(0, memoryInfo.availMem - memoryInfo.threshold);
+            }
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+}
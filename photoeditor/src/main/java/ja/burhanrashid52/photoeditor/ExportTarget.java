@@ -0,0 +1,43 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.support.annotation.NonNull;
+
+/**
+ * <p>
+ * One output of a batch save: the path of the file and the {@link SaveSettings} used to resize
+ * and encode it
+ * </p>
+ *
+ * @see PhotoEditor#saveAsFiles(java.util.List, OnBatchSaveListener)
+ */
+public class ExportTarget {
+
+    private final String mImagePath;
+    private final SaveSettings mSaveSettings;
+
+    /**
+     * @param imagePath    path on which image to be saved
+     * @param saveSettings format, quality, size and transparency of this output
+     */
+    public ExportTarget(@NonNull String imagePath, @NonNull SaveSettings saveSettings) {
+        mImagePath = imagePath;
+        mSaveSettings = saveSettings;
+    }
+
+    /**
+     * @param imagePath path on which image to be saved with the default {@link SaveSettings}
+     */
+    public ExportTarget(@NonNull String imagePath) {
+        this(imagePath, new SaveSettings.Builder().build());
+    }
+
+    @NonNull
+    public String getImagePath() {
+        return mImagePath;
+    }
+
+    @NonNull
+    public SaveSettings getSaveSettings() {
+        return mSaveSettings;
+    }
+}
@@ -0,0 +1,302 @@
+package ja.burhanrashid52.photoeditor;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * <p>
+ * 4x5 color matrix in the layout of <code>android.graphics.ColorMatrix</code>, the color of a
+ * pixel is transformed as
+ * </p>
+ * <p>
+ * <code>R' = a*R + b*G + c*B + d*A + e</code> with the offset <code>e</code> in 0..255 units, and
+ * so on for G, B and A.
+ * </p>
+ * <p>
+ * Presets which are a matrix can be multiplied into one, so consecutive presets cost a single
+ * matrix on the GPU or the CPU. It is plain Java without Android classes so the algebra can be
+ * checked on the JVM.
+ * </p>
+ * <br></br>
+ * <b>Note :</b> A folded matrix only clamps the final color while stages applied one by one clamp
+ * between every stage. Only fold the next matrix while {@link #isInRange()}, otherwise the clamp
+ * in between changes the result.
+ */
+final class FilterMatrix {
+
+    private static final float[] LUMA = {0.299f, 0.587f, 0.114f};
+    // Rounding of the float coefficients, e.g. the luma weights sum up to slightly more than 1
+    private static final float RANGE_TOLERANCE = 0.01f;
+
+    private final float[] mArray;
+
+    private FilterMatrix(float[] array) {
+        mArray = array;
+    }
+
+    static FilterMatrix identity() {
+        return scale(1f, 1f, 1f);
+    }
+
+    /**
+     * @return matrix which multiplies the color channels
+     */
+    static FilterMatrix scale(float red, float green, float blue) {
+        return new FilterMatrix(new float[]{
+                red, 0, 0, 0, 0,
+                0, green, 0, 0, 0,
+                0, 0, blue, 0, 0,
+                0, 0, 0, 1, 0
+        });
+    }
+
+    /**
+     * @return matrix which scales the color channels around the middle gray
+     */
+    static FilterMatrix contrast(float contrast) {
+        float offset = (0.5f - 0.5f * contrast) * 255;
+        return new FilterMatrix(new float[]{
+                contrast, 0, 0, 0, offset,
+                0, contrast, 0, 0, offset,
+                0, 0, contrast, 0, offset,
+                0, 0, 0, 1, 0
+        });
+    }
+
+    /**
+     * @return matrix which maps <code>black</code> to 0 and <code>white</code> to 1
+     */
+    static FilterMatrix levels(float black, float white) {
+        FilterMatrix matrix = contrast(1f / (white - black));
+        float offset = -black / (white - black) * 255;
+        matrix.mArray[4] = offset;
+        matrix.mArray[9] = offset;
+        matrix.mArray[14] = offset;
+        return matrix;
+    }
+
+    /**
+     * @return matrix which moves the colors away from their luma, 0 is gray and 1 keeps them
+     */
+    static FilterMatrix saturation(float saturation) {
+        float[] array = new float[20];
+        for (int row = 0; row < 3; row++) {
+            for (int column = 0; column < 3; column++) {
+                array[row * 5 + column] = (1 - saturation) * LUMA[column] + (row == column ? saturation : 0);
+            }
+        }
+        array[18] = 1;
+        return new FilterMatrix(array);
+    }
+
+    static FilterMatrix grayScale() {
+        return saturation(0f);
+    }
+
+    /**
+     * @return matrix which flips the color channels and keeps the alpha
+     */
+    static FilterMatrix negative() {
+        return new FilterMatrix(new float[]{
+                -1, 0, 0, 0, 255,
+                0, -1, 0, 0, 255,
+                0, 0, -1, 0, 255,
+                0, 0, 0, 1, 0
+        });
+    }
+
+    static FilterMatrix sepia() {
+        return new FilterMatrix(new float[]{
+                0.393f, 0.769f, 0.189f, 0, 0,
+                0.349f, 0.686f, 0.168f, 0, 0,
+                0.272f, 0.534f, 0.131f, 0, 0,
+                0, 0, 0, 1, 0
+        });
+    }
+
+    /**
+     * @return matrix which adds a value in 0..255 units to every color channel
+     */
+    static FilterMatrix offset(float red, float green, float blue) {
+        FilterMatrix matrix = identity();
+        matrix.mArray[4] = red;
+        matrix.mArray[9] = green;
+        matrix.mArray[14] = blue;
+        return matrix;
+    }
+
+    /**
+     * @return matrix which maps the luma from the <code>shadow</code> to the <code>highlight</code>
+     * color, both as RGB in 0..1
+     */
+    static FilterMatrix duoTone(float[] highlight, float[] shadow) {
+        float[] array = new float[20];
+        for (int row = 0; row < 3; row++) {
+            for (int column = 0; column < 3; column++) {
+                array[row * 5 + column] = (highlight[row] - shadow[row]) * LUMA[column];
+            }
+            array[row * 5 + 4] = shadow[row] * 255;
+        }
+        array[18] = 1;
+        return new FilterMatrix(array);
+    }
+
+    /**
+     * Matrix of a preset with the parameters {@link ImageFilterView} uses
+     *
+     * @return matrix of the preset or null if the preset is not a color matrix
+     */
+    static FilterMatrix forFilter(PhotoFilter filter) {
+        switch (filter) {
+            case BLACK_WHITE:
+                return levels(0.1f, 0.7f);
+            case BRIGHTNESS:
+                return scale(2f, 2f, 2f);
+            case CONTRAST:
+                return contrast(1.4f);
+            case DUE_TONE:
+                // Color.YELLOW for the highlights and Color.DKGRAY for the shadows
+                return duoTone(new float[]{1f, 1f, 0f}, new float[]{0x44 / 255f, 0x44 / 255f, 0x44 / 255f});
+            case GRAY_SCALE:
+                return grayScale();
+            case NEGATIVE:
+                return negative();
+            case SATURATE:
+                return saturation(1.5f);
+            case SEPIA:
+                return sepia();
+            case TEMPERATURE:
+                return offset(0.08f * 255, 0, -0.08f * 255);
+            case TINT:
+                // Half way to the color multiplied with Color.MAGENTA
+                return scale(1f, 0.5f, 1f);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return matrix which applies this matrix first and then <code>next</code>, without the clamp
+     * in between
+     */
+    FilterMatrix then(FilterMatrix next) {
+        float[] a = next.mArray;
+        float[] b = mArray;
+        float[] result = new float[20];
+        for (int row = 0; row < 4; row++) {
+            for (int column = 0; column < 5; column++) {
+                float sum = column == 4 ? a[row * 5 + 4] : 0;
+                for (int k = 0; k < 4; k++) {
+                    sum += a[row * 5 + k] * b[k * 5 + column];
+                }
+                result[row * 5 + column] = sum;
+            }
+        }
+        return new FilterMatrix(result);
+    }
+
+    /**
+     * Check if the result of this matrix stays in 0..255 for every color in 0..255, the bounds of
+     * a channel are its offset plus the positive respectively negative coefficients times 255.
+     *
+     * @return true if clamping the result does nothing, so the next matrix can be folded with
+     * {@link #then(FilterMatrix)}
+     */
+    boolean isInRange() {
+        for (int row = 0; row < 4; row++) {
+            float min = mArray[row * 5 + 4];
+            float max = min;
+            for (int k = 0; k < 4; k++) {
+                float coefficient = mArray[row * 5 + k] * 255;
+                if (coefficient < 0) {
+                    min += coefficient;
+                } else {
+                    max += coefficient;
+                }
+            }
+            if (min < -RANGE_TOLERANCE || max > 255 + RANGE_TOLERANCE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return copy of the 20 values, e.g. for <code>ColorMatrixColorFilter</code>
+     */
+    float[] getArray() {
+        return Arrays.copyOf(mArray, mArray.length);
+    }
+
+    /**
+     * Transform a color without clamping
+     *
+     * @param rgba red, green, blue and alpha in 0..255
+     * @return transformed red, green, blue and alpha
+     */
+    float[] apply(float[] rgba) {
+        float[] result = new float[4];
+        for (int row = 0; row < 4; row++) {
+            float sum = mArray[row * 5 + 4];
+            for (int k = 0; k < 4; k++) {
+                sum += mArray[row * 5 + k] * rgba[k];
+            }
+            result[row] = sum;
+        }
+        return result;
+    }
+
+    /**
+     * Transform unpremultiplied ARGB pixels like <code>Bitmap.getPixels</code> returns in place,
+     * every channel is clamped to 0..255
+     */
+    void apply(int[] pixels, int offset, int length) {
+        float[] m = mArray;
+        for (int i = offset; i < offset + length; i++) {
+            int pixel = pixels[i];
+            float a = pixel >>> 24;
+            float r = (pixel >> 16) & 0xff;
+            float g = (pixel >> 8) & 0xff;
+            float b = pixel & 0xff;
+            int red = clamp(m[0] * r + m[1] * g + m[2] * b + m[3] * a + m[4]);
+            int green = clamp(m[5] * r + m[6] * g + m[7] * b + m[8] * a + m[9]);
+            int blue = clamp(m[10] * r + m[11] * g + m[12] * b + m[13] * a + m[14]);
+            int alpha = clamp(m[15] * r + m[16] * g + m[17] * b + m[18] * a + m[19]);
+            pixels[i] = (alpha << 24) | (red << 16) | (green << 8) | blue;
+        }
+    }
+
+    /**
+     * @return GLSL statements which transform <code>color</code> with channels in 0..1
+     */
+    String toGlsl() {
+        StringBuilder matrix = new StringBuilder("mat4(");
+        // GLSL matrices are given column by column
+        for (int column = 0; column < 4; column++) {
+            for (int row = 0; row < 4; row++) {
+                matrix.append(format(mArray[row * 5 + column])).append(column == 3 && row == 3 ? ")" : ", ");
+            }
+        }
+        return "  color = clamp(" + matrix + " * color + vec4("
+                + format(mArray[4] / 255) + ", " + format(mArray[9] / 255) + ", "
+                + format(mArray[14] / 255) + ", " + format(mArray[19] / 255) + "), 0.0, 1.0);\n";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof FilterMatrix && Arrays.equals(mArray, ((FilterMatrix) o).mArray);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mArray);
+    }
+
+    private static int clamp(float value) {
+        return value <= 0 ? 0 : value >= 255 ? 255 : Math.round(value);
+    }
+
+    private static String format(float value) {
+        return String.format(Locale.US, "%.6f", value);
+    }
+}
@@ -18,8 +18,28 @@ package ja.burhanrashid52.photoeditor;
 
 import android.opengl.GLES20;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
 public class GLToolbox {
 
+
+    // Linked programs of every share group, keyed by the sources of their shaders
+    private static final Map<Object, Map<String, CachedProgram>> sPrograms = new HashMap<>();
+
+    /**
+     * A linked program with the number of users which obtained it
+     */
+    private static class CachedProgram {
+        final int id;
+        int refCount;
+
+        CachedProgram(int id) {
+            this.id = id;
+        }
+    }
+
     private static int loadShader(int shaderType, String source) {
         int shader = GLES20.glCreateShader(shaderType);
         if (shader == 0) {
@@ -86,6 +106,113 @@ public class GLToolbox {
         }
     }
 
+    /**
+     * Like {@link #createProgram(String, String)} but a program with the same sources which was
+     * already linked in the share group of the current context is reused. Hand the program back
+     * with {@link #releaseProgram(int)} instead of deleting it.
+     *
+     * @return linked program, it stays valid until every user released it
+     */
+    public static int obtainProgram(String vertexSource, String fragmentSource) {
+        Object group = SharedEGLContextFactory.getShareGroup();
+        String key = vertexSource + '\0' + fragmentSource;
+        synchronized (sPrograms) {
+            CachedProgram cached = getPrograms(group).get(key);
+            if (cached != null) {
+                cached.refCount++;
+                return cached.id;
+            }
+        }
+        // Link outside the lock, views on other GL threads keep rendering meanwhile
+        int program = createProgram(vertexSource, fragmentSource);
+        synchronized (sPrograms) {
+            Map<String, CachedProgram> programs = getPrograms(group);
+            CachedProgram cached = programs.get(key);
+            if (cached != null) {
+                // Another thread of the group linked the same sources first
+                GLES20.glDeleteProgram(program);
+            } else {
+                cached = new CachedProgram(program);
+                programs.put(key, cached);
+            }
+            cached.refCount++;
+            return cached.id;
+        }
+    }
+
+    /**
+     * Hand back a program from {@link #obtainProgram(String, String)}, it is deleted once the last
+     * user released it
+     */
+    public static void releaseProgram(int program) {
+        Object group = SharedEGLContextFactory.getShareGroup();
+        synchronized (sPrograms) {
+            Map<String, CachedProgram> programs = sPrograms.get(group);
+            if (programs == null) {
+                return;
+            }
+            Iterator<CachedProgram> iterator = programs.values().iterator();
+            while (iterator.hasNext()) {
+                CachedProgram cached = iterator.next();
+                if (cached.id == program) {
+                    if (--cached.refCount <= 0) {
+                        iterator.remove();
+                        GLES20.glDeleteProgram(program);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Link the programs of the filters and create the effects of the presets on a background
+     * thread, before the first {@link ImageFilterView} needs them. The programs stay cached for
+     * the views, which share their context with the prewarm context. The effects can't be shared
+     * between contexts, creating them once loads and compiles the effect framework ahead of time.
+     * <br></br>
+     * <b>Note :</b> Call it early, e.g. when the screen before the editor is shown. Calling it
+     * more than once is harmless, the cached programs are not linked again.
+     */
+    public static void prewarm() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SharedEGLContextFactory.runInSharedContext(new Runnable() {
+                    @Override
+                    public void run() {
+                        // The prewarm keeps its reference, the programs outlive the views
+                        obtainProgram(TextureRenderer.VERTEX_SHADER, TextureRenderer.FRAGMENT_SHADER);
+                        for (String fragmentShader : ShaderFilterRenderer.getPresetFragmentShaders()) {
+                            obtainProgram(ShaderFilterRenderer.VERTEX_SHADER, fragmentShader);
+                        }
+                        ImageFilterView.prewarmEffects();
+                    }
+                });
+            }
+        }, "GLToolbox-prewarm");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Forget the programs of a share group which was destroyed
+     */
+    static void forgetPrograms(Object group) {
+        synchronized (sPrograms) {
+            sPrograms.remove(group);
+        }
+    }
+
+    private static Map<String, CachedProgram> getPrograms(Object group) {
+        Map<String, CachedProgram> programs = sPrograms.get(group);
+        if (programs == null) {
+            programs = new HashMap<>();
+            sPrograms.put(group, programs);
+        }
+        return programs;
+    }
+
     public static void checkGlError(String op) {
         int error = GLES20.glGetError();
         if (error != GLES20.GL_NO_ERROR) {
@@ -0,0 +1,280 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.graphics.Bitmap;
+import android.media.effect.Effect;
+import android.media.effect.EffectContext;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Apply the {@link PhotoFilter} presets, {@link LutFilter}s, {@link CustomEffect}s and
+ * {@link EffectChain}s to bitmaps without an {@link ImageFilterView} on screen, e.g. to prerender
+ * thumbnails before the editor is opened or to filter images in a background service.
+ * </p>
+ * <p>
+ * Requests are queued and run one after the other on a thread of their own, which owns an EGL
+ * context on a pixel buffer. The context shares its programs with the {@link ImageFilterView}s.
+ * All methods can be called from any thread.
+ * </p>
+ * <br></br>
+ * <b>Note :</b> Filtered bitmaps come from the {@link BitmapPool}, release them there once they
+ * are not used anymore. Sources larger than the GPU allows are scaled down to fit. If no context
+ * can be created the presets and looks are applied by the {@link CpuFilterEngine} instead.
+ */
+public class HeadlessFilterRenderer {
+
+    private static final String TAG = "HeadlessFilterRenderer";
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean isShaderFiltersEnabled = false;
+
+    // Only used on the render thread
+    private SharedEGLContextFactory.PbufferContext mPbufferContext;
+    // EGL doesn't recover on the same device, so a failed context is not created again
+    private boolean isContextFailed = false;
+    private EffectContext mEffectContext;
+    private EffectCache mEffectCache;
+    private final SourceTexture mSourceTexture = new SourceTexture();
+    private final EffectChainRenderer mChainRenderer = new EffectChainRenderer();
+    private final ShaderFilterRenderer mShaderRenderer = new ShaderFilterRenderer();
+
+    public HeadlessFilterRenderer() {
+        // One thread, the context is current on it for the whole lifetime of the renderer
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, TAG);
+            }
+        });
+    }
+
+    /**
+     * Render the presets with fused GLSL shaders instead of the effect framework
+     *
+     * @see ImageFilterView#setShaderFiltersEnabled(boolean)
+     */
+    public void setShaderFiltersEnabled(boolean shaderFiltersEnabled) {
+        isShaderFiltersEnabled = shaderFiltersEnabled;
+    }
+
+    /**
+     * Queue a preset
+     *
+     * @param source   bitmap to filter, it is not modified
+     * @param filter   preset to apply
+     * @param callback optional callback on the main thread
+     * @return future of the filtered bitmap
+     */
+    public Future<Bitmap> filter(@NonNull Bitmap source, @NonNull PhotoFilter filter,
+                                 @Nullable OnSaveBitmap callback) {
+        List<Object> stages = filter == PhotoFilter.NONE
+                ? Collections.<Object>emptyList() : Collections.<Object>singletonList(filter);
+        return submit(source, stages, callback);
+    }
+
+    /**
+     * Queue a look from a color lookup table
+     *
+     * @see #filter(Bitmap, PhotoFilter, OnSaveBitmap)
+     */
+    public Future<Bitmap> filter(@NonNull Bitmap source, @NonNull LutFilter lutFilter,
+                                 @Nullable OnSaveBitmap callback) {
+        return submit(source, Collections.<Object>singletonList(lutFilter), callback);
+    }
+
+    /**
+     * Queue a custom effect
+     *
+     * @see #filter(Bitmap, PhotoFilter, OnSaveBitmap)
+     */
+    public Future<Bitmap> filter(@NonNull Bitmap source, @NonNull CustomEffect customEffect,
+                                 @Nullable OnSaveBitmap callback) {
+        return submit(source, Collections.<Object>singletonList(customEffect), callback);
+    }
+
+    /**
+     * Queue a chain of filters which are applied one after the other
+     *
+     * @see #filter(Bitmap, PhotoFilter, OnSaveBitmap)
+     */
+    public Future<Bitmap> filter(@NonNull Bitmap source, @NonNull EffectChain effectChain,
+                                 @Nullable OnSaveBitmap callback) {
+        return submit(source, effectChain.getStages(), callback);
+    }
+
+    /**
+     * Release the context once the queued requests are done, further requests are rejected with
+     * {@link RejectedExecutionException}
+     */
+    public void release() {
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    releaseContext();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Already released
+            return;
+        }
+        mExecutor.shutdown();
+    }
+
+    private Future<Bitmap> submit(final Bitmap source, final List<Object> stages,
+                                  @Nullable final OnSaveBitmap callback) {
+        return mExecutor.submit(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws Exception {
+                try {
+                    final Bitmap bitmap = render(source, stages);
+                    if (callback != null) {
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onBitmapReady(bitmap);
+                            }
+                        });
+                    }
+                    return bitmap;
+                } catch (final Throwable t) {
+                    if (callback != null) {
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onFailure(t);
+                            }
+                        });
+                    }
+                    if (t instanceof Exception) {
+                        throw (Exception) t;
+                    }
+                    throw (Error) t;
+                }
+            }
+        });
+    }
+
+    private Bitmap render(Bitmap source, final List<Object> stages) {
+        if (!ensureContext()) {
+            if (!CpuFilterEngine.isSupported(stages)) {
+                throw new IllegalStateException("Can't create an EGL context for the headless renderer");
+            }
+            // The presets and looks don't need GL, custom effects do
+            return BitmapUtil.applyFiltersOnCpu(source, stages);
+        }
+        int[] maxTextureSize = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxTextureSize, 0);
+        Bitmap input = BitmapUtil.scaleToMaxDimension(source, maxTextureSize[0]);
+        try {
+            int width = input.getWidth();
+            int height = input.getHeight();
+            if (mSourceTexture.update(input)) {
+                // The texture keeps its name, the cached stages are of the previous source
+                mChainRenderer.invalidate();
+            }
+            final List<?> keys = isShaderFiltersEnabled ? ShaderFilterRenderer.planPasses(stages) : stages;
+            int result = mChainRenderer.render(mSourceTexture.getTextureId(), width, height, keys,
+                    new EffectChainRenderer.StageRenderer() {
+                        @Override
+                        @SuppressWarnings("unchecked")
+                        public void renderStage(int stage, int inputTexture, int width, int height,
+                                                int outputTexture) {
+                            Object key = keys.get(stage);
+                            if (key instanceof List && ShaderFilterRenderer.isShaderPass((List<Object>) key)) {
+                                mShaderRenderer.render((List<Object>) key, inputTexture, width, height, outputTexture);
+                            } else if (key instanceof LutFilter) {
+                                mShaderRenderer.render(Collections.singletonList(key), inputTexture, width, height,
+                                        outputTexture);
+                            } else {
+                                Object effectStage = key instanceof List ? ((List<?>) key).get(0) : key;
+                                obtainEffect(effectStage).apply(inputTexture, width, height, outputTexture);
+                            }
+                        }
+                    });
+            Bitmap bitmap = BitmapUtil.createBitmapFromGlTexture(result, width, height);
+            if (bitmap == null) {
+                throw new IllegalStateException("Failed to read the filtered image");
+            }
+            return bitmap;
+        } finally {
+            if (input != source) {
+                input.recycle();
+            }
+        }
+    }
+
+    private Effect obtainEffect(Object stage) {
+        if (stage instanceof CustomEffect) {
+            CustomEffect customEffect = (CustomEffect) stage;
+            return mEffectCache.obtain(customEffect.getEffectName(), customEffect.getParameters());
+        }
+        return ImageFilterView.obtainEffect(mEffectCache, (PhotoFilter) stage);
+    }
+
+    /**
+     * @return true if the context is current, false if none can be created, which is only tried
+     * once for the lifetime of the renderer
+     */
+    private boolean ensureContext() {
+        if (mPbufferContext != null) {
+            return true;
+        }
+        if (isContextFailed) {
+            return false;
+        }
+        SharedEGLContextFactory.PbufferContext pbufferContext = new SharedEGLContextFactory.PbufferContext();
+        if (!pbufferContext.makeCurrent()) {
+            Log.w(TAG, "No EGL context, presets are filtered on the CPU");
+            isContextFailed = true;
+            return false;
+        }
+        mPbufferContext = pbufferContext;
+        mEffectContext = EffectContext.createWithCurrentGlContext();
+        mEffectCache = new EffectCache(mEffectContext);
+        return true;
+    }
+
+    private void releaseContext() {
+        if (mPbufferContext == null) {
+            return;
+        }
+        try {
+            mEffectCache.release();
+            mEffectContext.release();
+            mShaderRenderer.release();
+            mChainRenderer.release();
+            mSourceTexture.release();
+            BitmapUtil.releaseReadbackBuffer();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to release the GL resources", e);
+        } finally {
+            mPbufferContext.release();
+            mPbufferContext = null;
+        }
+    }
+}
@@ -2,19 +2,26 @@ package ja.burhanrashid52.photoeditor;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Rect;
 import android.media.effect.Effect;
 import android.media.effect.EffectContext;
-import android.media.effect.EffectFactory;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
-import android.opengl.GLUtils;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.SurfaceHolder;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -34,9 +41,17 @@ import static ja.burhanrashid52.photoeditor.PhotoFilter.*;
 public class ImageFilterView extends GLSurfaceView implements GLSurfaceView.Renderer {
 
     private static final String TAG = "ImageFilterView";
+    // Largest tile the filters are replayed on at source resolution, three textures of it are alive
+    private static final int MAX_REPLAY_TILE_SIZE = 2048;
+    // How long detaching waits for the GL thread to release the resources of the view
+    private static final long RELEASE_TIMEOUT_MS = 500;
     protected int[] mTextures = new int[2];
+    protected final SourceTexture mSourceTexture = new SourceTexture();
+    private Rect mSourceDirtyRegion;
     protected EffectContext mEffectContext;
     protected Effect mEffect;
+    private EffectCache mEffectCache;
+    private boolean isEffectChanged = true;
     protected TextureRenderer mTexRenderer = new TextureRenderer();
     protected int mImageWidth;
     protected int mImageHeight;
@@ -44,8 +59,29 @@ public class ImageFilterView extends GLSurfaceView implements GLSurfaceView.Rend
     protected PhotoFilter mCurrentEffect = NONE;
     protected Bitmap mSourceBitmap;
     protected CustomEffect mCustomEffect;
+    protected EffectChain mEffectChain;
+    protected final EffectChainRenderer mChainRenderer = new EffectChainRenderer();
+    protected int mChainResultTexture;
+    private final ShaderFilterRenderer mShaderRenderer = new ShaderFilterRenderer();
+    protected volatile boolean isShaderFiltersEnabled = false;
     protected OnSaveBitmap mOnSaveBitmap;
     protected boolean isSaveImage = false;
+    protected boolean isSaveSourceResolution = false;
+    // Without a surface no frame is drawn, saves are filtered on the CPU then
+    private volatile boolean isSurfaceAvailable = false;
+    // The GL thread exits when the view is detached and starts again when it is attached
+    private boolean isGlThreadStopped = false;
+    // Share group of the context the GL resources of this view were created in
+    private Object mShareGroup;
+    protected final AsyncPixelReader mPixelReader = new AsyncPixelReader();
+    protected volatile boolean isAsyncReadbackEnabled = false;
+    protected volatile boolean isProxyEnabled = false;
+    private Bitmap mProxyBitmap;
+    private Bitmap mProxySource;
+    private int mProxyGenerationId;
+    private int mProxyMaxDimension;
+    private int mViewWidth;
+    private int mViewHeight;
 
     public ImageFilterView(Context context) {
         super(context);
@@ -59,25 +95,173 @@ public class ImageFilterView extends GLSurfaceView implements GLSurfaceView.Rend
 
     private void init() {
         setEGLContextClientVersion(2);
+        // Share the programs linked by other views and by GLToolbox.prewarm()
+        setEGLContextFactory(SharedEGLContextFactory.getInstance());
         setRenderer(this);
         setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
     }
 
+    /**
+     * Draw the bitmap on the next frame. Its pixels are only uploaded again when it is another
+     * bitmap or its {@link Bitmap#getGenerationId()} changed, see {@link SourceTexture}.
+     */
     protected void setSourceBitmap(Bitmap sourceBitmap) {
-       /* if (mSourceBitmap != null && mSourceBitmap.sameAs(sourceBitmap)) {
-            //mCurrentEffect = NONE;
-        }*/
         mSourceBitmap = sourceBitmap;
-        mInitialized = false;
+    }
+
+    /**
+     * Upload only the given region of the source bitmap on the next frame, after its pixels were
+     * changed in place
+     *
+     * @param dirtyRegion pixels which changed in the source bitmap
+     */
+    void invalidateSourceRegion(Rect dirtyRegion) {
+        synchronized (mSourceTexture) {
+            if (mSourceDirtyRegion == null) {
+                mSourceDirtyRegion = new Rect(dirtyRegion);
+            } else {
+                mSourceDirtyRegion.union(dirtyRegion);
+            }
+        }
+        requestRender();
     }
 
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        isSurfaceAvailable = true;
+        Object shareGroup = SharedEGLContextFactory.getShareGroup();
+        if (shareGroup != null && shareGroup == mShareGroup) {
+            // The root of the share group keeps the objects of the previous context alive
+            releaseGlResources();
+        } else {
+            abandonGlResources();
+        }
+        mShareGroup = shareGroup;
+    }
+
+    /**
+     * Forget the textures, effects and pixel buffers after the group of their context is gone
+     */
+    private void abandonGlResources() {
+        mInitialized = false;
+        mSourceTexture.abandon();
+        mPixelReader.abandon();
+        mChainRenderer.abandon();
+        mShaderRenderer.abandon();
+        if (mEffectCache != null) {
+            mEffectCache.abandon();
+            isEffectChanged = true;
+        }
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        isSurfaceAvailable = false;
+        if (!isGlThreadStopped) {
+            // The context is kept but may never be current again, free what this view created
+            // in the share group while it still is
+            releaseOnGlThread();
+        }
+        // Returns once the GL thread stopped drawing
+        super.surfaceDestroyed(holder);
+        savePendingOnCpu();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        isGlThreadStopped = false;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        isSurfaceAvailable = false;
+        // The GL thread exits and destroys the context below, free what this view created in it
+        // while it is still current
+        releaseOnGlThread();
+        isGlThreadStopped = true;
+        super.onDetachedFromWindow();
+        savePendingOnCpu();
+    }
+
+    /**
+     * Run {@link #releaseGlResources()} on the GL thread and wait for it, at most
+     * {@link #RELEASE_TIMEOUT_MS}
+     */
+    private void releaseOnGlThread() {
+        final CountDownLatch released = new CountDownLatch(1);
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    releaseGlResources();
+                } finally {
+                    released.countDown();
+                }
+            }
+        });
+        try {
+            released.await(RELEASE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
+    /**
+     * @return true if a context is current on the calling thread, so
+     * {@link #releaseGlResources()} can delete the objects
+     */
+    protected boolean canReleaseGlResources() {
+        return SharedEGLContextFactory.getShareGroup() != null;
+    }
+
+    /**
+     * Delete the textures, programs, effects and pixel buffers this view created in its GL context.
+     * Runs on the GL thread before the surface is destroyed or the view is detached, everything is
+     * created again on the next frame. Without a current context the names are kept, the next
+     * context of the same share group deletes them in {@link #onSurfaceCreated(GL10, EGLConfig)}.
+     */
+    protected void releaseGlResources() {
+        if (!canReleaseGlResources()) {
+            return;
+        }
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                mPixelReader.release();
+            } else {
+                mPixelReader.abandon();
+            }
+            mChainRenderer.release();
+            mShaderRenderer.release();
+            mSourceTexture.release();
+            if (mEffectCache != null) {
+                mEffectCache.release();
+                mEffectCache = null;
+            }
+            if (mEffectContext != null) {
+                mEffectContext.release();
+                mEffectContext = null;
+            }
+            mEffect = null;
+            if (mTextures[1] != 0) {
+                GLES20.glDeleteTextures(1, mTextures, 1);
+            }
+            mTextures[0] = 0;
+            mTextures[1] = 0;
+            mTexRenderer.tearDown();
+            BitmapUtil.releaseReadbackBuffer();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to release the GL resources", e);
+        } finally {
+            mInitialized = false;
+            isEffectChanged = true;
+        }
     }
 
     @Override
     public void onSurfaceChanged(GL10 gl, int width, int height) {
+        mViewWidth = width;
+        mViewHeight = height;
         if (mTexRenderer != null) {
             mTexRenderer.updateViewSize(width, height);
         }
@@ -85,177 +269,689 @@ public class ImageFilterView extends GLSurfaceView implements GLSurfaceView.Rend
 
     @Override
     public void onDrawFrame(GL10 gl) {
-
+        collectPendingReads();
         if (!mInitialized) {
-            //Only need to do this once
+            //Only need to do this once per context
+            if (mEffectCache != null) {
+                mEffectCache.release();
+            }
             mEffectContext = EffectContext.createWithCurrentGlContext();
+            mEffectCache = new EffectCache(mEffectContext);
+            isEffectChanged = true;
             mTexRenderer.init();
-            loadTextures();
+            // The source texture is created by mSourceTexture, only the output needs a name
+            GLES20.glGenTextures(1, mTextures, 1);
             mInitialized = true;
         }
-        if (mCurrentEffect != NONE || mCustomEffect != null) {
-            //if an effect is chosen initialize it and apply it to the texture
-            initEffect();
+        if (uploadSource()) {
+            mChainRenderer.invalidate();
+        }
+        final EffectChain effectChain = mEffectChain;
+        List<Object> stages = getStages(effectChain);
+        if (isShaderFiltersEnabled && stages != null) {
+            mChainResultTexture = renderShaderPasses(ShaderFilterRenderer.planPasses(stages));
+        } else if (effectChain != null) {
+            // Only the stages which changed since the last frame run again
+            mChainResultTexture = mChainRenderer.render(mTextures[0], mImageWidth, mImageHeight,
+                    effectChain.getStages(), new EffectChainRenderer.StageRenderer() {
+                        @Override
+                        public void renderStage(int stage, int inputTexture, int width, int height,
+                                                int outputTexture) {
+                            renderChainStage(effectChain.getStages().get(stage), inputTexture, width, height,
+                                    outputTexture);
+                        }
+                    });
+        } else if (mCurrentEffect != NONE || mCustomEffect != null) {
+            //if an effect is chosen initialize it and apply it to the texture, redraws of the
+            //same effect reuse it
+            if (isEffectChanged) {
+                isEffectChanged = false;
+                initEffect();
+            }
             applyEffect();
+            mChainResultTexture = 0;
+        } else {
+            mChainResultTexture = 0;
         }
         renderResult();
         if (isSaveImage) {
-            final Bitmap mFilterBitmap = BitmapUtil.createBitmapFromGLSurface(this, gl);
-            Log.e(TAG, "onDrawFrame: " + mFilterBitmap);
             isSaveImage = false;
-            if (mOnSaveBitmap != null) {
-                new Handler(Looper.getMainLooper()).post(new Runnable() {
+            readSaveBitmap();
+        }
+    }
+
+    /**
+     * @return stages of the chain or of the single filter, null if there is no filter
+     */
+    private List<Object> getStages(EffectChain effectChain) {
+        if (effectChain != null) {
+            return effectChain.getStages();
+        } else if (mCustomEffect != null) {
+            return Collections.<Object>singletonList(mCustomEffect);
+        } else if (mCurrentEffect != NONE) {
+            return Collections.<Object>singletonList(mCurrentEffect);
+        }
+        return null;
+    }
+
+    /**
+     * Render the passes of the shader backend, unchanged passes keep their cached output
+     */
+    private int renderShaderPasses(final List<List<Object>> passes) {
+        return mChainRenderer.render(mTextures[0], mImageWidth, mImageHeight, passes,
+                new EffectChainRenderer.StageRenderer() {
                     @Override
-                    public void run() {
-                        mOnSaveBitmap.onBitmapReady(mFilterBitmap);
+                    public void renderStage(int stage, int inputTexture, int width, int height,
+                                            int outputTexture) {
+                        renderPass(passes.get(stage), inputTexture, width, height, outputTexture);
                     }
                 });
+    }
+
+    /**
+     * Draw a texture scaled to the given size into another texture, which is allocated at that size
+     */
+    protected void drawScaledTexture(int inputTexture, int width, int height, int outputTexture) {
+        // A pass without presets only copies its input
+        mShaderRenderer.render(Collections.<Object>emptyList(), inputTexture, width, height, outputTexture);
+    }
+
+    private void renderPass(List<Object> pass, int inputTexture, int width, int height, int outputTexture) {
+        if (ShaderFilterRenderer.isShaderPass(pass)) {
+            mShaderRenderer.render(pass, inputTexture, width, height, outputTexture);
+        } else {
+            obtainStageEffect(pass.get(0)).apply(inputTexture, width, height, outputTexture);
+        }
+    }
+
+    /**
+     * Apply one stage of an {@link EffectChain}, a {@link PhotoFilter}, {@link LutFilter} or
+     * {@link CustomEffect}. Runs on the GL thread, the effects come from the cache of this view.
+     */
+    protected void renderChainStage(Object stage, int inputTexture, int width, int height, int outputTexture) {
+        if (stage instanceof LutFilter) {
+            // The effect framework has no lookup tables, a look is always a shader pass
+            mShaderRenderer.render(Collections.singletonList(stage), inputTexture, width, height, outputTexture);
+        } else {
+            obtainStageEffect(stage).apply(inputTexture, width, height, outputTexture);
+        }
+    }
+
+    /**
+     * Filter a copy of the source which is scaled down to the size of this view for the preview,
+     * instead of the full resolution source. Saving at source resolution applies the same filters
+     * to the full resolution source again, in tiles if it is larger than the GPU allows.
+     *
+     * @param proxyEnabled true to preview on the scaled down copy
+     * @see SaveSettings.Builder#setSourceResolutionEnabled(boolean)
+     */
+    public void setProxyEnabled(boolean proxyEnabled) {
+        isProxyEnabled = proxyEnabled;
+        requestRender();
+    }
+
+    /**
+     * Render the {@link PhotoFilter} presets with fused GLSL shaders instead of the effect
+     * framework, a chain of presets then costs a single pass. {@link PhotoFilter#AUTO_FIX} and
+     * {@link CustomEffect} still use the effect framework.
+     * <br></br>
+     * <b>Note :</b> The shaders approximate the presets, the output differs slightly
+     *
+     * @param shaderFiltersEnabled true to render the presets with shaders
+     * @see ShaderFilterRenderer
+     */
+    public void setShaderFiltersEnabled(boolean shaderFiltersEnabled) {
+        isShaderFiltersEnabled = shaderFiltersEnabled;
+        requestRender();
+    }
+
+    /**
+     * Read pixels of the current frame with {@link AsyncPixelReader} instead of stalling the GL
+     * thread until the transfer is done. Falls back to the synchronous read where pixel buffers
+     * are not supported.
+     *
+     * @param asyncReadbackEnabled true to read asynchronously
+     */
+    public void setAsyncReadbackEnabled(boolean asyncReadbackEnabled) {
+        isAsyncReadbackEnabled = asyncReadbackEnabled;
+    }
+
+    /**
+     * Deliver reads queued on a previous frame and keep rendering until all of them are done
+     */
+    protected void collectPendingReads() {
+        if (mPixelReader.hasPendingReads()) {
+            mPixelReader.collect(false);
+            if (mPixelReader.hasPendingReads()) {
+                requestRender();
+            }
+        }
+    }
+
+    /**
+     * Read the filtered image for {@link #saveBitmap(OnSaveBitmap, boolean)} and deliver it to
+     * {@link #mOnSaveBitmap} on the main thread
+     */
+    protected void readSaveBitmap() {
+        final OnSaveBitmap onSaveBitmap = mainThreadCallback(mOnSaveBitmap);
+        // A scaled preview has to be filtered again at source resolution before it can be read
+        boolean isReplay = isSaveSourceResolution && isPreviewScaled();
+        if (isAsyncReadbackEnabled && mPixelReader.isSupported() && !isReplay) {
+            boolean isQueued;
+            if (isSaveSourceResolution) {
+                isQueued = mPixelReader.readTexture(getResultTexture(), mImageWidth, mImageHeight, onSaveBitmap);
+            } else {
+                mTexRenderer.renderTexture(getResultTexture(), true);
+                isQueued = mPixelReader.readPixels(0, 0, getWidth(), getHeight(), onSaveBitmap);
+                renderResult();
+            }
+            if (isQueued) {
+                // Collect the pixels on the next frame
+                requestRender();
+                return;
+            }
+        }
+        try {
+            Bitmap filterBitmap = isSaveSourceResolution
+                    ? createBitmapFromResultTexture()
+                    : createBitmapFromSurface();
+            Log.d(TAG, "readSaveBitmap: " + filterBitmap);
+            if (filterBitmap != null) {
+                onSaveBitmap.onBitmapReady(filterBitmap);
+            } else {
+                onSaveBitmap.onFailure(new IllegalStateException("Failed to read the filtered image"));
             }
+        } catch (Throwable t) {
+            onSaveBitmap.onFailure(t);
         }
     }
 
+    private static OnSaveBitmap mainThreadCallback(final OnSaveBitmap onSaveBitmap) {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return new OnSaveBitmap() {
+            @Override
+            public void onBitmapReady(final Bitmap saveBitmap) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (onSaveBitmap != null) {
+                            onSaveBitmap.onBitmapReady(saveBitmap);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(final Throwable e) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (onSaveBitmap != null) {
+                            onSaveBitmap.onFailure(e);
+                        }
+                    }
+                });
+            }
+        };
+    }
+
     protected void setFilterEffect(PhotoFilter effect) {
         mCurrentEffect = effect;
         mCustomEffect = null;
+        mEffectChain = null;
+        isEffectChanged = true;
         requestRender();
     }
 
     protected void setFilterEffect(CustomEffect customEffect) {
         mCustomEffect = customEffect;
+        mEffectChain = null;
+        isEffectChanged = true;
         requestRender();
     }
 
+    /**
+     * Apply the stages of the chain one after the other. Stages which are the same as in the chain
+     * rendered before are not applied again.
+     *
+     * @param effectChain chain of filters to apply
+     */
+    protected void setFilterEffect(EffectChain effectChain) {
+        mCurrentEffect = NONE;
+        mCustomEffect = null;
+        mEffectChain = effectChain;
+        requestRender();
+    }
+
+    /**
+     * @return number of effects created since the GL context was set up, redraws and switching
+     * back to a cached filter don't create new ones. Only meant for tests, read it on the GL thread.
+     */
+    int getEffectCreatedCount() {
+        return mEffectCache != null ? mEffectCache.getCreatedCount() : 0;
+    }
+
 
     void saveBitmap(OnSaveBitmap onSaveBitmap) {
+        saveBitmap(onSaveBitmap, false);
+    }
+
+    /**
+     * Read the filtered image on the next frame. Without a surface, e.g. after the view was
+     * detached, the source is filtered by the {@link CpuFilterEngine} at source resolution instead.
+     *
+     * @param onSaveBitmap     callback with the filtered bitmap on the main thread
+     * @param sourceResolution true to read the result texture at the size of the source bitmap
+     *                         instead of the size of this view
+     */
+    void saveBitmap(OnSaveBitmap onSaveBitmap, boolean sourceResolution) {
+        if (!isSurfaceAvailable) {
+            saveOnCpu(onSaveBitmap);
+            return;
+        }
         mOnSaveBitmap = onSaveBitmap;
+        isSaveSourceResolution = sourceResolution;
         isSaveImage = true;
         requestRender();
     }
 
-    private void loadTextures() {
-        // Generate textures
-        GLES20.glGenTextures(2, mTextures, 0);
+    /**
+     * Filter a save which waits for a frame on the CPU, after the surface is gone no frame comes
+     */
+    private void savePendingOnCpu() {
+        if (isSaveImage) {
+            isSaveImage = false;
+            saveOnCpu(mOnSaveBitmap);
+        }
+    }
+
+    /**
+     * Apply the presets and looks to the source with the {@link CpuFilterEngine} in the background,
+     * custom effects need the GL context and fail
+     */
+    private void saveOnCpu(OnSaveBitmap onSaveBitmap) {
+        final OnSaveBitmap callback = mainThreadCallback(onSaveBitmap);
+        final Bitmap sourceBitmap = mSourceBitmap;
+        List<Object> stages = getStages(mEffectChain);
+        final List<Object> cpuStages = stages != null ? stages : Collections.<Object>emptyList();
+        if (sourceBitmap == null || !CpuFilterEngine.isSupported(cpuStages)) {
+            callback.onFailure(new IllegalStateException("No surface to apply the filter on"));
+            return;
+        }
+        BitmapUtil.getScanExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    callback.onBitmapReady(BitmapUtil.applyFiltersOnCpu(sourceBitmap, cpuStages));
+                } catch (Throwable t) {
+                    callback.onFailure(t);
+                }
+            }
+        });
+    }
 
-        // Load input bitmap
-        if (mSourceBitmap != null) {
-            mImageWidth = mSourceBitmap.getWidth();
-            mImageHeight = mSourceBitmap.getHeight();
-            mTexRenderer.updateTextureSize(mImageWidth, mImageHeight);
+    /**
+     * @return the texture which holds the result of the current effect at source resolution
+     */
+    protected int getResultTexture() {
+        if (mChainResultTexture != 0) {
+            return mChainResultTexture;
+        }
+        return mCurrentEffect != NONE || mCustomEffect != null ? mTextures[1] : mTextures[0];
+    }
 
-            // Upload to texture
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[0]);
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, mSourceBitmap, 0);
+    /**
+     * Read the rendered frame. The result is drawn once more upside down so the rows come out of
+     * <code>glReadPixels</code> top first, then the frame is restored before it is swapped.
+     */
+    protected Bitmap createBitmapFromSurface() {
+        mTexRenderer.renderTexture(getResultTexture(), true);
+        Bitmap bitmap = BitmapUtil.createBitmapFromGlFrameBuffer(0, 0, getWidth(), getHeight());
+        renderResult();
+        return bitmap;
+    }
 
-            // Set texture parameters
-            GLToolbox.initTexParams();
+    protected Bitmap createBitmapFromResultTexture() {
+        if (isPreviewScaled()) {
+            return renderSourceResolution();
         }
+        return BitmapUtil.createBitmapFromGlTexture(getResultTexture(), mImageWidth, mImageHeight);
     }
 
-    private void initEffect() {
-        EffectFactory effectFactory = mEffectContext.getFactory();
-        if (mEffect != null) {
-            mEffect.release();
-        }
-        if (mCustomEffect != null) {
-            mEffect = effectFactory.createEffect(mCustomEffect.getEffectName());
-            Map<String, Object> parameters = mCustomEffect.getParameters();
-            for (Map.Entry<String, Object> param : parameters.entrySet()) {
-                mEffect.setParameter(param.getKey(), param.getValue());
+    /**
+     * @return the bitmap to upload for the preview, a copy scaled down to the size of this view in
+     * proxy mode or the source itself
+     */
+    protected Bitmap obtainPreviewBitmap(Bitmap sourceBitmap) {
+        int maxDimension = Math.max(mViewWidth, mViewHeight);
+        if (!isProxyEnabled || maxDimension <= 0) {
+            releaseProxy();
+            return sourceBitmap;
+        }
+        if (sourceBitmap != mProxySource || sourceBitmap.getGenerationId() != mProxyGenerationId
+                || maxDimension != mProxyMaxDimension) {
+            releaseProxy();
+            mProxyBitmap = BitmapUtil.scaleToMaxDimension(sourceBitmap, maxDimension);
+            mProxySource = sourceBitmap;
+            mProxyGenerationId = sourceBitmap.getGenerationId();
+            mProxyMaxDimension = maxDimension;
+        }
+        return mProxyBitmap;
+    }
+
+    private void releaseProxy() {
+        if (mProxyBitmap != null && mProxyBitmap != mProxySource) {
+            mProxyBitmap.recycle();
+        }
+        mProxyBitmap = null;
+        mProxySource = null;
+    }
+
+    /**
+     * @return true if the textures hold a scaled down copy of the source
+     */
+    protected boolean isPreviewScaled() {
+        Bitmap sourceBitmap = mSourceBitmap;
+        return sourceBitmap != null
+                && (sourceBitmap.getWidth() != mImageWidth || sourceBitmap.getHeight() != mImageHeight);
+    }
+
+    /**
+     * Apply the filters of the preview to the full resolution source. Sources larger than a tile
+     * are filtered tile by tile when all the filters only look at one pixel, otherwise they are
+     * filtered at the largest size the GPU allows.
+     *
+     * @return filtered source from the {@link BitmapPool}
+     */
+    protected Bitmap renderSourceResolution() {
+        Bitmap sourceBitmap = mSourceBitmap;
+        int[] maxTextureSize = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxTextureSize, 0);
+        int width = sourceBitmap.getWidth();
+        int height = sourceBitmap.getHeight();
+        SourceTexture texture = new SourceTexture();
+        EffectChainRenderer chainRenderer = new EffectChainRenderer();
+        try {
+            if (width <= maxTextureSize[0] && height <= maxTextureSize[0]
+                    && (long) width * height <= (long) MAX_REPLAY_TILE_SIZE * MAX_REPLAY_TILE_SIZE) {
+                return renderReplayTile(sourceBitmap, texture, chainRenderer);
+            }
+            if (!isReplayTileable()) {
+                Log.w(TAG, "Filters need the whole image, replaying at " + maxTextureSize[0] + " pixels");
+                Bitmap scaled = BitmapUtil.scaleToMaxDimension(sourceBitmap, maxTextureSize[0]);
+                try {
+                    return renderReplayTile(scaled, texture, chainRenderer);
+                } finally {
+                    if (scaled != sourceBitmap) {
+                        scaled.recycle();
+                    }
+                }
             }
+            int tileSize = Math.min(maxTextureSize[0], MAX_REPLAY_TILE_SIZE);
+            Bitmap result = BitmapPool.getDefault().obtain(width, height, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(result);
+            for (int top = 0; top < height; top += tileSize) {
+                for (int left = 0; left < width; left += tileSize) {
+                    Bitmap tileSource = Bitmap.createBitmap(sourceBitmap, left, top,
+                            Math.min(tileSize, width - left), Math.min(tileSize, height - top));
+                    Bitmap tile = renderReplayTile(tileSource, texture, chainRenderer);
+                    canvas.drawBitmap(tile, left, top, null);
+                    BitmapPool.getDefault().release(tile);
+                    tileSource.recycle();
+                }
+            }
+            return result;
+        } finally {
+            chainRenderer.release();
+            texture.release();
+        }
+    }
+
+    private Bitmap renderReplayTile(Bitmap bitmap, SourceTexture texture, EffectChainRenderer chainRenderer) {
+        final List<?> stages = getReplayStages();
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        texture.update(bitmap);
+        // The tiles share the texture, the stages have to run again for every one of them
+        chainRenderer.invalidate();
+        int result = chainRenderer.render(texture.getTextureId(), width, height, stages,
+                new EffectChainRenderer.StageRenderer() {
+                    @Override
+                    public void renderStage(int stage, int inputTexture, int width, int height,
+                                            int outputTexture) {
+                        renderReplayStage(stages.get(stage), inputTexture, width, height, outputTexture);
+                    }
+                });
+        return BitmapUtil.createBitmapFromGlTexture(result, width, height);
+    }
+
+    /**
+     * @return stages which {@link #renderSourceResolution()} applies to the source in order
+     */
+    protected List<?> getReplayStages() {
+        List<Object> stages = getStages(mEffectChain);
+        if (stages == null) {
+            return Collections.emptyList();
+        }
+        return isShaderFiltersEnabled ? ShaderFilterRenderer.planPasses(stages) : stages;
+    }
+
+    /**
+     * Apply one of the {@link #getReplayStages()}
+     */
+    @SuppressWarnings("unchecked")
+    protected void renderReplayStage(Object stage, int inputTexture, int width, int height, int outputTexture) {
+        if (stage instanceof List) {
+            renderPass((List<Object>) stage, inputTexture, width, height, outputTexture);
         } else {
-            // Initialize the correct effect based on the selected menu/action item
-            switch (mCurrentEffect) {
-
-                case AUTO_FIX:
-                    mEffect = effectFactory.createEffect(EFFECT_AUTOFIX);
-                    mEffect.setParameter("scale", 0.5f);
-                    break;
-                case BLACK_WHITE:
-                    mEffect = effectFactory.createEffect(EFFECT_BLACKWHITE);
-                    mEffect.setParameter("black", .1f);
-                    mEffect.setParameter("white", .7f);
-                    break;
-                case BRIGHTNESS:
-                    mEffect = effectFactory.createEffect(EFFECT_BRIGHTNESS);
-                    mEffect.setParameter("brightness", 2.0f);
-                    break;
-                case CONTRAST:
-                    mEffect = effectFactory.createEffect(EFFECT_CONTRAST);
-                    mEffect.setParameter("contrast", 1.4f);
-                    break;
-                case CROSS_PROCESS:
-                    mEffect = effectFactory.createEffect(EFFECT_CROSSPROCESS);
-                    break;
-                case DOCUMENTARY:
-                    mEffect = effectFactory.createEffect(EFFECT_DOCUMENTARY);
-                    break;
-                case DUE_TONE:
-                    mEffect = effectFactory.createEffect(EFFECT_DUOTONE);
-                    mEffect.setParameter("first_color", Color.YELLOW);
-                    mEffect.setParameter("second_color", Color.DKGRAY);
-                    break;
-                case FILL_LIGHT:
-                    mEffect = effectFactory.createEffect(EFFECT_FILLLIGHT);
-                    mEffect.setParameter("strength", .8f);
-                    break;
-                case FISH_EYE:
-                    mEffect = effectFactory.createEffect(EFFECT_FISHEYE);
-                    mEffect.setParameter("scale", .5f);
-                    break;
-                case FLIP_HORIZONTAL:
-                    mEffect = effectFactory.createEffect(EFFECT_FLIP);
-                    mEffect.setParameter("horizontal", true);
-                    break;
-                case FLIP_VERTICAL:
-                    mEffect = effectFactory.createEffect(EFFECT_FLIP);
-                    mEffect.setParameter("vertical", true);
-                    break;
-                case GRAIN:
-                    mEffect = effectFactory.createEffect(EFFECT_GRAIN);
-                    mEffect.setParameter("strength", 1.0f);
-                    break;
-                case GRAY_SCALE:
-                    mEffect = effectFactory.createEffect(EFFECT_GRAYSCALE);
-                    break;
-                case LOMISH:
-                    mEffect = effectFactory.createEffect(EFFECT_LOMOISH);
-                    break;
-                case NEGATIVE:
-                    mEffect = effectFactory.createEffect(EFFECT_NEGATIVE);
-                    break;
-                case NONE:
-                    break;
-                case POSTERIZE:
-                    mEffect = effectFactory.createEffect(EFFECT_POSTERIZE);
-                    break;
-                case ROTATE:
-                    mEffect = effectFactory.createEffect(EFFECT_ROTATE);
-                    mEffect.setParameter("angle", 180);
-                    break;
-                case SATURATE:
-                    mEffect = effectFactory.createEffect(EFFECT_SATURATE);
-                    mEffect.setParameter("scale", .5f);
-                    break;
-                case SEPIA:
-                    mEffect = effectFactory.createEffect(EFFECT_SEPIA);
-                    break;
-                case SHARPEN:
-                    mEffect = effectFactory.createEffect(EFFECT_SHARPEN);
-                    break;
-                case TEMPERATURE:
-                    mEffect = effectFactory.createEffect(EFFECT_TEMPERATURE);
-                    mEffect.setParameter("scale", .9f);
-                    break;
-                case TINT:
-                    mEffect = effectFactory.createEffect(EFFECT_TINT);
-                    mEffect.setParameter("tint", Color.MAGENTA);
-                    break;
-                case VIGNETTE:
-                    mEffect = effectFactory.createEffect(EFFECT_VIGNETTE);
-                    mEffect.setParameter("scale", .5f);
-                    break;
+            renderChainStage(stage, inputTexture, width, height, outputTexture);
+        }
+    }
+
+    /**
+     * @return true if every stage only looks at the pixel it filters, so the source can be
+     * filtered in tiles
+     */
+    protected boolean isReplayTileable() {
+        List<Object> stages = getStages(mEffectChain);
+        if (stages == null) {
+            return true;
+        }
+        for (Object stage : stages) {
+            if (stage instanceof LutFilter) {
+                continue;
+            }
+            if (!(stage instanceof PhotoFilter) || !isPixelLocal((PhotoFilter) stage)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPixelLocal(PhotoFilter filter) {
+        switch (filter) {
+            case CROSS_PROCESS:
+            case GRAIN:
+            case POSTERIZE:
+                return true;
+            default:
+                return FilterMatrix.forFilter(filter) != null;
+        }
+    }
+
+    /**
+     * Bring the source texture up to date with the source bitmap
+     *
+     * @return true if pixels were uploaded and the filter output has to be rendered again
+     */
+    private boolean uploadSource() {
+        Bitmap sourceBitmap = mSourceBitmap;
+        Bitmap previewBitmap = sourceBitmap != null ? obtainPreviewBitmap(sourceBitmap) : null;
+        Rect dirtyRegion;
+        synchronized (mSourceTexture) {
+            dirtyRegion = mSourceDirtyRegion;
+            mSourceDirtyRegion = null;
+        }
+        if (previewBitmap == null) {
+            return false;
+        }
+        // The dirty region is in source pixels, a proxy is scaled again as a whole
+        boolean isUploaded = dirtyRegion != null && previewBitmap == sourceBitmap
+                ? mSourceTexture.updateRegion(previewBitmap, dirtyRegion)
+                : mSourceTexture.update(previewBitmap);
+        mTextures[0] = mSourceTexture.getTextureId();
+        if (isUploaded) {
+            mImageWidth = previewBitmap.getWidth();
+            mImageHeight = previewBitmap.getHeight();
+            mTexRenderer.updateTextureSize(mImageWidth, mImageHeight);
+        }
+        return isUploaded;
+    }
+
+    /**
+     * Take the effect of the current filter from the {@link EffectCache}, it is only created the
+     * first time the filter is used
+     */
+    private void initEffect() {
+        mEffect = mCustomEffect != null ? obtainEffect(mCustomEffect) : obtainEffect(mCurrentEffect);
+    }
+
+    private Effect obtainStageEffect(Object stage) {
+        if (mEffectCache == null) {
+            // Subclasses which draw frames of their own only create the effect context
+            if (mEffectContext == null) {
+                mEffectContext = EffectContext.createWithCurrentGlContext();
             }
+            mEffectCache = new EffectCache(mEffectContext);
         }
+        return stage instanceof CustomEffect
+                ? obtainEffect((CustomEffect) stage) : obtainEffect((PhotoFilter) stage);
+    }
+
+    private Effect obtainEffect(CustomEffect customEffect) {
+        return mEffectCache.obtain(customEffect.getEffectName(), customEffect.getParameters());
+    }
+
+    private Effect obtainEffect(PhotoFilter filterType) {
+        return obtainEffect(mEffectCache, filterType);
+    }
+
+    /**
+     * Create the effects of all the presets once in the current context and release them again,
+     * see {@link GLToolbox#prewarm()}
+     */
+    static void prewarmEffects() {
+        EffectContext effectContext = EffectContext.createWithCurrentGlContext();
+        EffectCache effectCache = new EffectCache(effectContext);
+        try {
+            for (PhotoFilter filter : PhotoFilter.values()) {
+                obtainEffect(effectCache, filter);
+            }
+        } finally {
+            effectCache.release();
+            effectContext.release();
+        }
+    }
+
+    /**
+     * @return effect of the preset with the parameters of this view, null for {@link PhotoFilter#NONE}
+     */
+    static Effect obtainEffect(EffectCache effectCache, PhotoFilter filterType) {
+        String effectName = null;
+        Map<String, Object> parameters = new HashMap<>();
+        // Initialize the correct effect based on the selected menu/action item
+        switch (filterType) {
+
+            case AUTO_FIX:
+                effectName = EFFECT_AUTOFIX;
+                parameters.put("scale", 0.5f);
+                break;
+            case BLACK_WHITE:
+                effectName = EFFECT_BLACKWHITE;
+                parameters.put("black", .1f);
+                parameters.put("white", .7f);
+                break;
+            case BRIGHTNESS:
+                effectName = EFFECT_BRIGHTNESS;
+                parameters.put("brightness", 2.0f);
+                break;
+            case CONTRAST:
+                effectName = EFFECT_CONTRAST;
+                parameters.put("contrast", 1.4f);
+                break;
+            case CROSS_PROCESS:
+                effectName = EFFECT_CROSSPROCESS;
+                break;
+            case DOCUMENTARY:
+                effectName = EFFECT_DOCUMENTARY;
+                break;
+            case DUE_TONE:
+                effectName = EFFECT_DUOTONE;
+                parameters.put("first_color", Color.YELLOW);
+                parameters.put("second_color", Color.DKGRAY);
+                break;
+            case FILL_LIGHT:
+                effectName = EFFECT_FILLLIGHT;
+                parameters.put("strength", .8f);
+                break;
+            case FISH_EYE:
+                effectName = EFFECT_FISHEYE;
+                parameters.put("scale", .5f);
+                break;
+            case FLIP_HORIZONTAL:
+                effectName = EFFECT_FLIP;
+                parameters.put("horizontal", true);
+                break;
+            case FLIP_VERTICAL:
+                effectName = EFFECT_FLIP;
+                parameters.put("vertical", true);
+                break;
+            case GRAIN:
+                effectName = EFFECT_GRAIN;
+                parameters.put("strength", 1.0f);
+                break;
+            case GRAY_SCALE:
+                effectName = EFFECT_GRAYSCALE;
+                break;
+            case LOMISH:
+                effectName = EFFECT_LOMOISH;
+                break;
+            case NEGATIVE:
+                effectName = EFFECT_NEGATIVE;
+                break;
+            case NONE:
+                break;
+            case POSTERIZE:
+                effectName = EFFECT_POSTERIZE;
+                break;
+            case ROTATE:
+                effectName = EFFECT_ROTATE;
+                parameters.put("angle", 180);
+                break;
+            case SATURATE:
+                effectName = EFFECT_SATURATE;
+                parameters.put("scale", .5f);
+                break;
+            case SEPIA:
+                effectName = EFFECT_SEPIA;
+                break;
+            case SHARPEN:
+                effectName = EFFECT_SHARPEN;
+                break;
+            case TEMPERATURE:
+                effectName = EFFECT_TEMPERATURE;
+                parameters.put("scale", .9f);
+                break;
+            case TINT:
+                effectName = EFFECT_TINT;
+                parameters.put("tint", Color.MAGENTA);
+                break;
+            case VIGNETTE:
+                effectName = EFFECT_VIGNETTE;
+                parameters.put("scale", .5f);
+                break;
+        }
+        return effectName != null ? effectCache.obtain(effectName, parameters) : null;
     }
 
     private void applyEffect() {
@@ -263,12 +959,7 @@ public class ImageFilterView extends GLSurfaceView implements GLSurfaceView.Rend
     }
 
     protected void renderResult() {
-        if (mCurrentEffect != NONE || mCustomEffect != null) {
-            // if no effect is chosen, just render the original bitmap
-            mTexRenderer.renderTexture(mTextures[1]);
-        } else {
-            // render the result of applyEffect()
-            mTexRenderer.renderTexture(mTextures[0]);
-        }
+        // render the result of applyEffect() or the original bitmap if no effect is chosen
+        mTexRenderer.renderTexture(getResultTexture());
     }
 }
\ No newline at end of file
@@ -0,0 +1,186 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+import android.view.View;
+import android.widget.ImageView;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Offscreen compositor which renders the layers of a {@link PhotoEditorView} in the coordinate
+ * space of the source image instead of the view. The source bitmap is drawn at its native size and
+ * the brush drawing and every added view are re-rendered on top of it with the transformation from
+ * view to image coordinates, so text and vector content stays sharp at the output size.
+ * </p>
+ * <p>
+ * The {@link ImageFilterView} is skipped because a GL surface can't be drawn into a canvas, the
+ * filtered result has to be passed in as the source bitmap instead.
+ * </p>
+ * <p>
+ * Without a source bitmap the layers are composited in view space, which is what the drawing
+ * cache contains. The layers can be drawn in ranges so {@link CompositeCache} can reuse the
+ * unchanged bottom layers.
+ * </p>
+ *
+ * @see SaveSettings.Builder#setSourceResolutionEnabled(boolean)
+ */
+class ImageSpaceCompositor implements TiledExporter.Source {
+
+    private final PhotoEditorView mPhotoEditorView;
+    private final Bitmap mSourceBitmap;
+    private final Matrix mViewToImage = new Matrix();
+    private final Paint mBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * @param photoEditorView editor view which holds the layers, must be laid out
+     * @param sourceBitmap    source image with the filter already applied
+     */
+    ImageSpaceCompositor(@NonNull PhotoEditorView photoEditorView, @NonNull Bitmap sourceBitmap) {
+        mPhotoEditorView = photoEditorView;
+        mSourceBitmap = sourceBitmap;
+        computeViewToImage();
+    }
+
+    /**
+     * Composite in view space at the size of the {@link PhotoEditorView}, the source view is drawn
+     * as the first layer like the drawing cache does
+     *
+     * @param photoEditorView editor view which holds the layers, must be laid out
+     */
+    ImageSpaceCompositor(@NonNull PhotoEditorView photoEditorView) {
+        mPhotoEditorView = photoEditorView;
+        mSourceBitmap = null;
+    }
+
+    @Override
+    public int getWidth() {
+        return mSourceBitmap != null ? mSourceBitmap.getWidth() : mPhotoEditorView.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mSourceBitmap != null ? mSourceBitmap.getHeight() : mPhotoEditorView.getHeight();
+    }
+
+    /**
+     * @return a bitmap from the {@link BitmapPool} with all the layers composited
+     */
+    Bitmap render() {
+        Bitmap result = BitmapPool.getDefault().obtain(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+        draw(new Canvas(result));
+        return result;
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        List<View> layers = getLayers();
+        drawBase(canvas);
+        drawLayers(canvas, layers, 0, layers.size());
+    }
+
+    /**
+     * @return children which are drawn on top of the base, bottom first
+     */
+    List<View> getLayers() {
+        ImageView source = mPhotoEditorView.getSource();
+        List<View> layers = new ArrayList<>(mPhotoEditorView.getChildCount());
+        for (int i = 0; i < mPhotoEditorView.getChildCount(); i++) {
+            View child = mPhotoEditorView.getChildAt(i);
+            if ((mSourceBitmap != null && child == source) || child instanceof ImageFilterView
+                    || child.getVisibility() != View.VISIBLE) {
+                continue;
+            }
+            layers.add(child);
+        }
+        return layers;
+    }
+
+    /**
+     * @return values which change whenever the base below the layers changes
+     */
+    List<Object> getBaseKey() {
+        if (mSourceBitmap != null) {
+            return Arrays.<Object>asList(mSourceBitmap, mSourceBitmap.getGenerationId(),
+                    mSourceBitmap.getWidth(), mSourceBitmap.getHeight());
+        }
+        // The source view is drawn as a layer, its bitmap is part of the key anyway in case it is
+        // changed without the view being invalidated
+        Bitmap source = mPhotoEditorView.getSourceBitmap();
+        return Arrays.<Object>asList(mPhotoEditorView.getBackground(),
+                mPhotoEditorView.getWidth(), mPhotoEditorView.getHeight(),
+                source, source != null ? source.getGenerationId() : 0);
+    }
+
+    /**
+     * Draw the source bitmap in image space or the background of the editor in view space
+     */
+    void drawBase(Canvas canvas) {
+        if (mSourceBitmap != null) {
+            canvas.drawBitmap(mSourceBitmap, 0, 0, mBitmapPaint);
+            return;
+        }
+        Drawable background = mPhotoEditorView.getBackground();
+        if (background != null) {
+            background.setBounds(0, 0, mPhotoEditorView.getWidth(), mPhotoEditorView.getHeight());
+            background.draw(canvas);
+        }
+    }
+
+    /**
+     * Draw the layers in the range <code>[from, to)</code>
+     */
+    void drawLayers(Canvas canvas, List<View> layers, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        canvas.save();
+        canvas.concat(mViewToImage);
+        for (int i = from; i < to; i++) {
+            drawChild(canvas, layers.get(i));
+        }
+        canvas.restore();
+    }
+
+    /**
+     * Draw a child the same way its parent does, including translation, scale and rotation
+     */
+    static void drawChild(Canvas canvas, View child) {
+        int saveCount = canvas.save();
+        canvas.translate(child.getLeft() - child.getScrollX(), child.getTop() - child.getScrollY());
+        canvas.concat(child.getMatrix());
+        if (child.getAlpha() < 1f) {
+            canvas.saveLayerAlpha(0, 0, child.getWidth(), child.getHeight(),
+                    Math.round(child.getAlpha() * 255), Canvas.ALL_SAVE_FLAG);
+        }
+        child.draw(canvas);
+        canvas.restoreToCount(saveCount);
+    }
+
+    /**
+     * The source view maps drawable coordinates to its own coordinates with the image matrix. The
+     * drawable can be density scaled so source pixels are first mapped to drawable coordinates.
+     */
+    private void computeViewToImage() {
+        ImageView source = mPhotoEditorView.getSource();
+        Matrix imageToView = new Matrix();
+        Drawable drawable = source.getDrawable();
+        if (drawable != null && drawable.getIntrinsicWidth() > 0 && drawable.getIntrinsicHeight() > 0) {
+            imageToView.setScale(drawable.getIntrinsicWidth() / (float) mSourceBitmap.getWidth(),
+                    drawable.getIntrinsicHeight() / (float) mSourceBitmap.getHeight());
+        }
+        imageToView.postConcat(source.getImageMatrix());
+        imageToView.postTranslate(source.getLeft() + source.getPaddingLeft(),
+                source.getTop() + source.getPaddingTop());
+        if (!imageToView.invert(mViewToImage)) {
+            mViewToImage.reset();
+        }
+    }
+}
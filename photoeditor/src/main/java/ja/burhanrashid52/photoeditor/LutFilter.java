@@ -0,0 +1,250 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * <p>
+ * A look defined by a 3D color lookup table, e.g. one of the brand looks exported from a grading
+ * tool. Load it once from a <code>.cube</code> file with {@link #fromCube(String, InputStream)}
+ * or from a strip image with {@link #fromStrip(String, Bitmap)} and keep the instance around.
+ * </p>
+ * <p>
+ * The table is held as a strip of <code>size</code> slices side by side, one per blue level, each
+ * slice with red along x and green along y. The GL renderers upload the strip once per context
+ * into a texture and apply the look with a single lookup pass, {@link #apply(int[], int, int)}
+ * interpolates the same table trilinearly on the CPU.
+ * </p>
+ * <br></br>
+ * <b>Note :</b> The key identifies the look, tables with the same key and size are treated as the
+ * same look, e.g. by the cache of the {@link EffectChain} stages and of the textures.
+ *
+ * @see EffectChain.Builder#addLut(LutFilter)
+ * @see PhotoEditor#setFilterEffect(LutFilter)
+ */
+public class LutFilter {
+
+    // A strip of 64 slices is 4096 pixels wide, GPUs with smaller textures filter it on the CPU
+    private static final int MAX_SIZE = 64;
+
+    private final String mKey;
+    private final int mSize;
+    private final int[] mStrip;
+
+    private LutFilter(String key, int size, int[] strip) {
+        mKey = key;
+        mSize = size;
+        mStrip = strip;
+    }
+
+    /**
+     * Parse a table in the Adobe <code>.cube</code> format, red changes fastest in the data
+     *
+     * @param key    unique name of the look, e.g. the asset path
+     * @param stream <code>.cube</code> file, it is not closed
+     * @return look of the table
+     * @throws IOException if the stream can't be read or is no 3D table in the 0..1 domain
+     */
+    public static LutFilter fromCube(@NonNull String key, @NonNull InputStream stream) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+        int size = 0;
+        int[] strip = null;
+        int count = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#") || line.startsWith("TITLE")) {
+                continue;
+            }
+            String[] tokens = line.split("\\s+");
+            if (tokens[0].equals("LUT_3D_SIZE")) {
+                size = parseInt(tokens, line);
+                if (size < 2 || size > MAX_SIZE) {
+                    throw new IOException("Unsupported LUT size " + size);
+                }
+                strip = new int[size * size * size];
+            } else if (tokens[0].equals("DOMAIN_MIN") || tokens[0].equals("DOMAIN_MAX")) {
+                float expected = tokens[0].equals("DOMAIN_MIN") ? 0f : 1f;
+                for (int i = 1; i < tokens.length; i++) {
+                    if (parseFloat(tokens[i], line) != expected) {
+                        throw new IOException("Unsupported domain: " + line);
+                    }
+                }
+            } else if (tokens[0].equals("LUT_1D_SIZE")) {
+                throw new IOException("1D tables are not supported");
+            } else if (Character.isLetter(tokens[0].charAt(0))) {
+                // Keywords of other tools
+                continue;
+            } else {
+                if (strip == null) {
+                    throw new IOException("Data before LUT_3D_SIZE: " + line);
+                }
+                if (tokens.length != 3 || count == strip.length) {
+                    throw new IOException("Unexpected data: " + line);
+                }
+                int red = count % size;
+                int green = count / size % size;
+                int blue = count / (size * size);
+                strip[green * size * size + blue * size + red] = 0xff000000
+                        | toByte(parseFloat(tokens[0], line)) << 16
+                        | toByte(parseFloat(tokens[1], line)) << 8
+                        | toByte(parseFloat(tokens[2], line));
+                count++;
+            }
+        }
+        if (strip == null || count != strip.length) {
+            throw new IOException("Expected " + (strip != null ? strip.length : 0) + " entries, found " + count);
+        }
+        return new LutFilter(key, size, strip);
+    }
+
+    /**
+     * Take the table from a strip image, e.g. a PNG decoded with
+     * {@link android.graphics.BitmapFactory}
+     *
+     * @param key   unique name of the look, e.g. the asset path
+     * @param strip <code>size * size</code> pixels wide and <code>size</code> pixels high, see
+     *              {@link LutFilter}. It is not modified and can be recycled afterwards.
+     * @return look of the table
+     */
+    public static LutFilter fromStrip(@NonNull String key, @NonNull Bitmap strip) {
+        int size = strip.getHeight();
+        if (size < 2 || size > MAX_SIZE || strip.getWidth() != size * size) {
+            throw new IllegalArgumentException("Not a LUT strip: " + strip.getWidth() + "x" + size);
+        }
+        int[] pixels = new int[size * size * size];
+        strip.getPixels(pixels, 0, size * size, 0, 0, size * size, size);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] |= 0xff000000;
+        }
+        return new LutFilter(key, size, pixels);
+    }
+
+    /**
+     * @return unique name of the look
+     */
+    public String getKey() {
+        return mKey;
+    }
+
+    /**
+     * @return number of levels per channel
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return pixels of the strip, row by row. Don't modify them.
+     */
+    int[] getStrip() {
+        return mStrip;
+    }
+
+    /**
+     * @return copy of the strip for uploading it as a texture
+     */
+    Bitmap createStripBitmap() {
+        return Bitmap.createBitmap(mStrip, mSize * mSize, mSize, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Apply the look in place to unpremultiplied ARGB pixels, interpolating the table trilinearly.
+     * Alpha is kept.
+     */
+    public void apply(int[] pixels, int offset, int length) {
+        int size = mSize;
+        int stride = size * size;
+        int last = size - 1;
+        float scale = last / 255f;
+        int[] strip = mStrip;
+        for (int i = offset; i < offset + length; i++) {
+            int pixel = pixels[i];
+            float red = ((pixel >> 16) & 0xff) * scale;
+            float green = ((pixel >> 8) & 0xff) * scale;
+            float blue = (pixel & 0xff) * scale;
+            int r0 = (int) red;
+            int g0 = (int) green;
+            int b0 = (int) blue;
+            int r1 = Math.min(r0 + 1, last);
+            int g1 = Math.min(g0 + 1, last);
+            int b1 = Math.min(b0 + 1, last);
+            float dr = red - r0;
+            float dg = green - g0;
+            float db = blue - b0;
+            int row00 = g0 * stride + b0 * size;
+            int row10 = g1 * stride + b0 * size;
+            int row01 = g0 * stride + b1 * size;
+            int row11 = g1 * stride + b1 * size;
+            int result = pixel & 0xff000000;
+            for (int shift = 16; shift >= 0; shift -= 8) {
+                float c00 = lerp(channel(strip[row00 + r0], shift), channel(strip[row00 + r1], shift), dr);
+                float c10 = lerp(channel(strip[row10 + r0], shift), channel(strip[row10 + r1], shift), dr);
+                float c01 = lerp(channel(strip[row01 + r0], shift), channel(strip[row01 + r1], shift), dr);
+                float c11 = lerp(channel(strip[row11 + r0], shift), channel(strip[row11 + r1], shift), dr);
+                float value = lerp(lerp(c00, c10, dg), lerp(c01, c11, dg), db);
+                result |= Math.round(value) << shift;
+            }
+            pixels[i] = result;
+        }
+    }
+
+    /**
+     * Tables with the same key and size are equal, so an unchanged stage of an
+     * {@link EffectChain} is not applied again
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof LutFilter)) {
+            return false;
+        }
+        LutFilter other = (LutFilter) o;
+        return mSize == other.mSize && mKey.equals(other.mKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mKey.hashCode() + mSize;
+    }
+
+    @Override
+    public String toString() {
+        return "LutFilter{" + mKey + ", " + mSize + "}";
+    }
+
+    private static float channel(int pixel, int shift) {
+        return (pixel >> shift) & 0xff;
+    }
+
+    private static float lerp(float from, float to, float amount) {
+        return from + (to - from) * amount;
+    }
+
+    private static int toByte(float value) {
+        return value <= 0f ? 0 : value >= 1f ? 255 : Math.round(value * 255f);
+    }
+
+    private static int parseInt(String[] tokens, String line) throws IOException {
+        try {
+            return Integer.parseInt(tokens[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Invalid line: " + line, e);
+        }
+    }
+
+    private static float parseFloat(String token, String line) throws IOException {
+        try {
+            return Float.parseFloat(token);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid line: " + line, e);
+        }
+    }
+}
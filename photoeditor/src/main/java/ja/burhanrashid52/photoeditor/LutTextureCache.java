@@ -0,0 +1,112 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.support.annotation.NonNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Cache of the strip textures of the {@link LutFilter}s used in one GL context. A look is
+ * uploaded the first time it is rendered, switching back to it reuses its texture. The least
+ * recently used texture is deleted once more than {@link #MAX_TEXTURES} are resident.
+ * </p>
+ * <p>
+ * The strip of a look is <code>size * size</code> pixels wide, check
+ * {@link #isSupported(LutFilter)} before rendering a look, e.g. one of 64 needs textures of 4096
+ * pixels.
+ * </p>
+ * <br></br>
+ * <b>Note :</b> All methods must be called on the GL thread of the context.
+ */
+class LutTextureCache {
+
+    private static final int MAX_TEXTURES = 8;
+
+    private final LinkedHashMap<LutFilter, Integer> mTextures =
+            new LinkedHashMap<LutFilter, Integer>(MAX_TEXTURES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<LutFilter, Integer> eldest) {
+                    if (size() > MAX_TEXTURES) {
+                        deleteTexture(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+    private int mUploadCount;
+    private int mMaxTextureSize;
+
+    /**
+     * @return true if the strip of the look fits into a texture of the current context
+     */
+    boolean isSupported(@NonNull LutFilter lutFilter) {
+        if (mMaxTextureSize == 0) {
+            int[] maxTextureSize = new int[1];
+            GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxTextureSize, 0);
+            mMaxTextureSize = maxTextureSize[0];
+        }
+        return lutFilter.getSize() * lutFilter.getSize() <= mMaxTextureSize;
+    }
+
+    /**
+     * @return texture of the strip of the look, uploaded on first use
+     * @throws IllegalArgumentException if the strip is wider than the GPU allows
+     */
+    int obtain(@NonNull LutFilter lutFilter) {
+        Integer textureId = mTextures.get(lutFilter);
+        if (textureId == null) {
+            if (!isSupported(lutFilter)) {
+                int size = lutFilter.getSize();
+                throw new IllegalArgumentException("The strip of " + lutFilter + " is " + size * size
+                        + " pixels wide, the GPU allows " + mMaxTextureSize);
+            }
+            int[] textures = new int[1];
+            GLES20.glGenTextures(1, textures, 0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+            Bitmap strip = lutFilter.createStripBitmap();
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, strip, 0);
+            strip.recycle();
+            // Linear filtering interpolates red and green, the shader interpolates blue
+            GLToolbox.initTexParams();
+            GLToolbox.checkGlError("upload LUT");
+            textureId = textures[0];
+            mTextures.put(lutFilter, textureId);
+            mUploadCount++;
+        }
+        return textureId;
+    }
+
+    /**
+     * @return number of strips uploaded by this cache
+     */
+    int getUploadCount() {
+        return mUploadCount;
+    }
+
+    /**
+     * Delete all the textures, the context must still be current
+     */
+    void release() {
+        for (Integer textureId : mTextures.values()) {
+            deleteTexture(textureId);
+        }
+        mTextures.clear();
+        mMaxTextureSize = 0;
+    }
+
+    /**
+     * Forget the textures without deleting them after their GL context was lost
+     */
+    void abandon() {
+        mTextures.clear();
+        mMaxTextureSize = 0;
+    }
+
+    private static void deleteTexture(int textureId) {
+        GLES20.glDeleteTextures(1, new int[]{textureId}, 0);
+    }
+}
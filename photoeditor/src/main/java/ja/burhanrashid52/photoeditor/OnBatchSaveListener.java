@@ -0,0 +1,28 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * A callback to save the edited image to several {@link ExportTarget} asynchronously
+ *
+ * @see PhotoEditor#saveAsFiles(List, OnBatchSaveListener)
+ */
+public interface OnBatchSaveListener {
+
+    /**
+     * Call when every target is saved successfully
+     *
+     * @param imagePaths paths on which the images are saved, in the order of the targets
+     */
+    void onSuccess(@NonNull List<String> imagePaths);
+
+    /**
+     * Call when at least one target failed. The other targets have finished by then and their
+     * files are kept.
+     *
+     * @param throwable first exception or error thrown while saving the targets
+     */
+    void onFailure(@NonNull Throwable throwable);
+}
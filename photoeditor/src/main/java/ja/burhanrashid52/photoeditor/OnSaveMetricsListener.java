@@ -0,0 +1,13 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Callback which receives the {@link SaveMetrics} of every save on the main thread once the save
+ * finished or failed
+ *
+ * @see PhotoEditor.Builder#setOnSaveMetricsListener(OnSaveMetricsListener)
+ */
+public interface OnSaveMetricsListener {
+    void onSaveMetrics(@NonNull SaveMetrics saveMetrics);
+}
@@ -0,0 +1,37 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+
+/**
+ * Callback for a progressive save. All the methods are called on the main thread before the
+ * final result of the save is delivered.
+ *
+ * @see SaveSettings.Builder#setOnSaveProgressListener(OnSaveProgressListener)
+ */
+public interface OnSaveProgressListener {
+
+    /**
+     * Call with a low resolution composite as soon as the filter is read back, before the full
+     * resolution image is composited and encoded
+     *
+     * @param preview composite which fits in {@link SaveSettings.Builder#setPreviewDimension(int)},
+     *                transparent borders are not removed. It can be handed back to
+     *                {@link BitmapPool#release(Bitmap)} once it is replaced.
+     */
+    void onPreview(@NonNull Bitmap preview);
+
+    /**
+     * Call when a stage of the save starts
+     *
+     * @param stage stage which starts
+     */
+    void onStageStarted(@NonNull SaveStage stage);
+
+    /**
+     * Call when a stage of the save finished
+     *
+     * @param stage stage which finished
+     */
+    void onStageCompleted(@NonNull SaveStage stage);
+}
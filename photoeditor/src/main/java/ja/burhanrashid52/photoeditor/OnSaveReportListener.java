@@ -0,0 +1,10 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Callback which receives the {@link SaveReport} once an image has been saved successfully
+ */
+public interface OnSaveReportListener {
+    void onSaveReport(@NonNull SaveReport saveReport);
+}
@@ -4,13 +4,13 @@ import android.Manifest;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.ColorFilter;
 import android.graphics.ColorMatrixColorFilter;
 import android.graphics.Matrix;
 import android.graphics.Point;
 import android.graphics.Typeface;
 import android.graphics.drawable.BitmapDrawable;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.support.annotation.ColorInt;
 import android.support.annotation.IntRange;
@@ -33,7 +33,7 @@ import android.widget.RelativeLayout;
 import android.widget.TextView;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -66,7 +66,10 @@ public class PhotoEditor implements BrushViewChangeListener, MultiTouchListener.
     private int transparentPixelsClickThroughRadius;
     private Typeface mDefaultTextTypeface;
     private Typeface mDefaultEmojiTypeface;
-    private ColorFilter colorFilter = new ColorMatrixColorFilter(NEGATIVE);
+    private ColorFilter colorFilter = new ColorMatrixColorFilter(FilterMatrix.negative().getArray());
+    private ExportExecutor exportExecutor;
+    private CompositeCache compositeCache;
+    private OnSaveMetricsListener onSaveMetricsListener;
 
     protected PhotoEditor(Builder builder) {
         this.context = builder.context;
@@ -80,6 +83,10 @@ public class PhotoEditor implements BrushViewChangeListener, MultiTouchListener.
         this.isBorderFunctionalityEnabled = builder.isBorderFunctionalityEnabled;
         this.mDefaultTextTypeface = builder.textTypeface;
         this.mDefaultEmojiTypeface = builder.emojiTypeface;
+        this.exportExecutor = builder.exportExecutor != null ? builder.exportExecutor : ExportExecutor.getDefault();
+        this.compositeCache = builder.isCompositeCacheEnabled ? new CompositeCache() : null;
+        parentView.setCompositeCache(compositeCache);
+        this.onSaveMetricsListener = builder.onSaveMetricsListener;
         mLayoutInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         brushDrawingView.setBrushViewChangeListener(this);
         addedViews = new ArrayList<>();
@@ -166,17 +173,6 @@ public class PhotoEditor implements BrushViewChangeListener, MultiTouchListener.
         addViewToParent(imageRootView, viewType);
     }
 
-    /**
-     * Color matrix that flips the components (<code>-1.0f * c + 255 = 255 - c</code>)
-     * and keeps the alpha intact.
-     */
-    private static final float[] NEGATIVE = {
-            -1.0f,     0,     0,    0, 255, // red
-            0, -1.0f,     0,    0, 255, // green
-            0,     0, -1.0f,    0, 255, // blue
-            0,     0,     0, 1.0f,   0  // alpha
-    };
-
     /**
      * This add the text on the {@link PhotoEditorView} with provided parameters
      * by default {@link TextView#setText(int)} will be 18sp
@@ -279,6 +275,7 @@ public class PhotoEditor implements BrushViewChangeListener, MultiTouchListener.
             }
             inputTextView.setTextColor(colorCode);
             parentView.updateViewLayout(view, view.getLayoutParams());
+            invalidateLayer(view);
             int i = addedViews.indexOf(view);
             if (i > -1) addedViews.set(i, view);
         }
@@ -581,6 +578,8 @@ public class PhotoEditor implements BrushViewChangeListener, MultiTouchListener.
     @Override
     public void onViewSelectedListener(View selectedView) {
         lastSelectedView = selectedView;
+        // Called for every touch event so moving, scaling and rotating invalidate the view
+        invalidateLayer(selectedView);
     }
 
     private static Bitmap flipBitmap(Bitmap source) {
@@ -599,6 +598,7 @@ public class PhotoEditor implements BrushViewChangeListener, MultiTouchListener.
                 Bitmap bitmap = ((BitmapDrawable) flipView.getDrawable()).getBitmap();
                 Bitmap flipedBitmap = flipBitmap(bitmap);
                 flipView.setImageBitmap(flipedBitmap);
+                invalidateLayer(lastSelectedView);
             }
         }
         return;
@@ -618,6 +618,7 @@ public class PhotoEditor implements BrushViewChangeListener, MultiTouchListener.
         if (addedViews.size() > 0) {
             View removeView = addedViews.get(addedViews.size() - 1);
             if (removeView instanceof BrushDrawingView) {
+                invalidateLayer(removeView);
                 return brushDrawingView != null && brushDrawingView.undo();
             } else {
                 addedViews.remove(addedViews.size() - 1);
@@ -645,6 +646,7 @@ public class PhotoEditor implements BrushViewChangeListener, MultiTouchListener.
         if (redoViews.size() > 0) {
             View redoView = redoViews.get(redoViews.size() - 1);
             if (redoView instanceof BrushDrawingView) {
+                invalidateLayer(redoView);
                 return brushDrawingView != null && brushDrawingView.redo();
             } else {
                 redoViews.remove(redoViews.size() - 1);
@@ -678,6 +680,79 @@ public class PhotoEditor implements BrushViewChangeListener, MultiTouchListener.
         addedViews.clear();
         redoViews.clear();
         clearBrushAllViews();
+        invalidateCompositeCache();
+    }
+
+    /**
+     * Drop the cached composite used by the next save. Edits made through {@link PhotoEditor}
+     * invalidate the cache themselves, call this after changing an added view directly.
+     *
+     * @see Builder#setCompositeCacheEnabled(boolean)
+     */
+    public void invalidateCompositeCache() {
+        if (compositeCache != null) {
+            compositeCache.invalidateAll();
+        }
+    }
+
+    private void invalidateLayer(View layer) {
+        if (compositeCache != null && layer != null) {
+            compositeCache.invalidate(layer);
+        }
+    }
+
+    /**
+     * Composite the layers with the cache if it is enabled. Must be called while holding the lock
+     * on {@link #parentView}.
+     */
+    private Bitmap renderComposite(@NonNull ImageSpaceCompositor compositor) {
+        return compositeCache != null ? compositeCache.render(compositor) : compositor.render();
+    }
+
+    /**
+     * @return metrics of a new save or null if nobody listens to them
+     */
+    private SaveMetrics createSaveMetrics(String imagePath) {
+        return onSaveMetricsListener != null ? new SaveMetrics(imagePath) : null;
+    }
+
+    private void deliverSaveMetrics(SaveMetrics saveMetrics, boolean successful) {
+        if (saveMetrics != null) {
+            saveMetrics.finish(successful);
+            onSaveMetricsListener.onSaveMetrics(saveMetrics);
+        }
+    }
+
+    /**
+     * Draw a low resolution composite for a progressive save. It runs on the main thread right
+     * after the readback, the cost only depends on the size of the preview.
+     */
+    private void deliverPreview(@NonNull SaveSettings saveSettings, ImageSpaceCompositor compositor,
+                                @NonNull SaveProgress saveProgress) {
+        if (!saveProgress.isEnabled()) {
+            return;
+        }
+        TiledExporter.Source source = TiledExporter.scaleToMaxDimension(
+                compositor != null ? compositor : TiledExporter.fromView(parentView),
+                saveSettings.getPreviewDimension());
+        if (source.getWidth() <= 0 || source.getHeight() <= 0) {
+            return;
+        }
+        Bitmap preview = BitmapPool.getDefault().obtain(source.getWidth(), source.getHeight(),
+                Bitmap.Config.ARGB_8888);
+        source.draw(new Canvas(preview));
+        saveProgress.preview(preview);
+    }
+
+    /**
+     * @return compositor in image space for source resolution saves, in view space when the
+     * composite cache is used or null to capture the drawing cache
+     */
+    private ImageSpaceCompositor createCompositor(boolean sourceResolution, Bitmap saveBitmap) {
+        if (sourceResolution) {
+            return new ImageSpaceCompositor(parentView, saveBitmap);
+        }
+        return compositeCache != null ? new ImageSpaceCompositor(parentView) : null;
     }
 
     /**
@@ -707,6 +782,29 @@ public class PhotoEditor implements BrushViewChangeListener, MultiTouchListener.
      */
     public void setFilterEffect(CustomEffect customEffect) {
         parentView.setFilterEffect(customEffect);
+        invalidateCompositeCache();
+    }
+
+    /**
+     * Apply several filters one after the other. The output of every stage is cached, setting a
+     * chain which only differs from stage k on only applies stages k to N again.
+     *
+     * @param effectChain stages built with {@link EffectChain.Builder}
+     */
+    public void setFilterEffect(EffectChain effectChain) {
+        parentView.setFilterEffect(effectChain);
+        invalidateCompositeCache();
+    }
+
+    /**
+     * Apply a look from a color lookup table. Its texture is uploaded once and cached, switching
+     * back to a look doesn't load it again.
+     *
+     * @param lutFilter look loaded with {@link LutFilter#fromCube(String, java.io.InputStream)} or
+     *                  {@link LutFilter#fromStrip(String, Bitmap)}
+     */
+    public void setFilterEffect(LutFilter lutFilter) {
+        setFilterEffect(new EffectChain.Builder().addLut(lutFilter).build());
     }
 
     /**
@@ -716,6 +814,7 @@ public class PhotoEditor implements BrushViewChangeListener, MultiTouchListener.
      */
     public void setFilterEffect(PhotoFilter filterType) {
         parentView.setFilterEffect(filterType);
+        invalidateCompositeCache();
     }
 
     @Override
@@ -767,11 +866,12 @@ public class PhotoEditor implements BrushViewChangeListener, MultiTouchListener.
      *
      * @param imagePath      path on which image to be saved
      * @param onSaveListener callback for saving image
+     * @return handle to cancel the save
      * @see OnSaveListener
      */
     @RequiresPermission(allOf = {Manifest.permission.WRITE_EXTERNAL_STORAGE})
-    public void saveAsFile(@NonNull final String imagePath, @NonNull final OnSaveListener onSaveListener) {
-        saveAsFile(imagePath, new SaveSettings.Builder().build(), onSaveListener);
+    public ExportJob saveAsFile(@NonNull final String imagePath, @NonNull final OnSaveListener onSaveListener) {
+        return saveAsFile(imagePath, new SaveSettings.Builder().build(), onSaveListener);
     }
 
     /**
@@ -780,139 +880,360 @@ public class PhotoEditor implements BrushViewChangeListener, MultiTouchListener.
      * @param imagePath      path on which image to be saved
      * @param saveSettings   builder for multiple save options {@link SaveSettings}
      * @param onSaveListener callback for saving image
+     * @return handle to cancel the save
      * @see OnSaveListener
      */
     @RequiresPermission(allOf = {Manifest.permission.WRITE_EXTERNAL_STORAGE})
-    public void saveAsFile(@NonNull final String imagePath,
-                           @NonNull final SaveSettings saveSettings,
-                           @NonNull final OnSaveListener onSaveListener) {
+    public ExportJob saveAsFile(@NonNull final String imagePath,
+                                @NonNull final SaveSettings saveSettings,
+                                @NonNull final OnSaveListener onSaveListener) {
         Log.d(TAG, "Image Path: " + imagePath);
+        final ExportJob exportJob = new ExportJob(saveSettings.getPriority());
+        final SaveMetrics saveMetrics = createSaveMetrics(imagePath);
+        final SaveProgress saveProgress = new SaveProgress(saveSettings.getOnSaveProgressListener(), saveMetrics);
+        final ExportPlan exportPlan = ExportPlan.create(parentView, saveSettings, compositeCache != null, true);
+        final boolean isReadback = parentView.isReadbackPending();
+        saveProgress.stageStarted(SaveStage.READBACK);
         parentView.saveFilter(new OnSaveBitmap() {
             @Override
             public void onBitmapReady(Bitmap saveBitmap) {
-                new AsyncTask<String, String, Throwable>() {
-
-                    @Override
-                    protected void onPreExecute() {
-                        super.onPreExecute();
-                        clearHelperBox();
-                        parentView.setDrawingCacheEnabled(false);
-                    }
+                saveProgress.stageCompleted(SaveStage.READBACK,
+                        isReadback && saveBitmap != null ? saveBitmap.getByteCount() : 0);
+                clearHelperBox();
+                parentView.setDrawingCacheEnabled(false);
+                final ImageSpaceCompositor compositor =
+                        createCompositor(exportPlan.isSourceResolution(), saveBitmap);
+                deliverPreview(saveSettings, compositor, saveProgress);
+                exportExecutor.execute(exportJob, new ExportExecutor.ExportTask<SaveReport>() {
 
                     @SuppressLint("MissingPermission")
                     @Override
-                    protected Throwable doInBackground(String... strings) {
-                        // Create a media file name
-                        File file = new File(imagePath);
+                    SaveReport doInBackground(@NonNull ExportJob exportJob) throws Exception {
+                        ExportPlan plan = exportPlan;
                         try {
-                            FileOutputStream out = new FileOutputStream(file, false);
-                            if (parentView != null) {
-                                parentView.setDrawingCacheEnabled(true);
-                                Bitmap drawingCache = saveSettings.isTransparencyEnabled()
-                                        ? BitmapUtil.removeTransparency(parentView.getDrawingCache())
-                                        : parentView.getDrawingCache();
-                                drawingCache.compress(saveSettings.getCompressFormat(), saveSettings.getCompressQuality(), out);
+                            return writeImage(imagePath, compositor, saveSettings, plan, saveProgress, exportJob);
+                        } catch (OutOfMemoryError e) {
+                            if (!saveSettings.isMemoryPlanningEnabled()) {
+                                throw e;
                             }
-                            out.flush();
-                            out.close();
-                            Log.d(TAG, "Filed Saved Successfully");
-                            return null;
-                        } catch (OutOfMemoryError oom) {
-                          oom.printStackTrace();
-                          Log.d(TAG, "Out of memory error");
-                          return oom;
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            Log.d(TAG, "Failed to save File");
-                            return e;
+                            // The estimate was too optimistic, retry once on a cheaper path
+                            Log.w(TAG, "Out of memory while saving, retrying with less memory", e);
+                            parentView.setDrawingCacheEnabled(false);
+                            plan = plan.fallback();
+                            return writeImage(imagePath, compositor, saveSettings, plan, saveProgress, exportJob);
                         }
                     }
 
                     @Override
-                    protected void onPostExecute(Throwable e) {
-                        super.onPostExecute(e);
-                        if (e == null) {
-                            //Clear all views if its enabled in save settings
-                            if (saveSettings.isClearViewsEnabled()) clearAllViews();
-                            onSaveListener.onSuccess(imagePath);
-                        } else {
-                            onSaveListener.onFailure(e);
+                    void onSuccess(SaveReport saveReport) {
+                        //Clear all views if its enabled in save settings
+                        if (saveSettings.isClearViewsEnabled()) clearAllViews();
+                        onSaveListener.onSuccess(imagePath);
+                        if (saveSettings.getOnSaveReportListener() != null) {
+                            saveSettings.getOnSaveReportListener().onSaveReport(saveReport);
                         }
+                        deliverSaveMetrics(saveMetrics, true);
                     }
 
-                }.execute();
+                    @Override
+                    void onFailure(@NonNull Throwable throwable) {
+                        Log.d(TAG, "Failed to save File", throwable);
+                        onSaveListener.onFailure(throwable);
+                        deliverSaveMetrics(saveMetrics, false);
+                    }
+                });
             }
 
             @Override
             public void onFailure(Throwable e) {
+                exportJob.setDone();
                 onSaveListener.onFailure(e);
+                deliverSaveMetrics(saveMetrics, false);
             }
-        });
+        }, exportPlan.isSourceResolution());
+        return exportJob;
+    }
+
+    /**
+     * Write the image to the file following the {@link ExportPlan}. Runs on an export thread.
+     */
+    private SaveReport writeImage(@NonNull String imagePath, ImageSpaceCompositor compositor,
+                                  @NonNull SaveSettings saveSettings, @NonNull ExportPlan plan,
+                                  @NonNull SaveProgress saveProgress, @NonNull ExportJob exportJob) throws IOException {
+        SaveReport saveReport = new SaveReport();
+        saveReport.setEstimatedBytes(plan.getEstimatedBytes());
+        saveReport.setDownscaled(plan.getMode() == ExportPlan.Mode.DOWNSCALED
+                || plan.isSourceResolution() != saveSettings.isSourceResolutionEnabled());
+        // Create a media file name
+        File file = new File(imagePath);
+        // The existing file is only replaced once the new image is complete
+        ReplacingFileOutputStream out = new ReplacingFileOutputStream(file);
+        try {
+            if (plan.getMode() == ExportPlan.Mode.TILED) {
+                TiledExporter.Source source = compositor != null
+                        ? compositor : TiledExporter.fromView(parentView);
+                TiledExporter tiledExporter = new TiledExporter(
+                        TiledExporter.scaleToMaxDimension(source, saveSettings.getMaxDimension()),
+                        saveSettings.getTileHeight());
+                // Bands are composited and encoded together, the whole export is
+                // reported as the encode stage
+                saveProgress.stageStarted(SaveStage.ENCODE);
+                synchronized (parentView) {
+                    tiledExporter.exportPng(out, saveSettings.isTransparencyEnabled());
+                }
+                saveProgress.stageCompleted(SaveStage.ENCODE, tiledExporter.getPeakBytes());
+                saveReport.setTiledExport(true);
+                saveReport.setPeakBytes(tiledExporter.getPeakBytes());
+            } else {
+                // Saves from the same editor can run in parallel so the view
+                // is only drawn by one of them at a time
+                synchronized (parentView) {
+                    saveProgress.stageStarted(SaveStage.COMPOSITE);
+                    Bitmap capturedBitmap;
+                    // The drawing cache belongs to the view, everything else is handed back to the pool
+                    boolean isOwned = true;
+                    if (plan.getMode() == ExportPlan.Mode.DOWNSCALED) {
+                        capturedBitmap = renderScaled(compositor, plan.getScale());
+                    } else if (compositor != null) {
+                        capturedBitmap = renderComposite(compositor);
+                    } else {
+                        parentView.setDrawingCacheEnabled(true);
+                        capturedBitmap = parentView.getDrawingCache();
+                        isOwned = false;
+                    }
+                    saveProgress.stageCompleted(SaveStage.COMPOSITE, capturedBitmap.getByteCount());
+                    Bitmap croppedBitmap = capturedBitmap;
+                    if (saveSettings.isTransparencyEnabled()) {
+                        saveProgress.stageStarted(SaveStage.CROP);
+                        croppedBitmap = BitmapUtil.removeTransparency(capturedBitmap);
+                        saveProgress.stageCompleted(SaveStage.CROP, croppedBitmap != capturedBitmap
+                                ? croppedBitmap.getByteCount() : 0);
+                    }
+                    Bitmap drawingCache = BitmapUtil.scaleToMaxDimension(
+                            croppedBitmap, saveSettings.getMaxDimension());
+                    long peakBytes = capturedBitmap.getByteCount();
+                    if (croppedBitmap != capturedBitmap) {
+                        peakBytes += croppedBitmap.getByteCount();
+                    }
+                    if (drawingCache != croppedBitmap) {
+                        peakBytes += drawingCache.getByteCount();
+                    }
+                    if (compositor != null && compositeCache != null
+                            && plan.getMode() == ExportPlan.Mode.FULL) {
+                        peakBytes += compositeCache.getCachedBytes();
+                    }
+                    saveReport.setPeakBytes(peakBytes);
+                    try {
+                        if (!exportJob.isCancelled()) {
+                            ByteBudgetEncoder.compress(drawingCache, saveSettings, out, saveReport, saveProgress);
+                        }
+                    } finally {
+                        BitmapPool bitmapPool = BitmapPool.getDefault();
+                        if (drawingCache != croppedBitmap) {
+                            bitmapPool.release(drawingCache);
+                        }
+                        if (croppedBitmap != capturedBitmap) {
+                            bitmapPool.release(croppedBitmap);
+                        }
+                        if (isOwned) {
+                            bitmapPool.release(capturedBitmap);
+                        }
+                    }
+                    parentView.setDrawingCacheEnabled(false);
+                }
+            }
+            if (exportJob.isCancelled()) {
+                return saveReport;
+            }
+            out.commit();
+        } finally {
+            out.abort();
+        }
+        Log.d(TAG, "Filed Saved Successfully");
+        return saveReport;
+    }
+
+    /**
+     * Composite straight into a smaller bitmap for {@link ExportPlan.Mode#DOWNSCALED}, the
+     * composite cache and the drawing cache are skipped because they are full size
+     */
+    private Bitmap renderScaled(ImageSpaceCompositor compositor, float scale) {
+        TiledExporter.Source source = compositor != null ? compositor : TiledExporter.fromView(parentView);
+        int maxDimension = Math.max(1, Math.round(Math.max(source.getWidth(), source.getHeight()) * scale));
+        TiledExporter.Source scaled = TiledExporter.scaleToMaxDimension(source, maxDimension);
+        Bitmap bitmap = BitmapPool.getDefault().obtain(scaled.getWidth(), scaled.getHeight(),
+                Bitmap.Config.ARGB_8888);
+        scaled.draw(new Canvas(bitmap));
+        return bitmap;
+    }
+
+    /**
+     * Save the edited image to several files at once. The image is captured and composited once
+     * and every {@link ExportTarget} is then resized and encoded in parallel with its own
+     * {@link SaveSettings}.
+     * <br></br>
+     * <b>Note :</b> Tiled export is not used for batch saves because the composite is shared by
+     * all the targets
+     *
+     * @param targets            paths and save options of the outputs
+     * @param onBatchSaveListener callback for saving the images
+     * @return handle to cancel all the targets
+     * @see OnBatchSaveListener
+     */
+    @RequiresPermission(allOf = {Manifest.permission.WRITE_EXTERNAL_STORAGE})
+    public ExportJob saveAsFiles(@NonNull List<ExportTarget> targets,
+                                 @NonNull final OnBatchSaveListener onBatchSaveListener) {
+        final BatchExporter batchExporter = new BatchExporter(parentView, exportExecutor, compositeCache, targets);
+        final ExportJob exportJob = new ExportJob(batchExporter.getPriority());
+        parentView.saveFilter(new OnSaveBitmap() {
+            @Override
+            public void onBitmapReady(Bitmap saveBitmap) {
+                clearHelperBox();
+                parentView.setDrawingCacheEnabled(false);
+                ImageSpaceCompositor compositor =
+                        createCompositor(batchExporter.isSourceResolutionEnabled(), saveBitmap);
+                batchExporter.start(exportJob, compositor, new OnBatchSaveListener() {
+                    @Override
+                    public void onSuccess(@NonNull List<String> imagePaths) {
+                        if (batchExporter.isClearViewsEnabled()) clearAllViews();
+                        onBatchSaveListener.onSuccess(imagePaths);
+                    }
+
+                    @Override
+                    public void onFailure(@NonNull Throwable throwable) {
+                        onBatchSaveListener.onFailure(throwable);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                exportJob.setDone();
+                onBatchSaveListener.onFailure(e);
+            }
+        }, batchExporter.isSourceResolutionEnabled());
+        return exportJob;
     }
 
     /**
      * Save the edited image as bitmap
      *
      * @param onSaveBitmap callback for saving image as bitmap
+     * @return handle to cancel the save
      * @see OnSaveBitmap
      */
-    @SuppressLint("StaticFieldLeak")
-    public void saveAsBitmap(@NonNull final OnSaveBitmap onSaveBitmap) {
-        saveAsBitmap(new SaveSettings.Builder().build(), onSaveBitmap);
+    public ExportJob saveAsBitmap(@NonNull final OnSaveBitmap onSaveBitmap) {
+        return saveAsBitmap(new SaveSettings.Builder().build(), onSaveBitmap);
     }
 
     /**
      * Save the edited image as bitmap
+     * <br></br>
+     * <b>Note :</b> The bitmap can come from the {@link BitmapPool}, release it there once it is
+     * not needed anymore so the next save can reuse it
      *
      * @param saveSettings   builder for multiple save options {@link SaveSettings}
      * @param onSaveBitmap callback for saving image as bitmap
+     * @return handle to cancel the save
      * @see OnSaveBitmap
      */
-    @SuppressLint("StaticFieldLeak")
-    public void saveAsBitmap(@NonNull final SaveSettings saveSettings,
-                             @NonNull final OnSaveBitmap onSaveBitmap) {
+    public ExportJob saveAsBitmap(@NonNull final SaveSettings saveSettings,
+                                  @NonNull final OnSaveBitmap onSaveBitmap) {
+        final ExportJob exportJob = new ExportJob(saveSettings.getPriority());
+        final SaveMetrics saveMetrics = createSaveMetrics(null);
+        final SaveProgress saveProgress = new SaveProgress(saveSettings.getOnSaveProgressListener(), saveMetrics);
+        final ExportPlan exportPlan = ExportPlan.create(parentView, saveSettings, compositeCache != null, false);
+        final boolean isReadback = parentView.isReadbackPending();
+        saveProgress.stageStarted(SaveStage.READBACK);
         parentView.saveFilter(new OnSaveBitmap() {
             @Override
             public void onBitmapReady(Bitmap saveBitmap) {
-                new AsyncTask<String, String, Bitmap>() {
-                    @Override
-                    protected void onPreExecute() {
-                        super.onPreExecute();
-                        clearHelperBox();
-                        parentView.setDrawingCacheEnabled(false);
-                    }
+                saveProgress.stageCompleted(SaveStage.READBACK,
+                        isReadback && saveBitmap != null ? saveBitmap.getByteCount() : 0);
+                clearHelperBox();
+                parentView.setDrawingCacheEnabled(false);
+                final ImageSpaceCompositor compositor =
+                        createCompositor(exportPlan.isSourceResolution(), saveBitmap);
+                deliverPreview(saveSettings, compositor, saveProgress);
+                exportExecutor.execute(exportJob, new ExportExecutor.ExportTask<Bitmap>() {
 
                     @Override
-                    protected Bitmap doInBackground(String... strings) {
-                        if (parentView != null) {
-                            parentView.setDrawingCacheEnabled(true);
-                            return saveSettings.isTransparencyEnabled() ?
-                                    BitmapUtil.removeTransparency(parentView.getDrawingCache())
-                                    : parentView.getDrawingCache();
-                        } else {
-                            return null;
+                    Bitmap doInBackground(@NonNull ExportJob exportJob) {
+                        try {
+                            return renderBitmap(compositor, saveSettings, exportPlan, saveProgress);
+                        } catch (OutOfMemoryError e) {
+                            if (!saveSettings.isMemoryPlanningEnabled()) {
+                                throw e;
+                            }
+                            Log.w(TAG, "Out of memory while saving, retrying with less memory", e);
+                            return renderBitmap(compositor, saveSettings, exportPlan.fallback(), saveProgress);
                         }
                     }
 
                     @Override
-                    protected void onPostExecute(Bitmap bitmap) {
-                        super.onPostExecute(bitmap);
+                    void onSuccess(Bitmap bitmap) {
                         if (bitmap != null) {
                             if (saveSettings.isClearViewsEnabled()) clearAllViews();
                             onSaveBitmap.onBitmapReady(bitmap);
                         } else {
                             onSaveBitmap.onFailure(new Exception("Failed to load the bitmap"));
                         }
+                        deliverSaveMetrics(saveMetrics, bitmap != null);
                     }
 
-                }.execute();
+                    @Override
+                    void onFailure(@NonNull Throwable throwable) {
+                        onSaveBitmap.onFailure(throwable);
+                        deliverSaveMetrics(saveMetrics, false);
+                    }
+                });
             }
 
             @Override
             public void onFailure(Throwable e) {
+                exportJob.setDone();
                 onSaveBitmap.onFailure(e);
+                deliverSaveMetrics(saveMetrics, false);
             }
-        });
+        }, exportPlan.isSourceResolution());
+        return exportJob;
+    }
+
+    /**
+     * Composite the image in memory following the {@link ExportPlan}. Runs on an export thread.
+     */
+    private Bitmap renderBitmap(ImageSpaceCompositor compositor, @NonNull SaveSettings saveSettings,
+                                @NonNull ExportPlan plan, @NonNull SaveProgress saveProgress) {
+        saveProgress.stageStarted(SaveStage.COMPOSITE);
+        Bitmap drawingCache;
+        if (plan.getMode() == ExportPlan.Mode.DOWNSCALED) {
+            synchronized (parentView) {
+                drawingCache = renderScaled(compositor, plan.getScale());
+            }
+        } else if (compositor != null) {
+            synchronized (parentView) {
+                drawingCache = renderComposite(compositor);
+            }
+        } else {
+            drawingCache = BitmapUtil.captureDrawingCache(parentView);
+        }
+        saveProgress.stageCompleted(SaveStage.COMPOSITE, drawingCache.getByteCount());
+        Bitmap bitmap = drawingCache;
+        if (saveSettings.isTransparencyEnabled()) {
+            saveProgress.stageStarted(SaveStage.CROP);
+            bitmap = BitmapUtil.removeTransparency(drawingCache);
+            saveProgress.stageCompleted(SaveStage.CROP, bitmap != drawingCache ? bitmap.getByteCount() : 0);
+        }
+        Bitmap result = BitmapUtil.scaleToMaxDimension(bitmap, saveSettings.getMaxDimension());
+        // Intermediate copies go back to the pool, only the result is handed to the caller
+        BitmapPool bitmapPool = BitmapPool.getDefault();
+        if (result != bitmap) {
+            bitmapPool.release(bitmap);
+        }
+        if (bitmap != drawingCache && result != drawingCache) {
+            bitmapPool.release(drawingCache);
+        }
+        return result;
     }
 
     private static String convertEmoji(String emoji) {
@@ -951,6 +1272,7 @@ public class PhotoEditor implements BrushViewChangeListener, MultiTouchListener.
             redoViews.remove(redoViews.size() - 1);
         }
         addedViews.add(brushDrawingView);
+        invalidateLayer(brushDrawingView);
         if (mOnPhotoEditorListener != null) {
             mOnPhotoEditorListener.onAddViewListener(ViewType.BRUSH_DRAWING, addedViews.size());
         }
@@ -958,6 +1280,7 @@ public class PhotoEditor implements BrushViewChangeListener, MultiTouchListener.
 
     @Override
     public void onViewRemoved(BrushDrawingView brushDrawingView) {
+        invalidateLayer(brushDrawingView);
         if (addedViews.size() > 0) {
             View removeView = addedViews.remove(addedViews.size() - 1);
             if (!(removeView instanceof BrushDrawingView)) {
@@ -1003,6 +1326,9 @@ public class PhotoEditor implements BrushViewChangeListener, MultiTouchListener.
         private boolean isBorderFunctionalityEnabled = true;
         private boolean shouldClickThroughTransparentPixels = false;
         private int transparentPixelsClickThroughRadius = 0;
+        private ExportExecutor exportExecutor;
+        private boolean isCompositeCacheEnabled = false;
+        private OnSaveMetricsListener onSaveMetricsListener;
 
         /**
          * Building a PhotoEditor which requires a Context and PhotoEditorView
@@ -1102,6 +1428,51 @@ public class PhotoEditor implements BrushViewChangeListener, MultiTouchListener.
             return this;
         }
 
+        /**
+         * set the executor which runs the background part of {@link PhotoEditor#saveAsFile} and
+         * {@link PhotoEditor#saveAsBitmap}. By default all editors share {@link ExportExecutor#getDefault()}
+         *
+         * @param exportExecutor executor for the saves of this editor
+         * @return {@link Builder} instant to build {@link PhotoEditor}
+         */
+        public Builder setExportExecutor(ExportExecutor exportExecutor) {
+            this.exportExecutor = exportExecutor;
+            return this;
+        }
+
+        /**
+         * set true to keep the composite of the layers which didn't change since the last save, so
+         * saving again only redraws the changed layers. The cache holds one bitmap at the size of
+         * the saved image. Tiled saves don't use the cache.
+         *
+         * <br></br>
+         * <b>Note :</b> Changes which don't go through {@link PhotoEditor} or the source view, e.g.
+         * an added view changed directly, need {@link PhotoEditor#invalidateCompositeCache()}
+         *
+         * @param compositeCacheEnabled true to cache the composite, disabled by default
+         * @return {@link Builder} instant to build {@link PhotoEditor}
+         * @see PhotoEditor#invalidateCompositeCache()
+         */
+        public Builder setCompositeCacheEnabled(boolean compositeCacheEnabled) {
+            this.isCompositeCacheEnabled = compositeCacheEnabled;
+            return this;
+        }
+
+        /**
+         * set a listener which receives the time spent and the bytes allocated by every stage of
+         * {@link PhotoEditor#saveAsFile} and {@link PhotoEditor#saveAsBitmap}, e.g. to log them with a
+         * {@link Logger}. While it is set the encoded file is held in memory before it is written so
+         * the encode and the write are measured separately.
+         *
+         * @param onSaveMetricsListener listener called on the main thread after every save
+         * @return {@link Builder} instant to build {@link PhotoEditor}
+         * @see SaveMetrics
+         */
+        public Builder setOnSaveMetricsListener(OnSaveMetricsListener onSaveMetricsListener) {
+            this.onSaveMetricsListener = onSaveMetricsListener;
+            return this;
+        }
+
         /**
          * @return build PhotoEditor instance
          */
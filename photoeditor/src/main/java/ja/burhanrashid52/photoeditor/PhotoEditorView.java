@@ -4,6 +4,7 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
@@ -37,6 +38,7 @@ public class PhotoEditorView extends RelativeLayout {
     private BrushDrawingView mBrushDrawingView;
     private ImageFilterView mImageFilterView;
     private static final int imgSrcId = 1, brushSrcId = 2, glFilterId = 3;
+    private CompositeCache mCompositeCache;
 
     public PhotoEditorView(Context context) {
         super(context);
@@ -103,6 +105,10 @@ public class PhotoEditorView extends RelativeLayout {
             public void onBitmapLoaded(@Nullable Bitmap sourceBitmap) {
                 mImageFilterView.setFilterEffect(PhotoFilter.NONE);
                 mImageFilterView.setSourceBitmap(sourceBitmap);
+                // A composite of the previous image must not end up in the next save
+                if (mCompositeCache != null) {
+                    mCompositeCache.invalidateAll();
+                }
                 Log.d(TAG, "onBitmapLoaded() called with: sourceBitmap = [" + sourceBitmap + "]");
             }
         });
@@ -129,12 +135,37 @@ public class PhotoEditorView extends RelativeLayout {
         return mImgSource;
     }
 
+    /**
+     * @return bitmap shown by the source view, null if it doesn't show a bitmap
+     */
+    Bitmap getSourceBitmap() {
+        return mImgSource.getBitmap();
+    }
+
+    /**
+     * Invalidate the cache whenever another image is loaded into the source view
+     */
+    void setCompositeCache(@Nullable CompositeCache compositeCache) {
+        mCompositeCache = compositeCache;
+    }
+
     BrushDrawingView getBrushDrawingView() {
         return mBrushDrawingView;
     }
 
 
     void saveFilter(@NonNull final OnSaveBitmap onSaveBitmap) {
+        saveFilter(onSaveBitmap, false);
+    }
+
+    /**
+     * Bake the active filter into the source image
+     *
+     * @param onSaveBitmap     callback with the filtered source bitmap
+     * @param sourceResolution true to keep the resolution of the source bitmap instead of reading
+     *                         the filter result at the size of the {@link ImageFilterView}
+     */
+    void saveFilter(@NonNull final OnSaveBitmap onSaveBitmap, boolean sourceResolution) {
         if (mImageFilterView.getVisibility() == VISIBLE) {
             mImageFilterView.saveBitmap(new OnSaveBitmap() {
                 @Override
@@ -149,7 +180,7 @@ public class PhotoEditorView extends RelativeLayout {
                 public void onFailure(Throwable e) {
                     onSaveBitmap.onFailure(e);
                 }
-            });
+            }, sourceResolution);
         } else {
             onSaveBitmap.onBitmapReady(mImgSource.getBitmap());
         }
@@ -157,6 +188,25 @@ public class PhotoEditorView extends RelativeLayout {
 
     }
 
+    /**
+     * @return true if the next {@link #saveFilter} reads the filtered image back from the
+     * {@link ImageFilterView}
+     */
+    boolean isReadbackPending() {
+        return mImageFilterView.getVisibility() == VISIBLE;
+    }
+
+    /**
+     * Upload only the changed region of the source bitmap to the filter, after its pixels were
+     * drawn over in place. Replacing the bitmap or changing it without calling this is picked up
+     * by the filter as well but uploads the whole image.
+     *
+     * @param dirtyRegion pixels which changed in the source bitmap
+     */
+    public void invalidateSourceRegion(@NonNull Rect dirtyRegion) {
+        mImageFilterView.invalidateSourceRegion(dirtyRegion);
+    }
+
     void setFilterEffect(PhotoFilter filterType) {
         mImageFilterView.setSourceBitmap(mImgSource.getBitmap());
         mImageFilterView.setFilterEffect(filterType);
@@ -167,6 +217,44 @@ public class PhotoEditorView extends RelativeLayout {
         mImageFilterView.setFilterEffect(customEffect);
     }
 
+    void setFilterEffect(EffectChain effectChain) {
+        mImageFilterView.setSourceBitmap(mImgSource.getBitmap());
+        mImageFilterView.setFilterEffect(effectChain);
+    }
+
+    /**
+     * Read the filtered image asynchronously with pixel buffers where OpenGL ES 3.0 is available
+     * so saving doesn't stall the preview
+     *
+     * @param asyncReadbackEnabled true to read asynchronously
+     * @see AsyncPixelReader
+     */
+    public void setAsyncReadbackEnabled(boolean asyncReadbackEnabled) {
+        mImageFilterView.setAsyncReadbackEnabled(asyncReadbackEnabled);
+    }
+
+    /**
+     * Render the {@link PhotoFilter} presets with fused GLSL shaders instead of the effect
+     * framework, so a chain of presets costs a single pass
+     *
+     * @param shaderFiltersEnabled true to render the presets with shaders
+     * @see ImageFilterView#setShaderFiltersEnabled(boolean)
+     */
+    public void setShaderFiltersEnabled(boolean shaderFiltersEnabled) {
+        mImageFilterView.setShaderFiltersEnabled(shaderFiltersEnabled);
+    }
+
+    /**
+     * Preview the filters on a copy of the source scaled down to the size of the filter view.
+     * Saving at source resolution filters the full resolution source again.
+     *
+     * @param proxyEnabled true to preview on the scaled down copy
+     * @see ImageFilterView#setProxyEnabled(boolean)
+     */
+    public void setProxyEnabled(boolean proxyEnabled) {
+        mImageFilterView.setProxyEnabled(proxyEnabled);
+    }
+
     protected ImageFilterView createImageFilterView() {
         return new ImageFilterView(getContext());
     }
@@ -0,0 +1,151 @@
+package ja.burhanrashid52.photoeditor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * <p>
+ * Minimal PNG encoder which accepts the image row by row, so the caller never has to hold the
+ * whole frame in memory. Rows are written as 8 bit RGBA using the <code>Sub</code> filter and
+ * deflated straight into <code>IDAT</code> chunks.
+ * </p>
+ *
+ * @see TiledExporter
+ */
+class PngStreamEncoder {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private static final int DEFLATE_BUFFER_SIZE = 64 * 1024;
+    private static final byte FILTER_SUB = 1;
+
+    private final OutputStream mOut;
+    private final int mWidth;
+    private final int mHeight;
+    private final Deflater mDeflater;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mRowBuffer;
+    private final byte[] mDeflateBuffer = new byte[DEFLATE_BUFFER_SIZE];
+    private final byte[] mChunkHeader = new byte[8];
+    private int mRowsWritten;
+
+    PngStreamEncoder(OutputStream out, int width, int height) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid image size " + width + "x" + height);
+        }
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        mRowBuffer = new byte[1 + width * 4];
+        mOut.write(SIGNATURE);
+        writeHeader();
+    }
+
+    /**
+     * Append rows to the image
+     *
+     * @param argb   non-premultiplied ARGB pixels as returned by {@link android.graphics.Bitmap#getPixels}
+     * @param offset index of the first pixel to write
+     * @param stride number of entries between two rows in <code>argb</code>
+     * @param rows   number of rows to write
+     * @throws IOException when writing to the underlying stream fails
+     */
+    void writeRows(int[] argb, int offset, int stride, int rows) throws IOException {
+        if (mRowsWritten + rows > mHeight) {
+            throw new IllegalStateException("Too many rows for image height " + mHeight);
+        }
+        for (int row = 0; row < rows; row++) {
+            int index = offset + row * stride;
+            byte[] buffer = mRowBuffer;
+            buffer[0] = FILTER_SUB;
+            for (int x = 0, i = 1; x < mWidth; x++, i += 4) {
+                int pixel = argb[index + x];
+                buffer[i] = (byte) (pixel >> 16);
+                buffer[i + 1] = (byte) (pixel >> 8);
+                buffer[i + 2] = (byte) pixel;
+                buffer[i + 3] = (byte) (pixel >>> 24);
+            }
+            // Apply the Sub filter backwards so every byte still sees its unfiltered neighbour
+            for (int i = buffer.length - 1; i > 4; i--) {
+                buffer[i] = (byte) (buffer[i] - buffer[i - 4]);
+            }
+            mDeflater.setInput(buffer, 0, buffer.length);
+            while (!mDeflater.needsInput()) {
+                deflateChunk();
+            }
+        }
+        mRowsWritten += rows;
+    }
+
+    /**
+     * Flush the remaining compressed data and write the end of the image
+     *
+     * @throws IOException when writing to the underlying stream fails
+     */
+    void finish() throws IOException {
+        if (mRowsWritten != mHeight) {
+            throw new IllegalStateException("Expected " + mHeight + " rows but got " + mRowsWritten);
+        }
+        try {
+            mDeflater.finish();
+            while (!mDeflater.finished()) {
+                deflateChunk();
+            }
+            writeChunk("IEND", null, 0);
+        } finally {
+            mDeflater.end();
+        }
+    }
+
+    /**
+     * @return bytes held by the encoder itself, independent of the image size
+     */
+    long getBufferBytes() {
+        return mRowBuffer.length + mDeflateBuffer.length;
+    }
+
+    private void deflateChunk() throws IOException {
+        int length = mDeflater.deflate(mDeflateBuffer);
+        if (length > 0) {
+            writeChunk("IDAT", mDeflateBuffer, length);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        byte[] header = new byte[13];
+        putInt(header, 0, mWidth);
+        putInt(header, 4, mHeight);
+        header[8] = 8; // bit depth
+        header[9] = 6; // color type RGBA
+        header[10] = 0; // compression
+        header[11] = 0; // filter
+        header[12] = 0; // interlace
+        writeChunk("IHDR", header, header.length);
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        putInt(mChunkHeader, 0, length);
+        for (int i = 0; i < 4; i++) {
+            mChunkHeader[4 + i] = (byte) type.charAt(i);
+        }
+        mCrc.reset();
+        mCrc.update(mChunkHeader, 4, 4);
+        mOut.write(mChunkHeader);
+        if (data != null && length > 0) {
+            mCrc.update(data, 0, length);
+            mOut.write(data, 0, length);
+        }
+        byte[] crc = new byte[4];
+        putInt(crc, 0, (int) mCrc.getValue());
+        mOut.write(crc);
+    }
+
+    private static void putInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,76 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * <p>
+ * Stream which writes into a temporary file next to the target and only replaces the target with
+ * it in {@link #commit()}, so a save which is cancelled or fails half way keeps the file which was
+ * there before. Every stream writes a temporary file of its own, so saves to the same target can
+ * run at the same time, the last one to commit wins.
+ * </p>
+ * <br></br>
+ * <b>Note :</b> Always call {@link #abort()} in a finally block, it deletes the temporary file
+ * unless the stream was committed.
+ */
+class ReplacingFileOutputStream extends FileOutputStream {
+
+    private final File mTarget;
+    private final File mTempFile;
+    private boolean isCommitted = false;
+
+    /**
+     * @throws IOException if the temporary file can't be created
+     */
+    ReplacingFileOutputStream(@NonNull File target) throws IOException {
+        this(target, createTempFile(target));
+    }
+
+    private ReplacingFileOutputStream(File target, File tempFile) throws FileNotFoundException {
+        super(tempFile, false);
+        mTarget = target;
+        mTempFile = tempFile;
+    }
+
+    /**
+     * Close the stream and move the written file over the target
+     *
+     * @throws IOException if the file can't be written or renamed, the target is kept then
+     */
+    void commit() throws IOException {
+        flush();
+        close();
+        if (!mTempFile.renameTo(mTarget)) {
+            throw new IOException("Failed to replace " + mTarget);
+        }
+        isCommitted = true;
+    }
+
+    /**
+     * Close the stream and delete what was written, the target is left untouched. Does nothing
+     * after {@link #commit()}.
+     */
+    void abort() {
+        if (isCommitted) {
+            return;
+        }
+        try {
+            close();
+        } catch (IOException e) {
+            // The file is deleted anyway
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mTempFile.delete();
+    }
+
+    private static File createTempFile(File target) throws IOException {
+        // Same directory, so the rename doesn't cross file systems
+        File directory = target.getAbsoluteFile().getParentFile();
+        return File.createTempFile("." + target.getName() + ".", ".tmp", directory);
+    }
+}
@@ -0,0 +1,124 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Time spent and bytes allocated by every {@link SaveStage} of one save. The allocated bytes are
+ * the buffers the stage created for the image: the readback bitmap, the composite, the cropped
+ * copy and the encoded output. Stages which didn't run report zero.
+ * </p>
+ *
+ * @see PhotoEditor.Builder#setOnSaveMetricsListener(OnSaveMetricsListener)
+ */
+public class SaveMetrics {
+
+    private static final int STAGE_COUNT = SaveStage.values().length;
+
+    private final String mImagePath;
+    private final long mStartNanos = System.nanoTime();
+    private final long[] mStageStartNanos = new long[STAGE_COUNT];
+    private final long[] mDurationNanos = new long[STAGE_COUNT];
+    private final long[] mAllocatedBytes = new long[STAGE_COUNT];
+    private final boolean[] isStageRun = new boolean[STAGE_COUNT];
+    private long mTotalNanos;
+    private boolean isSuccessful;
+
+    SaveMetrics(@Nullable String imagePath) {
+        mImagePath = imagePath;
+    }
+
+    /**
+     * @return path of the saved file or null if the image was saved as bitmap
+     */
+    @Nullable
+    public String getImagePath() {
+        return mImagePath;
+    }
+
+    /**
+     * @return true if the save finished successfully
+     */
+    public synchronized boolean isSuccessful() {
+        return isSuccessful;
+    }
+
+    /**
+     * @return true if the stage ran during this save
+     */
+    public synchronized boolean isStageRun(@NonNull SaveStage stage) {
+        return isStageRun[stage.ordinal()];
+    }
+
+    public synchronized long getDurationNanos(@NonNull SaveStage stage) {
+        return mDurationNanos[stage.ordinal()];
+    }
+
+    public long getDurationMillis(@NonNull SaveStage stage) {
+        return TimeUnit.NANOSECONDS.toMillis(getDurationNanos(stage));
+    }
+
+    public synchronized long getAllocatedBytes(@NonNull SaveStage stage) {
+        return mAllocatedBytes[stage.ordinal()];
+    }
+
+    /**
+     * @return time from the save request until its result was delivered, including the time it
+     * waited on the {@link ExportExecutor}
+     */
+    public synchronized long getTotalDurationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mTotalNanos);
+    }
+
+    public synchronized long getTotalAllocatedBytes() {
+        long total = 0;
+        for (long bytes : mAllocatedBytes) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    synchronized void stageStarted(@NonNull SaveStage stage) {
+        mStageStartNanos[stage.ordinal()] = System.nanoTime();
+        isStageRun[stage.ordinal()] = true;
+    }
+
+    synchronized void stageCompleted(@NonNull SaveStage stage, long allocatedBytes) {
+        int index = stage.ordinal();
+        mDurationNanos[index] += System.nanoTime() - mStageStartNanos[index];
+        mAllocatedBytes[index] += allocatedBytes;
+    }
+
+    /**
+     * Record a stage which ran interleaved with the stage <code>within</code>, its time is moved
+     * out of that stage
+     */
+    synchronized void stageInterleaved(@NonNull SaveStage stage, @NonNull SaveStage within, long durationNanos) {
+        isStageRun[stage.ordinal()] = true;
+        mDurationNanos[stage.ordinal()] += durationNanos;
+        mDurationNanos[within.ordinal()] -= durationNanos;
+    }
+
+    synchronized void finish(boolean successful) {
+        isSuccessful = successful;
+        mTotalNanos = System.nanoTime() - mStartNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("SaveMetrics{");
+        builder.append(isSuccessful ? "success" : "failure")
+                .append(", total=").append(getTotalDurationMillis()).append("ms");
+        for (SaveStage stage : SaveStage.values()) {
+            if (isStageRun[stage.ordinal()]) {
+                builder.append(String.format(Locale.US, ", %s=%dms/%dKB", stage.name().toLowerCase(Locale.US),
+                        getDurationMillis(stage), getAllocatedBytes(stage) / 1024));
+            }
+        }
+        return builder.append('}').toString();
+    }
+}
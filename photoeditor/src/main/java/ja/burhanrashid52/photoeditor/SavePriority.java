@@ -0,0 +1,15 @@
+package ja.burhanrashid52.photoeditor;
+
+/**
+ * <p>
+ * Priority of a save request queued on the {@link ExportExecutor}. Saves with a higher priority
+ * are started first, saves with the same priority run in the order they were requested.
+ * </p>
+ *
+ * @see SaveSettings.Builder#setPriority(SavePriority)
+ */
+public enum SavePriority {
+    LOW,
+    NORMAL,
+    HIGH
+}
@@ -0,0 +1,121 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * <p>
+ * Deliver the progress of a save to its {@link OnSaveProgressListener} on the main thread and
+ * record the {@link SaveMetrics} of every stage. All the methods do nothing when the save has no
+ * listener and no metrics, so the save code can report its stages without checking.
+ * </p>
+ */
+class SaveProgress {
+
+    private final OnSaveProgressListener mListener;
+    private final SaveMetrics mSaveMetrics;
+    private final Handler mMainHandler;
+
+    SaveProgress(@Nullable OnSaveProgressListener listener, @Nullable SaveMetrics saveMetrics) {
+        mListener = listener;
+        mSaveMetrics = saveMetrics;
+        mMainHandler = listener != null ? new Handler(Looper.getMainLooper()) : null;
+    }
+
+    /**
+     * @return true if a progress listener receives the preview and the stages
+     */
+    boolean isEnabled() {
+        return mListener != null;
+    }
+
+    /**
+     * @return true if the stages are reported or measured
+     */
+    boolean isStageTracked() {
+        return mListener != null || mSaveMetrics != null;
+    }
+
+    void stageStarted(@NonNull final SaveStage stage) {
+        if (mSaveMetrics != null) {
+            mSaveMetrics.stageStarted(stage);
+        }
+        if (mListener == null) {
+            return;
+        }
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onStageStarted(stage);
+            }
+        });
+    }
+
+    void stageCompleted(@NonNull SaveStage stage) {
+        stageCompleted(stage, 0);
+    }
+
+    /**
+     * @param allocatedBytes bytes of the image buffers the stage created
+     */
+    void stageCompleted(@NonNull final SaveStage stage, long allocatedBytes) {
+        if (mSaveMetrics != null) {
+            mSaveMetrics.stageCompleted(stage, allocatedBytes);
+        }
+        if (mListener == null) {
+            return;
+        }
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onStageCompleted(stage);
+            }
+        });
+    }
+
+    /**
+     * Report a stage which ran interleaved with the stage <code>within</code>, e.g. the write while
+     * the encoder streams into the file. Call it after <code>within</code> completed, the listener
+     * receives the start and the completion then.
+     *
+     * @param durationNanos time spent in the stage, it is moved out of <code>within</code>
+     */
+    void stageInterleaved(@NonNull final SaveStage stage, @NonNull SaveStage within, long durationNanos) {
+        if (mSaveMetrics != null) {
+            mSaveMetrics.stageInterleaved(stage, within, durationNanos);
+        }
+        if (mListener == null) {
+            return;
+        }
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onStageStarted(stage);
+                mListener.onStageCompleted(stage);
+            }
+        });
+    }
+
+    void preview(@NonNull final Bitmap preview) {
+        if (mListener == null) {
+            return;
+        }
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onPreview(preview);
+            }
+        });
+    }
+
+    private void runOnMainThread(Runnable runnable) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            runnable.run();
+        } else {
+            mMainHandler.post(runnable);
+        }
+    }
+}
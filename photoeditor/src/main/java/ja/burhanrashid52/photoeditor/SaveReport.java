@@ -0,0 +1,116 @@
+package ja.burhanrashid52.photoeditor;
+
+/**
+ * <p>
+ * Details about a finished save which are delivered to {@link OnSaveReportListener}
+ * </p>
+ *
+ * @see SaveSettings.Builder#setOnSaveReportListener(OnSaveReportListener)
+ */
+public class SaveReport {
+
+    private boolean isTiledExport;
+    private long peakBytes;
+    private int compressQuality;
+    private long encodedBytes;
+    private boolean isFileSizeMet = true;
+    private int trialEncodes;
+    private boolean isDownscaled;
+    private long estimatedBytes;
+
+    SaveReport() {
+    }
+
+    /**
+     * @return true if the image was written band by band instead of from a full frame bitmap
+     */
+    public boolean isTiledExport() {
+        return isTiledExport;
+    }
+
+    /**
+     * @return highest number of bytes held by the image buffers while saving
+     */
+    public long getPeakBytes() {
+        return peakBytes;
+    }
+
+    /**
+     * @return quality the image was encoded with, the searched quality if a maximum file size is set
+     * @see SaveSettings.Builder#setMaxFileSize(long)
+     */
+    public int getCompressQuality() {
+        return compressQuality;
+    }
+
+    /**
+     * @return size of the encoded image in bytes or zero if it was streamed band by band
+     */
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    /**
+     * @return false if the image is still larger than the maximum file size at the lowest quality
+     * @see SaveSettings.Builder#setMaxFileSize(long)
+     */
+    public boolean isFileSizeMet() {
+        return isFileSizeMet;
+    }
+
+    /**
+     * @return number of encodes, probes included, used to search the quality
+     */
+    public int getTrialEncodes() {
+        return trialEncodes;
+    }
+
+    /**
+     * @return true if the image was saved at a lower resolution than requested because the
+     * requested resolution didn't fit in the available memory
+     * @see SaveSettings.Builder#setMemoryPlanningEnabled(boolean)
+     */
+    public boolean isDownscaled() {
+        return isDownscaled;
+    }
+
+    /**
+     * @return bytes the save was estimated to need before it started, zero if memory planning
+     * is disabled
+     */
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    void setTiledExport(boolean tiledExport) {
+        isTiledExport = tiledExport;
+    }
+
+    void setPeakBytes(long peakBytes) {
+        this.peakBytes = peakBytes;
+    }
+
+    void setCompressQuality(int compressQuality) {
+        this.compressQuality = compressQuality;
+    }
+
+    void setEncodedBytes(long encodedBytes) {
+        this.encodedBytes = encodedBytes;
+    }
+
+    void setFileSizeMet(boolean fileSizeMet) {
+        isFileSizeMet = fileSizeMet;
+    }
+
+    void setTrialEncodes(int trialEncodes) {
+        this.trialEncodes = trialEncodes;
+    }
+
+    void setDownscaled(boolean downscaled) {
+        isDownscaled = downscaled;
+    }
+
+    void setEstimatedBytes(long estimatedBytes) {
+        this.estimatedBytes = estimatedBytes;
+    }
+}
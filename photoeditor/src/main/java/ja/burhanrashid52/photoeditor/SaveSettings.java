@@ -8,10 +8,22 @@ import android.graphics.Bitmap;
  * Builder Class to apply multiple save options
  */
 public class SaveSettings {
+    private static final int DEFAULT_PREVIEW_DIMENSION = 256;
+
     private boolean isTransparencyEnabled;
     private boolean isClearViewsEnabled;
     private Bitmap.CompressFormat compressFormat;
     private int compressQuality;
+    private boolean isTiledExportEnabled;
+    private int tileHeight;
+    private OnSaveReportListener onSaveReportListener;
+    private SavePriority priority;
+    private boolean isSourceResolutionEnabled;
+    private int maxDimension;
+    private long maxFileSize;
+    private OnSaveProgressListener onSaveProgressListener;
+    private int previewDimension;
+    private boolean isMemoryPlanningEnabled;
 
     boolean isTransparencyEnabled() {
         return isTransparencyEnabled;
@@ -29,11 +41,61 @@ public class SaveSettings {
         return compressQuality;
     }
 
+    boolean isTiledExportEnabled() {
+        return isTiledExportEnabled;
+    }
+
+    int getTileHeight() {
+        return tileHeight;
+    }
+
+    OnSaveReportListener getOnSaveReportListener() {
+        return onSaveReportListener;
+    }
+
+    SavePriority getPriority() {
+        return priority;
+    }
+
+    boolean isSourceResolutionEnabled() {
+        return isSourceResolutionEnabled;
+    }
+
+    int getMaxDimension() {
+        return maxDimension;
+    }
+
+    long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    OnSaveProgressListener getOnSaveProgressListener() {
+        return onSaveProgressListener;
+    }
+
+    int getPreviewDimension() {
+        return previewDimension;
+    }
+
+    boolean isMemoryPlanningEnabled() {
+        return isMemoryPlanningEnabled;
+    }
+
     private SaveSettings(Builder builder) {
         this.isClearViewsEnabled = builder.isClearViewsEnabled;
         this.isTransparencyEnabled = builder.isTransparencyEnabled;
         this.compressFormat = builder.compressFormat;
         this.compressQuality = builder.compressQuality;
+        this.isTiledExportEnabled = builder.isTiledExportEnabled;
+        this.tileHeight = builder.tileHeight;
+        this.onSaveReportListener = builder.onSaveReportListener;
+        this.priority = builder.priority;
+        this.isSourceResolutionEnabled = builder.isSourceResolutionEnabled;
+        this.maxDimension = builder.maxDimension;
+        this.maxFileSize = builder.maxFileSize;
+        this.onSaveProgressListener = builder.onSaveProgressListener;
+        this.previewDimension = builder.previewDimension;
+        this.isMemoryPlanningEnabled = builder.isMemoryPlanningEnabled;
     }
 
     public static class Builder {
@@ -41,6 +103,16 @@ public class SaveSettings {
         private boolean isClearViewsEnabled = true;
         private Bitmap.CompressFormat compressFormat = Bitmap.CompressFormat.PNG;
         private int compressQuality = 100;
+        private boolean isTiledExportEnabled = false;
+        private int tileHeight = TiledExporter.DEFAULT_BAND_HEIGHT;
+        private OnSaveReportListener onSaveReportListener;
+        private SavePriority priority = SavePriority.NORMAL;
+        private boolean isSourceResolutionEnabled = false;
+        private int maxDimension = 0;
+        private long maxFileSize = 0;
+        private OnSaveProgressListener onSaveProgressListener;
+        private int previewDimension = DEFAULT_PREVIEW_DIMENSION;
+        private boolean isMemoryPlanningEnabled = true;
 
         /**
          * Define a flag to enable transparency while saving image
@@ -87,6 +159,138 @@ public class SaveSettings {
             return this;
         }
 
+        /**
+         * Define a flag to draw and encode the image in horizontal bands instead of capturing the
+         * full frame drawing cache. Peak memory is one band instead of the whole image.
+         * <br></br>
+         * <b>Note :</b> Only {@link Bitmap.CompressFormat#PNG} can be streamed, other formats
+         * are saved from the full frame
+         *
+         * @param tiledExportEnabled true if enabled
+         * @return Builder
+         */
+        public Builder setTiledExportEnabled(boolean tiledExportEnabled) {
+            isTiledExportEnabled = tiledExportEnabled;
+            return this;
+        }
+
+        /**
+         * Set the height in pixels of a band used by the tiled export
+         *
+         * @param tileHeight height of a band, must be larger than zero
+         * @return Builder
+         * @see #setTiledExportEnabled(boolean)
+         */
+        public Builder setTileHeight(int tileHeight) {
+            this.tileHeight = tileHeight > 0 ? tileHeight : TiledExporter.DEFAULT_BAND_HEIGHT;
+            return this;
+        }
+
+        /**
+         * Set a callback to receive the {@link SaveReport} after the image is saved
+         *
+         * @param onSaveReportListener callback for the save report
+         * @return Builder
+         */
+        public Builder setOnSaveReportListener(OnSaveReportListener onSaveReportListener) {
+            this.onSaveReportListener = onSaveReportListener;
+            return this;
+        }
+
+        /**
+         * Set the priority of the save on the {@link ExportExecutor}
+         *
+         * @param priority LOW, NORMAL or HIGH
+         * @return Builder
+         */
+        public Builder setPriority(SavePriority priority) {
+            this.priority = priority != null ? priority : SavePriority.NORMAL;
+            return this;
+        }
+
+        /**
+         * Define a flag to save the image at the resolution of the source bitmap instead of the
+         * size of {@link PhotoEditorView}. The filter result, brush drawing and all added views
+         * are re-rendered offscreen in image coordinates.
+         *
+         * @param sourceResolutionEnabled true if enabled
+         * @return Builder
+         */
+        public Builder setSourceResolutionEnabled(boolean sourceResolutionEnabled) {
+            isSourceResolutionEnabled = sourceResolutionEnabled;
+            return this;
+        }
+
+        /**
+         * Set the largest width or height in pixels of the saved image. A larger image is scaled
+         * down keeping its aspect ratio, a smaller one is saved as it is.
+         *
+         * @param maxDimension longest edge in pixels, zero or less to keep the original size
+         * @return Builder
+         */
+        public Builder setMaxDimension(int maxDimension) {
+            this.maxDimension = Math.max(maxDimension, 0);
+            return this;
+        }
+
+        /**
+         * Set the largest size in bytes of the saved file. The highest quality up to
+         * {@link #setCompressQuality(int)} which fits is searched and reported in
+         * {@link SaveReport#getCompressQuality()}.
+         * <br></br>
+         * <b>Note :</b> Only {@link Bitmap.CompressFormat#JPEG} and {@link Bitmap.CompressFormat#WEBP}
+         * use the quality, PNG is saved as it is
+         *
+         * @param maxFileSize size in bytes, zero or less to disable
+         * @return Builder
+         */
+        public Builder setMaxFileSize(long maxFileSize) {
+            this.maxFileSize = Math.max(maxFileSize, 0);
+            return this;
+        }
+
+        /**
+         * Set a callback to save progressively: a low resolution preview is delivered right
+         * after the filter is read back, followed by the start and end of every {@link SaveStage}
+         * and finally the saved image
+         * <br></br>
+         * <b>Note :</b> A target of {@link PhotoEditor#saveAsFiles} only reports its encode and
+         * write stages because the preview, readback and composite are shared by all the targets
+         *
+         * @param onSaveProgressListener callback for the preview and the stages
+         * @return Builder
+         */
+        public Builder setOnSaveProgressListener(OnSaveProgressListener onSaveProgressListener) {
+            this.onSaveProgressListener = onSaveProgressListener;
+            return this;
+        }
+
+        /**
+         * Set the largest width or height in pixels of the preview of a progressive save
+         *
+         * @param previewDimension longest edge in pixels, must be larger than zero
+         * @return Builder
+         * @see #setOnSaveProgressListener(OnSaveProgressListener)
+         */
+        public Builder setPreviewDimension(int previewDimension) {
+            this.previewDimension = previewDimension > 0 ? previewDimension : DEFAULT_PREVIEW_DIMENSION;
+            return this;
+        }
+
+        /**
+         * Define a flag to estimate the memory a save needs before it starts and pick a tiled or
+         * downscaled save automatically when the requested one doesn't fit. A save which still
+         * runs out of memory is retried once on a cheaper path.
+         *
+         * @param memoryPlanningEnabled true if enabled, enabled by default
+         * @return Builder
+         * @see SaveReport#isDownscaled()
+         */
+        public Builder setMemoryPlanningEnabled(boolean memoryPlanningEnabled) {
+            isMemoryPlanningEnabled = memoryPlanningEnabled;
+            return this;
+        }
+
         public SaveSettings build() {
             return new SaveSettings(this);
         }
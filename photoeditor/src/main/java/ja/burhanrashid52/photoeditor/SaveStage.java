@@ -0,0 +1,32 @@
+package ja.burhanrashid52.photoeditor;
+
+/**
+ * <p>
+ * Stages of a save in the order they run. A stage is skipped when the save doesn't need it, for
+ * example {@link #CROP} without transparency removal or {@link #ENCODE} when saving as bitmap.
+ * </p>
+ *
+ * @see OnSaveProgressListener
+ */
+public enum SaveStage {
+    /**
+     * Read the filtered image back from the GL surface
+     */
+    READBACK,
+    /**
+     * Draw the source and all the layers into one bitmap
+     */
+    COMPOSITE,
+    /**
+     * Remove the transparent borders
+     */
+    CROP,
+    /**
+     * Compress the image to the output format
+     */
+    ENCODE,
+    /**
+     * Write the compressed image to the file
+     */
+    WRITE
+}
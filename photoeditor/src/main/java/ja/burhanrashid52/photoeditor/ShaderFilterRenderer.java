@@ -0,0 +1,473 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Render the {@link PhotoFilter} presets with GLSL instead of the <code>android.media.effect</code>
+ * framework. Every preset is a small fragment snippet and consecutive presets are fused into one
+ * generated shader, so a chain of presets costs a single full frame pass:
+ * </p>
+ * <p>
+ * 1. Presets which move pixels like the flips and {@link PhotoFilter#FISH_EYE} only change the
+ * coordinate the pass samples at, they can be fused while no other preset came before.<br></br>
+ * 2. {@link PhotoFilter#SHARPEN} reads the neighbours of the input, it has to be the first preset
+ * which reads colors in a pass.<br></br>
+ * 3. All other presets only change the color of one pixel and are always fused. Consecutive
+ * presets which are a {@link FilterMatrix} are multiplied into one matrix first.<br></br>
+ * 4. A {@link LutFilter} is a lookup into its strip texture from the {@link LutTextureCache}, it is
+ * fused like the color presets but a pass holds one look at most. A pass with a look which is
+ * too large for the textures of the GPU is filtered by the {@link CpuFilterEngine} instead.
+ * </p>
+ * <p>
+ * {@link PhotoFilter#AUTO_FIX} needs the histogram of the whole image and {@link CustomEffect}
+ * stages are unknown effects, they keep a pass of their own with the effect framework.
+ * </p>
+ * <br></br>
+ * <b>Note :</b> The snippets approximate the parameters {@link ImageFilterView} uses for the effect
+ * framework, the output is close but not identical. All methods must be called on the GL thread.
+ *
+ * @see ImageFilterView#setShaderFiltersEnabled(boolean)
+ */
+class ShaderFilterRenderer {
+
+    private enum Kind {
+        REMAP,
+        SAMPLE,
+        COLOR,
+        LUT,
+        UNSUPPORTED
+    }
+
+    static final String VERTEX_SHADER =
+            "attribute vec4 a_position;\n" +
+                    "attribute vec2 a_texcoord;\n" +
+                    "varying vec2 v_texcoord;\n" +
+                    "void main() {\n" +
+                    "  gl_Position = a_position;\n" +
+                    "  v_texcoord = a_texcoord;\n" +
+                    "}\n";
+
+    private static final float[] TEX_VERTICES = {
+            0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 1.0f, 1.0f, 1.0f
+    };
+
+    private static final float[] POS_VERTICES = {
+            -1.0f, -1.0f, 1.0f, -1.0f, -1.0f, 1.0f, 1.0f, 1.0f
+    };
+
+    private static final String LUMA = "dot(color.rgb, vec3(0.299, 0.587, 0.114))";
+
+    // Every combination of presets is a program of its own, the least recently used are handed back
+    private static final int MAX_PROGRAMS = 16;
+
+    private final LinkedHashMap<String, Program> mPrograms =
+            new LinkedHashMap<String, Program>(MAX_PROGRAMS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Program> eldest) {
+                    if (size() > MAX_PROGRAMS) {
+                        GLToolbox.releaseProgram(eldest.getValue().id);
+                        return true;
+                    }
+                    return false;
+                }
+            };
+    private final LutTextureCache mLutTextures = new LutTextureCache();
+    private FloatBuffer mTexVertices;
+    private FloatBuffer mPosVertices;
+
+    /**
+     * A linked program with the locations it uses
+     */
+    private static class Program {
+        final int id;
+        final int texSamplerHandle;
+        final int texelSizeHandle;
+        final int lutSamplerHandle;
+        final int texCoordHandle;
+        final int posCoordHandle;
+
+        Program(int id) {
+            this.id = id;
+            texSamplerHandle = GLES20.glGetUniformLocation(id, "tex_sampler");
+            texelSizeHandle = GLES20.glGetUniformLocation(id, "texel_size");
+            lutSamplerHandle = GLES20.glGetUniformLocation(id, "lut_sampler");
+            texCoordHandle = GLES20.glGetAttribLocation(id, "a_texcoord");
+            posCoordHandle = GLES20.glGetAttribLocation(id, "a_position");
+        }
+    }
+
+    /**
+     * Split the stages of a chain into passes. A shader pass holds one or more fused presets, any
+     * other pass holds exactly one stage which is rendered with the effect framework.
+     *
+     * @param stages {@link PhotoFilter}, {@link LutFilter} and {@link CustomEffect} stages in the
+     *               order they apply
+     * @return passes in the order they run
+     */
+    static List<List<Object>> planPasses(@NonNull List<Object> stages) {
+        List<List<Object>> passes = new ArrayList<>();
+        List<Object> pass = null;
+        boolean hasRead = false;
+        boolean hasLut = false;
+        for (Object stage : stages) {
+            Kind kind = kindOf(stage);
+            if (kind == Kind.UNSUPPORTED) {
+                List<Object> single = new ArrayList<>(1);
+                single.add(stage);
+                passes.add(single);
+                pass = null;
+                continue;
+            }
+            boolean startsPass = pass == null
+                    || (kind == Kind.REMAP && hasRead)
+                    || (kind == Kind.SAMPLE && hasRead)
+                    || (kind == Kind.LUT && hasLut);
+            if (startsPass) {
+                pass = new ArrayList<>();
+                passes.add(pass);
+                hasRead = false;
+                hasLut = false;
+            }
+            pass.add(stage);
+            hasRead = hasRead || kind != Kind.REMAP;
+            hasLut = hasLut || kind == Kind.LUT;
+        }
+        return passes;
+    }
+
+    /**
+     * @return true if the pass from {@link #planPasses(List)} is rendered with a shader
+     */
+    static boolean isShaderPass(@NonNull List<Object> pass) {
+        return kindOf(pass.get(0)) != Kind.UNSUPPORTED;
+    }
+
+    /**
+     * Render a shader pass from the input texture into the output texture
+     *
+     * @param pass          presets of the pass, see {@link #planPasses(List)}
+     * @param inputTexture  texture to read
+     * @param width         width of the image
+     * @param height        height of the image
+     * @param outputTexture texture which receives the result at the same size
+     */
+    void render(@NonNull List<Object> pass, int inputTexture, int width, int height, int outputTexture) {
+        LutFilter lutFilter = findLut(pass);
+        if (lutFilter != null && !mLutTextures.isSupported(lutFilter)) {
+            // The strip is wider than the GPU allows, the whole pass runs on the CPU instead
+            renderOnCpu(pass, inputTexture, width, height, outputTexture);
+            return;
+        }
+        Program program = obtainProgram(createFragmentShader(pass));
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, outputTexture);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLToolbox.initTexParams();
+        int frameBuffer = BitmapUtil.bindTextureFrameBuffer(outputTexture);
+        if (frameBuffer == 0) {
+            throw new IllegalStateException("Can't render into texture " + outputTexture);
+        }
+        try {
+            GLES20.glUseProgram(program.id);
+            GLES20.glViewport(0, 0, width, height);
+            GLES20.glDisable(GLES20.GL_BLEND);
+            GLES20.glVertexAttribPointer(program.texCoordHandle, 2, GLES20.GL_FLOAT, false, 0, mTexVertices);
+            GLES20.glEnableVertexAttribArray(program.texCoordHandle);
+            GLES20.glVertexAttribPointer(program.posCoordHandle, 2, GLES20.GL_FLOAT, false, 0, mPosVertices);
+            GLES20.glEnableVertexAttribArray(program.posCoordHandle);
+
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, inputTexture);
+            GLToolbox.initTexParams();
+            GLES20.glUniform1i(program.texSamplerHandle, 0);
+            GLES20.glUniform2f(program.texelSizeHandle, 1f / width, 1f / height);
+            if (lutFilter != null) {
+                GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mLutTextures.obtain(lutFilter));
+                GLES20.glUniform1i(program.lutSamplerHandle, 1);
+                // The effect framework and the other renderers expect the first unit
+                GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            }
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+            GLToolbox.checkGlError("render shader pass");
+        } finally {
+            BitmapUtil.deleteFrameBuffer(frameBuffer);
+        }
+    }
+
+    /**
+     * Read the input, filter it with the {@link CpuFilterEngine} and upload the result, which only
+     * runs when the stages change as the chain renderers keep the output
+     */
+    private static void renderOnCpu(List<Object> pass, int inputTexture, int width, int height, int outputTexture) {
+        Bitmap input = BitmapUtil.createBitmapFromGlTexture(inputTexture, width, height);
+        if (input == null) {
+            throw new IllegalStateException("Can't read texture " + inputTexture);
+        }
+        Bitmap output = null;
+        try {
+            output = BitmapUtil.applyFiltersOnCpu(input, pass);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, outputTexture);
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, output, 0);
+            GLToolbox.initTexParams();
+            GLToolbox.checkGlError("upload pass filtered on the CPU");
+        } finally {
+            BitmapPool.getDefault().release(input);
+            if (output != null) {
+                BitmapPool.getDefault().release(output);
+            }
+        }
+    }
+
+    /**
+     * @return number of programs held for the passes rendered so far, at most {@link #MAX_PROGRAMS}
+     */
+    int getProgramCount() {
+        return mPrograms.size();
+    }
+
+    /**
+     * @return number of LUT strips uploaded so far, switching back to a cached look doesn't upload
+     * it again
+     */
+    int getLutUploadCount() {
+        return mLutTextures.getUploadCount();
+    }
+
+    /**
+     * Hand the programs back to {@link GLToolbox} and delete the LUT textures, the context must
+     * still be current
+     */
+    void release() {
+        for (Program program : mPrograms.values()) {
+            GLToolbox.releaseProgram(program.id);
+        }
+        mPrograms.clear();
+        mLutTextures.release();
+    }
+
+    /**
+     * Forget the programs and the LUT textures without deleting them after their GL context was lost
+     */
+    void abandon() {
+        mPrograms.clear();
+        mLutTextures.abandon();
+    }
+
+    private Program obtainProgram(String fragmentShader) {
+        if (mTexVertices == null) {
+            mTexVertices = createBuffer(TEX_VERTICES);
+            mPosVertices = createBuffer(POS_VERTICES);
+        }
+        Program program = mPrograms.get(fragmentShader);
+        if (program == null) {
+            program = new Program(GLToolbox.obtainProgram(VERTEX_SHADER, fragmentShader));
+            mPrograms.put(fragmentShader, program);
+        }
+        return program;
+    }
+
+    /**
+     * @return shaders of the presets on their own, which {@link GLToolbox#prewarm()} links
+     */
+    static List<String> getPresetFragmentShaders() {
+        List<String> shaders = new ArrayList<>();
+        for (PhotoFilter filter : PhotoFilter.values()) {
+            if (kindOf(filter) != Kind.UNSUPPORTED) {
+                shaders.add(createFragmentShader(Collections.<Object>singletonList(filter)));
+            }
+        }
+        return shaders;
+    }
+
+    /**
+     * Generate the fused shader of a pass. The coordinate presets are applied last to first,
+     * the sample of a pixel after a flip comes from the mirrored pixel before it.
+     */
+    static String createFragmentShader(List<Object> pass) {
+        StringBuilder remaps = new StringBuilder();
+        StringBuilder colors = new StringBuilder();
+        String read = "  vec4 color = texture2D(tex_sampler, src);\n";
+        FilterMatrix matrix = null;
+        LutFilter lutFilter = findLut(pass);
+        for (Object stage : pass) {
+            if (stage instanceof LutFilter) {
+                if (matrix != null) {
+                    colors.append(matrix.toGlsl());
+                    matrix = null;
+                }
+                colors.append(lutSnippet(lutFilter.getSize()));
+                continue;
+            }
+            PhotoFilter filter = (PhotoFilter) stage;
+            switch (kindOf(filter)) {
+                case REMAP:
+                    remaps.insert(0, remapSnippet(filter));
+                    break;
+                case SAMPLE:
+                    read = sampleSnippet();
+                    break;
+                default:
+                    FilterMatrix filterMatrix = FilterMatrix.forFilter(filter);
+                    if (filterMatrix != null) {
+                        // toGlsl clamps, so a matrix which can leave 0..255 ends the fold
+                        if (matrix != null && !matrix.isInRange()) {
+                            colors.append(matrix.toGlsl());
+                            matrix = null;
+                        }
+                        matrix = matrix == null ? filterMatrix : matrix.then(filterMatrix);
+                        break;
+                    }
+                    if (matrix != null) {
+                        colors.append(matrix.toGlsl());
+                        matrix = null;
+                    }
+                    colors.append(colorSnippet(filter))
+                            .append("  color.rgb = clamp(color.rgb, 0.0, 1.0);\n");
+                    break;
+            }
+        }
+        if (matrix != null) {
+            colors.append(matrix.toGlsl());
+        }
+        // Grain hashes the pixel position which needs more than mediump at full resolution
+        return "#ifdef GL_FRAGMENT_PRECISION_HIGH\n" +
+                "precision highp float;\n" +
+                "#else\n" +
+                "precision mediump float;\n" +
+                "#endif\n" +
+                "uniform sampler2D tex_sampler;\n" +
+                "uniform vec2 texel_size;\n" +
+                (lutFilter != null ? "uniform sampler2D lut_sampler;\n" : "") +
+                "varying vec2 v_texcoord;\n" +
+                "void main() {\n" +
+                "  vec2 coord = v_texcoord;\n" +
+                "  vec2 src = coord;\n" +
+                remaps +
+                read +
+                colors +
+                "  gl_FragColor = color;\n" +
+                "}\n";
+    }
+
+    private static Kind kindOf(Object stage) {
+        if (stage instanceof LutFilter) {
+            return Kind.LUT;
+        }
+        if (!(stage instanceof PhotoFilter)) {
+            return Kind.UNSUPPORTED;
+        }
+        switch ((PhotoFilter) stage) {
+            case FLIP_HORIZONTAL:
+            case FLIP_VERTICAL:
+            case ROTATE:
+            case FISH_EYE:
+                return Kind.REMAP;
+            case SHARPEN:
+                return Kind.SAMPLE;
+            case AUTO_FIX:
+            case NONE:
+                return Kind.UNSUPPORTED;
+            default:
+                return Kind.COLOR;
+        }
+    }
+
+    private static String remapSnippet(PhotoFilter filter) {
+        switch (filter) {
+            case FLIP_HORIZONTAL:
+                return "  src.x = 1.0 - src.x;\n";
+            case FLIP_VERTICAL:
+                return "  src.y = 1.0 - src.y;\n";
+            case ROTATE:
+                return "  src = 1.0 - src;\n";
+            case FISH_EYE:
+                // Magnify the center, the corners stay in place
+                return "  src = 0.5 + (src - 0.5) * mix(1.0, length(src - 0.5) * 1.4142, 0.5);\n";
+            default:
+                throw new IllegalArgumentException("Not a coordinate preset: " + filter);
+        }
+    }
+
+    private static LutFilter findLut(List<Object> pass) {
+        for (Object stage : pass) {
+            if (stage instanceof LutFilter) {
+                return (LutFilter) stage;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Look up the color in the strip, see {@link LutFilter}. The texture filtering interpolates red
+     * and green within a slice, blue is interpolated between the two nearest slices.
+     */
+    private static String lutSnippet(int size) {
+        String last = (size - 1) + ".0";
+        String levels = size + ".0";
+        return "  float lut_blue = color.b * " + last + ";\n" +
+                "  float lut_slice = floor(lut_blue);\n" +
+                "  vec2 lut_coord = (color.rg * " + last + " + 0.5) / vec2(" + levels + " * " + levels + ", " + levels + ");\n" +
+                "  vec3 lut_low = texture2D(lut_sampler, lut_coord + vec2(lut_slice / " + levels + ", 0.0)).rgb;\n" +
+                "  vec3 lut_high = texture2D(lut_sampler,\n" +
+                "      lut_coord + vec2(min(lut_slice + 1.0, " + last + ") / " + levels + ", 0.0)).rgb;\n" +
+                "  color.rgb = mix(lut_low, lut_high, lut_blue - lut_slice);\n";
+    }
+
+    private static String sampleSnippet() {
+        return "  vec4 color = texture2D(tex_sampler, src);\n" +
+                "  vec3 neighbours = texture2D(tex_sampler, src + vec2(texel_size.x, 0.0)).rgb\n" +
+                "      + texture2D(tex_sampler, src - vec2(texel_size.x, 0.0)).rgb\n" +
+                "      + texture2D(tex_sampler, src + vec2(0.0, texel_size.y)).rgb\n" +
+                "      + texture2D(tex_sampler, src - vec2(0.0, texel_size.y)).rgb;\n" +
+                "  color.rgb = clamp(color.rgb + 0.5 * (4.0 * color.rgb - neighbours), 0.0, 1.0);\n";
+    }
+
+    private static String colorSnippet(PhotoFilter filter) {
+        switch (filter) {
+            case CROSS_PROCESS:
+                return "  color.r = color.r * color.r * (3.0 - 2.0 * color.r);\n" +
+                        "  color.g = mix(color.g, color.g * color.g * (3.0 - 2.0 * color.g), 0.5);\n" +
+                        "  color.b = color.b * 0.75 + 0.125;\n";
+            case DOCUMENTARY:
+                return "  color.rgb = mix(vec3(" + LUMA + "), color.rgb, 0.3);\n" +
+                        "  color.rgb *= 1.0 - 0.5 * smoothstep(0.3, 0.8, distance(coord, vec2(0.5)));\n";
+            case FILL_LIGHT:
+                return "  color.rgb = pow(color.rgb, vec3(1.0 - 0.4 * 0.8 * (1.0 - " + LUMA + ")));\n";
+            case GRAIN:
+                return "  color.rgb += 0.1 * (fract(sin(dot(coord / texel_size, vec2(12.9898, 78.233)))"
+                        + " * 43758.5453) - 0.5);\n";
+            case LOMISH:
+                return "  color.rgb = mix(vec3(" + LUMA + "), color.rgb, 1.4);\n" +
+                        "  color.rgb = (color.rgb - 0.5) * 1.2 + 0.5;\n" +
+                        "  color.rgb *= 1.0 - 0.7 * smoothstep(0.25, 0.75, distance(coord, vec2(0.5)));\n";
+            case POSTERIZE:
+                return "  color.rgb = floor(color.rgb * 7.0 + 0.5) / 7.0;\n";
+            case VIGNETTE:
+                return "  color.rgb *= 1.0 - 0.5 * smoothstep(0.3, 0.75, distance(coord, vec2(0.5)));\n";
+            default:
+                throw new IllegalArgumentException("Not a color preset: " + filter);
+        }
+    }
+
+    private static FloatBuffer createBuffer(float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        buffer.put(values).position(0);
+        return buffer;
+    }
+}
@@ -0,0 +1,214 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.opengl.GLSurfaceView;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+
+/**
+ * <p>
+ * Create the contexts of the {@link ImageFilterView}s in one share group, so programs linked by
+ * {@link GLToolbox#obtainProgram(String, String)} in one view or by {@link GLToolbox#prewarm()}
+ * are reused by every other view.
+ * </p>
+ * <p>
+ * The group is held by a root context which is never made current by a view and lives as long
+ * as the process. If a context can't share with the root it is created on its own and forms a
+ * group of its own.
+ * </p>
+ * <br></br>
+ * <b>Note :</b> Destroying the context of a view doesn't free what it created in the group,
+ * release it while the context is still current.
+ */
+class SharedEGLContextFactory implements GLSurfaceView.EGLContextFactory {
+
+    private static final String TAG = "SharedEGLContext";
+    private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+    private static final int EGL_OPENGL_ES2_BIT = 4;
+    private static final int[] CONTEXT_ATTRIBS = {EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE};
+
+    private static final SharedEGLContextFactory INSTANCE = new SharedEGLContextFactory();
+    // Key of the programs of all the contexts which share with the root
+    private static final Object SHARED_GROUP = new Object();
+
+    private static EGLContext sRootContext;
+    private static final Set<EGLContext> sSharingContexts = new HashSet<>();
+
+    private SharedEGLContextFactory() {
+    }
+
+    static SharedEGLContextFactory getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config) {
+        EGLContext context = createSharingContext(egl, display, config);
+        if (context != null) {
+            return context;
+        }
+        return egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT, CONTEXT_ATTRIBS);
+    }
+
+    @Override
+    public void destroyContext(EGL10 egl, EGLDisplay display, EGLContext context) {
+        boolean isShared;
+        synchronized (SharedEGLContextFactory.class) {
+            isShared = sSharingContexts.remove(context);
+        }
+        if (!isShared) {
+            // The programs of a group of its own are deleted together with the context
+            GLToolbox.forgetPrograms(context);
+        }
+        if (!egl.eglDestroyContext(display, context)) {
+            throw new RuntimeException("eglDestroyContext failed: " + egl.eglGetError());
+        }
+    }
+
+    /**
+     * @return key of the share group of the current context, null if no context is current
+     */
+    static Object getShareGroup() {
+        EGLContext context = ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+        if (context == null || context.equals(EGL10.EGL_NO_CONTEXT)) {
+            return null;
+        }
+        synchronized (SharedEGLContextFactory.class) {
+            return sSharingContexts.contains(context) ? SHARED_GROUP : context;
+        }
+    }
+
+    /**
+     * Run the work on the calling thread with a context of the share group current on a 1x1
+     * pixel buffer, the context is destroyed afterwards. See {@link PbufferContext}.
+     *
+     * @return true if the work ran
+     */
+    static boolean runInSharedContext(Runnable work) {
+        PbufferContext pbufferContext = new PbufferContext();
+        if (!pbufferContext.makeCurrent()) {
+            return false;
+        }
+        try {
+            work.run();
+            return true;
+        } finally {
+            pbufferContext.release();
+        }
+    }
+
+    /**
+     * Context of the share group on a 1x1 pixel buffer, for rendering without a view. Everything is
+     * rendered into frame buffers of its own, the pixel buffer is never drawn to. If the context
+     * can't share with the root it is created on its own.
+     */
+    static class PbufferContext {
+
+        private final EGL10 mEgl = (EGL10) EGLContext.getEGL();
+        private EGLDisplay mDisplay = EGL10.EGL_NO_DISPLAY;
+        private EGLContext mContext;
+        private EGLSurface mSurface = EGL10.EGL_NO_SURFACE;
+
+        /**
+         * Create the context and make it current on the calling thread
+         *
+         * @return true if the context is current, otherwise everything created is released again
+         */
+        boolean makeCurrent() {
+            mDisplay = mEgl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
+            if (mDisplay == EGL10.EGL_NO_DISPLAY || !mEgl.eglInitialize(mDisplay, new int[2])) {
+                Log.e(TAG, "Can't initialize the display: " + mEgl.eglGetError());
+                mDisplay = EGL10.EGL_NO_DISPLAY;
+                return false;
+            }
+            EGLConfig config = choosePbufferConfig(mEgl, mDisplay);
+            mContext = config != null ? createSharingContext(mEgl, mDisplay, config) : null;
+            if (mContext == null && config != null) {
+                // Still usable for rendering, only the programs are not shared
+                EGLContext context = mEgl.eglCreateContext(mDisplay, config, EGL10.EGL_NO_CONTEXT, CONTEXT_ATTRIBS);
+                mContext = context != EGL10.EGL_NO_CONTEXT ? context : null;
+            }
+            if (mContext == null) {
+                Log.e(TAG, "Can't create a context: " + mEgl.eglGetError());
+                release();
+                return false;
+            }
+            mSurface = mEgl.eglCreatePbufferSurface(mDisplay, config,
+                    new int[]{EGL10.EGL_WIDTH, 1, EGL10.EGL_HEIGHT, 1, EGL10.EGL_NONE});
+            if (mSurface == EGL10.EGL_NO_SURFACE || !mEgl.eglMakeCurrent(mDisplay, mSurface, mSurface, mContext)) {
+                Log.e(TAG, "Can't make the shared context current: " + mEgl.eglGetError());
+                release();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Detach the context from the calling thread and destroy it
+         */
+        void release() {
+            if (mDisplay == EGL10.EGL_NO_DISPLAY) {
+                return;
+            }
+            mEgl.eglMakeCurrent(mDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+            if (mSurface != EGL10.EGL_NO_SURFACE) {
+                mEgl.eglDestroySurface(mDisplay, mSurface);
+                mSurface = EGL10.EGL_NO_SURFACE;
+            }
+            if (mContext != null) {
+                INSTANCE.destroyContext(mEgl, mDisplay, mContext);
+                mContext = null;
+            }
+            mEgl.eglTerminate(mDisplay);
+            mDisplay = EGL10.EGL_NO_DISPLAY;
+        }
+    }
+
+    /**
+     * @return context which shares with the root, null if the root can't be created or shared
+     */
+    private static synchronized EGLContext createSharingContext(EGL10 egl, EGLDisplay display, EGLConfig config) {
+        if (sRootContext == null) {
+            // The root keeps its own reference on the display, so the group survives the views
+            if (!egl.eglInitialize(display, new int[2])) {
+                return null;
+            }
+            EGLContext root = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT, CONTEXT_ATTRIBS);
+            if (root == null || root == EGL10.EGL_NO_CONTEXT) {
+                egl.eglTerminate(display);
+                return null;
+            }
+            sRootContext = root;
+        }
+        EGLContext context = egl.eglCreateContext(display, config, sRootContext, CONTEXT_ATTRIBS);
+        if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+            return null;
+        }
+        sSharingContexts.add(context);
+        return context;
+    }
+
+    private static EGLConfig choosePbufferConfig(EGL10 egl, EGLDisplay display) {
+        int[] attribs = {
+                EGL10.EGL_RED_SIZE, 8,
+                EGL10.EGL_GREEN_SIZE, 8,
+                EGL10.EGL_BLUE_SIZE, 8,
+                EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+                EGL10.EGL_SURFACE_TYPE, EGL10.EGL_PBUFFER_BIT,
+                EGL10.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] count = new int[1];
+        if (!egl.eglChooseConfig(display, attribs, configs, 1, count) || count[0] == 0) {
+            return null;
+        }
+        return configs[0];
+    }
+}
@@ -0,0 +1,138 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.support.annotation.NonNull;
+
+/**
+ * <p>
+ * Texture which holds the source bitmap of an {@link ImageFilterView}. It remembers which bitmap
+ * and which {@link Bitmap#getGenerationId()} of it was uploaded last, so drawing the same unchanged
+ * bitmap again doesn't upload its pixels again.
+ * </p>
+ * <p>
+ * A bitmap of the same size and config as the resident one is uploaded with
+ * <code>texSubImage2D</code> into the existing texture instead of allocating a new one, and
+ * {@link #updateRegion(Bitmap, Rect)} only uploads the pixels which changed.
+ * </p>
+ * <br></br>
+ * <b>Note :</b> All methods must be called on the GL thread.
+ */
+public class SourceTexture {
+
+    private int mTextureId;
+    private Bitmap mBitmap;
+    private int mGenerationId;
+    private int mWidth;
+    private int mHeight;
+    private Bitmap.Config mConfig;
+    private int mUploadCount;
+
+    /**
+     * Upload the bitmap unless it is already resident with the same generation
+     *
+     * @param bitmap source image
+     * @return true if pixels were uploaded
+     */
+    public boolean update(@NonNull Bitmap bitmap) {
+        if (isResident(bitmap) && bitmap.getGenerationId() == mGenerationId) {
+            return false;
+        }
+        upload(bitmap);
+        return true;
+    }
+
+    /**
+     * Upload only a region of the bitmap which changed in place. Falls back to
+     * {@link #update(Bitmap)} when the bitmap is not the resident one.
+     *
+     * @param bitmap      source image
+     * @param dirtyRegion pixels which changed since the last upload
+     * @return true if pixels were uploaded
+     */
+    public boolean updateRegion(@NonNull Bitmap bitmap, @NonNull Rect dirtyRegion) {
+        Rect region = new Rect(dirtyRegion);
+        if (!isResident(bitmap) || !region.intersect(0, 0, mWidth, mHeight)) {
+            return update(bitmap);
+        }
+        if (region.width() == mWidth && region.height() == mHeight) {
+            // The whole image changed, a copy of the region would only cost memory
+            upload(bitmap);
+            return true;
+        }
+        Bitmap pixels = Bitmap.createBitmap(bitmap, region.left, region.top, region.width(), region.height());
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, region.left, region.top, pixels);
+        GLToolbox.checkGlError("upload source region");
+        pixels.recycle();
+        setResident(bitmap);
+        return true;
+    }
+
+    private void upload(Bitmap bitmap) {
+        if (mTextureId != 0 && bitmap.getWidth() == mWidth && bitmap.getHeight() == mHeight
+                && bitmap.getConfig() == mConfig) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+            GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, bitmap);
+        } else {
+            if (mTextureId == 0) {
+                int[] textures = new int[1];
+                GLES20.glGenTextures(1, textures, 0);
+                mTextureId = textures[0];
+            }
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+            GLToolbox.initTexParams();
+            mWidth = bitmap.getWidth();
+            mHeight = bitmap.getHeight();
+            mConfig = bitmap.getConfig();
+        }
+        GLToolbox.checkGlError("upload source");
+        setResident(bitmap);
+    }
+
+    /**
+     * @return name of the texture, zero until a bitmap was uploaded
+     */
+    public int getTextureId() {
+        return mTextureId;
+    }
+
+    /**
+     * @return number of uploads since this texture was created, only meant for tests
+     */
+    int getUploadCount() {
+        return mUploadCount;
+    }
+
+    /**
+     * Delete the texture, the context must still be current
+     */
+    public void release() {
+        if (mTextureId != 0) {
+            GLES20.glDeleteTextures(1, new int[]{mTextureId}, 0);
+        }
+        abandon();
+    }
+
+    /**
+     * Forget the texture without deleting it after its GL context was lost
+     */
+    public void abandon() {
+        mTextureId = 0;
+        mBitmap = null;
+        mConfig = null;
+    }
+
+    private boolean isResident(Bitmap bitmap) {
+        return mTextureId != 0 && bitmap == mBitmap;
+    }
+
+    private void setResident(Bitmap bitmap) {
+        mBitmap = bitmap;
+        mGenerationId = bitmap.getGenerationId();
+        mUploadCount++;
+    }
+}
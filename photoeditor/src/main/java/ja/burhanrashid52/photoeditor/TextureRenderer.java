@@ -33,6 +33,7 @@ public class TextureRenderer {
     private int mPosCoordHandle;
 
     private FloatBuffer mTexVertices;
+    private FloatBuffer mTexVerticesFlipped;
     private FloatBuffer mPosVertices;
 
     private int mViewWidth;
@@ -41,7 +42,7 @@ public class TextureRenderer {
     private int mTexWidth;
     private int mTexHeight;
 
-    private static final String VERTEX_SHADER =
+    static final String VERTEX_SHADER =
             "attribute vec4 a_position;\n" +
                     "attribute vec2 a_texcoord;\n" +
                     "varying vec2 v_texcoord;\n" +
@@ -50,7 +51,7 @@ public class TextureRenderer {
                     "  v_texcoord = a_texcoord;\n" +
                     "}\n";
 
-    private static final String FRAGMENT_SHADER =
+    static final String FRAGMENT_SHADER =
             "precision mediump float;\n" +
                     "uniform sampler2D tex_sampler;\n" +
                     "varying vec2 v_texcoord;\n" +
@@ -62,6 +63,10 @@ public class TextureRenderer {
             0.0f, 1.0f, 1.0f, 1.0f, 0.0f, 0.0f, 1.0f, 0.0f
     };
 
+    private static final float[] TEX_VERTICES_FLIPPED = {
+            0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 1.0f, 1.0f, 1.0f
+    };
+
     private static final float[] POS_VERTICES = {
             -1.0f, -1.0f, 1.0f, -1.0f, -1.0f, 1.0f, 1.0f, 1.0f
     };
@@ -80,7 +85,7 @@ public class TextureRenderer {
         }
         // Create program
         try {
-            mProgram = GLToolbox.createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+            mProgram = GLToolbox.obtainProgram(VERTEX_SHADER, FRAGMENT_SHADER);
         } catch (Exception e) {
             Log.e(TAG, "Cannot create program", e);
             return;
@@ -97,6 +102,10 @@ public class TextureRenderer {
                 TEX_VERTICES.length * FLOAT_SIZE_BYTES)
                 .order(ByteOrder.nativeOrder()).asFloatBuffer();
         mTexVertices.put(TEX_VERTICES).position(0);
+        mTexVerticesFlipped = ByteBuffer.allocateDirect(
+                TEX_VERTICES_FLIPPED.length * FLOAT_SIZE_BYTES)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mTexVerticesFlipped.put(TEX_VERTICES_FLIPPED).position(0);
         mPosVertices = ByteBuffer.allocateDirect(
                 POS_VERTICES.length * FLOAT_SIZE_BYTES)
                 .order(ByteOrder.nativeOrder()).asFloatBuffer();
@@ -106,7 +115,12 @@ public class TextureRenderer {
     }
 
     public void tearDown() {
-        GLES20.glDeleteProgram(mProgram);
+        if (!mIsInitialized) {
+            // The program is shared, it must only be handed back once
+            return;
+        }
+        GLToolbox.releaseProgram(mProgram);
+        mIsInitialized = false;
     }
 
     public void updateTextureSize(int texWidth, int texHeight) {
@@ -122,6 +136,17 @@ public class TextureRenderer {
     }
 
     public void renderTexture(int texId) {
+        renderTexture(texId, false);
+    }
+
+    /**
+     * Render the texture to the default frame buffer
+     *
+     * @param texId        texture to render
+     * @param flipVertical true to render the texture upside down, so <code>glReadPixels</code>
+     *                     returns the rows top first
+     */
+    public void renderTexture(int texId, boolean flipVertical) {
         if (!mIsInitialized) {
             return;
         }
@@ -142,7 +167,7 @@ public class TextureRenderer {
 
         // Set the vertex attributes
         GLES20.glVertexAttribPointer(mTexCoordHandle, 2, GLES20.GL_FLOAT, false,
-                0, mTexVertices);
+                0, flipVertical ? mTexVerticesFlipped : mTexVertices);
         GLES20.glEnableVertexAttribArray(mTexCoordHandle);
         GLES20.glVertexAttribPointer(mPosCoordHandle, 2, GLES20.GL_FLOAT, false,
                 0, mPosVertices);
@@ -0,0 +1,209 @@
+package ja.burhanrashid52.photoeditor;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.support.annotation.NonNull;
+import android.view.View;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>
+ * Export the {@link PhotoEditorView} or an {@link ImageSpaceCompositor} by drawing it in
+ * horizontal bands and streaming every band into a {@link PngStreamEncoder}. Only one band is kept
+ * in memory at a time instead of the full frame drawing cache.
+ * </p>
+ *
+ * @see SaveSettings.Builder#setTiledExportEnabled(boolean)
+ */
+class TiledExporter {
+
+    static final int DEFAULT_BAND_HEIGHT = 256;
+
+    /**
+     * Content which is drawn band by band
+     */
+    interface Source {
+        int getWidth();
+
+        int getHeight();
+
+        void draw(Canvas canvas);
+    }
+
+    private final Source mSource;
+    private final int mBandHeight;
+    private long mPeakBytes;
+
+    TiledExporter(@NonNull Source source, int bandHeight) {
+        mSource = source;
+        mBandHeight = bandHeight > 0 ? bandHeight : DEFAULT_BAND_HEIGHT;
+    }
+
+    /**
+     * @param view view which is drawn as it is laid out
+     * @return source drawing the view at its current size
+     */
+    static Source fromView(@NonNull final View view) {
+        return new Source() {
+            @Override
+            public int getWidth() {
+                return view.getWidth();
+            }
+
+            @Override
+            public int getHeight() {
+                return view.getHeight();
+            }
+
+            @Override
+            public void draw(Canvas canvas) {
+                view.draw(canvas);
+            }
+        };
+    }
+
+    /**
+     * Wrap the source so its longest edge is drawn at most <code>maxDimension</code> pixels
+     *
+     * @param source       content to scale
+     * @param maxDimension longest edge in pixels, zero or less to keep the source
+     * @return scaled source or the source itself if it already fits
+     */
+    static Source scaleToMaxDimension(@NonNull final Source source, int maxDimension) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        if (maxDimension <= 0 || (width <= maxDimension && height <= maxDimension)) {
+            return source;
+        }
+        final float scale = (float) maxDimension / Math.max(width, height);
+        return new Source() {
+            @Override
+            public int getWidth() {
+                return Math.max(1, Math.round(width * scale));
+            }
+
+            @Override
+            public int getHeight() {
+                return Math.max(1, Math.round(height * scale));
+            }
+
+            @Override
+            public void draw(Canvas canvas) {
+                canvas.save();
+                canvas.scale(scale, scale);
+                source.draw(canvas);
+                canvas.restore();
+            }
+        };
+    }
+
+    /**
+     * Draw the view band by band and write it as PNG
+     *
+     * @param out                 stream which receives the encoded image
+     * @param removeTransparency  crop the fully transparent borders like {@link BitmapUtil#removeTransparency(Bitmap)}
+     * @throws IOException when writing to the stream fails
+     */
+    void exportPng(@NonNull OutputStream out, boolean removeTransparency) throws IOException {
+        int width = mSource.getWidth();
+        int height = mSource.getHeight();
+        if (width <= 0 || height <= 0) {
+            throw new IllegalStateException("Nothing to export, size is " + width + "x" + height);
+        }
+        int bandHeight = Math.min(mBandHeight, height);
+        BitmapPool bitmapPool = BitmapPool.getDefault();
+        Bitmap band = bitmapPool.obtainDirty(width, bandHeight, Bitmap.Config.ARGB_8888);
+        int[] pixels = bitmapPool.obtainPixels(width * bandHeight);
+        long bandBytes = (long) band.getRowBytes() * band.getHeight() + pixels.length * 4L;
+        Canvas canvas = new Canvas(band);
+        try {
+            int left = 0, top = 0, right = width - 1, bottom = height - 1;
+            if (removeTransparency) {
+                int[] bounds = findContentBounds(canvas, band, pixels, width, height, bandHeight);
+                if (bounds == null) {
+                    throw new IllegalStateException("Image is fully transparent");
+                }
+                left = bounds[0];
+                top = bounds[1];
+                right = bounds[2];
+                bottom = bounds[3];
+            }
+            int outWidth = right - left + 1;
+            int outHeight = bottom - top + 1;
+            PngStreamEncoder encoder = new PngStreamEncoder(out, outWidth, outHeight);
+            mPeakBytes = bandBytes + encoder.getBufferBytes();
+            for (int bandTop = top - (top % bandHeight); bandTop <= bottom; bandTop += bandHeight) {
+                int rows = drawBand(canvas, band, pixels, width, height, bandTop, bandHeight);
+                int firstRow = Math.max(top, bandTop) - bandTop;
+                int lastRow = Math.min(bottom, bandTop + rows - 1) - bandTop;
+                encoder.writeRows(pixels, firstRow * width + left, width, lastRow - firstRow + 1);
+            }
+            encoder.finish();
+        } finally {
+            bitmapPool.release(band);
+            bitmapPool.releasePixels(pixels);
+        }
+    }
+
+    /**
+     * @return highest number of bytes held by the band buffers during the last export
+     */
+    long getPeakBytes() {
+        return mPeakBytes;
+    }
+
+    private int drawBand(Canvas canvas, Bitmap band, int[] pixels,
+                         int width, int height, int bandTop, int bandHeight) {
+        int rows = Math.min(bandHeight, height - bandTop);
+        band.eraseColor(Color.TRANSPARENT);
+        canvas.save();
+        canvas.translate(0, -bandTop);
+        mSource.draw(canvas);
+        canvas.restore();
+        band.getPixels(pixels, 0, width, 0, 0, width, rows);
+        return rows;
+    }
+
+    /**
+     * Render every band once to find the first and last non transparent rows and columns
+     *
+     * @return left, top, right and bottom inclusive bounds or null if there is no visible pixel
+     */
+    private int[] findContentBounds(Canvas canvas, Bitmap band, int[] pixels,
+                                    int width, int height, int bandHeight) {
+        int left = width, top = -1, right = -1, bottom = -1;
+        for (int bandTop = 0; bandTop < height; bandTop += bandHeight) {
+            int rows = drawBand(canvas, band, pixels, width, height, bandTop, bandHeight);
+            for (int row = 0; row < rows; row++) {
+                int offset = row * width;
+                int first = -1;
+                for (int x = 0; x < width; x++) {
+                    if (pixels[offset + x] != Color.TRANSPARENT) {
+                        first = x;
+                        break;
+                    }
+                }
+                if (first < 0) {
+                    continue;
+                }
+                int last = first;
+                for (int x = width - 1; x > right && x > first; x--) {
+                    if (pixels[offset + x] != Color.TRANSPARENT) {
+                        last = x;
+                        break;
+                    }
+                }
+                if (top < 0) {
+                    top = bandTop + row;
+                }
+                bottom = bandTop + row;
+                left = Math.min(left, first);
+                right = Math.max(right, last);
+            }
+        }
+        return top < 0 ? null : new int[]{left, top, right, bottom};
+    }
+}
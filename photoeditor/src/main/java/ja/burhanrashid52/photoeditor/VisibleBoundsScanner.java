@@ -0,0 +1,166 @@
+package ja.burhanrashid52.photoeditor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ * Find the bounds of the pixels which are not fully transparent, for
+ * {@link BitmapUtil#removeTransparency(android.graphics.Bitmap)}. The image is read through a
+ * {@link RowSource} in strips of rows instead of copying the whole frame, so the scan is plain
+ * Java and can be measured on the JVM.
+ * </p>
+ * <p>
+ * The first and last visible rows are found scanning from the top and bottom edge, then the rows
+ * in between are split in bands which find the first and last visible columns in parallel. Every
+ * scan stops as soon as it can't move the edge any further.
+ * </p>
+ */
+class VisibleBoundsScanner {
+
+    static final int STRIP_ROWS = 16;
+    private static final int MIN_ROWS_PER_BAND = 64;
+
+    /**
+     * Image which is read row by row
+     */
+    interface RowSource {
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * Copy rows of ARGB pixels into the strip, one row after the other without padding
+         *
+         * @param strip receives <code>rows * getWidth()</code> pixels
+         * @param top   first row to read
+         * @param rows  number of rows to read
+         */
+        void readRows(int[] strip, int top, int rows);
+    }
+
+    private VisibleBoundsScanner() {
+    }
+
+    /**
+     * @param source   image to scan
+     * @param executor runs the bands after the first one, null to scan on the calling thread only
+     * @param maxBands number of bands the rows are split into at most
+     * @return <code>{left, top, right, bottom}</code> inclusive, null if no pixel is visible
+     */
+    static int[] findBounds(RowSource source, ExecutorService executor, int maxBands) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int[] strip = new int[width * Math.min(STRIP_ROWS, height)];
+        int top = findVisibleRow(source, strip, 0, height, true);
+        if (top < 0) {
+            return null;
+        }
+        int bottom = findVisibleRow(source, strip, top, height, false);
+        int rows = bottom - top + 1;
+        int bandCount = Math.max(1, Math.min(maxBands, rows / MIN_ROWS_PER_BAND));
+        int[] columns = bandCount == 1 || executor == null
+                ? findVisibleColumns(source, strip, top, bottom)
+                : findVisibleColumnsInBands(source, strip, top, bottom, bandCount, executor);
+        return new int[]{columns[0], top, columns[1], bottom};
+    }
+
+    /**
+     * @return first row from the top or last row from the bottom of the range <code>[from, to)</code>
+     * with a visible pixel or -1 if there is none
+     */
+    private static int findVisibleRow(RowSource source, int[] strip, int from, int to, boolean fromTop) {
+        int width = source.getWidth();
+        int stripRows = strip.length / width;
+        for (int scanned = 0; scanned < to - from; scanned += stripRows) {
+            int rows = Math.min(stripRows, to - from - scanned);
+            int stripTop = fromTop ? from + scanned : to - scanned - rows;
+            source.readRows(strip, stripTop, rows);
+            for (int i = 0; i < rows; i++) {
+                int row = fromTop ? i : rows - 1 - i;
+                int offset = row * width;
+                for (int x = 0; x < width; x++) {
+                    if (strip[offset + x] != 0) {
+                        return stripTop + row;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return first and last column with a visible pixel in the rows <code>[top, bottom]</code>
+     */
+    private static int[] findVisibleColumns(RowSource source, int[] strip, int top, int bottom) {
+        int width = source.getWidth();
+        int stripRows = strip.length / width;
+        int left = width;
+        int right = -1;
+        for (int stripTop = top; stripTop <= bottom; stripTop += stripRows) {
+            int rows = Math.min(stripRows, bottom - stripTop + 1);
+            source.readRows(strip, stripTop, rows);
+            for (int row = 0; row < rows; row++) {
+                int offset = row * width;
+                // Only the pixels outside of the current bounds can move an edge
+                for (int x = 0; x < left; x++) {
+                    if (strip[offset + x] != 0) {
+                        left = x;
+                        break;
+                    }
+                }
+                for (int x = width - 1; x > right; x--) {
+                    if (strip[offset + x] != 0) {
+                        right = x;
+                        break;
+                    }
+                }
+            }
+            if (left == 0 && right == width - 1) {
+                break;
+            }
+        }
+        return new int[]{left, right};
+    }
+
+    private static int[] findVisibleColumnsInBands(final RowSource source, int[] strip, final int top,
+                                                   final int bottom, int bandCount, ExecutorService executor) {
+        int rows = bottom - top + 1;
+        int rowsPerBand = (rows + bandCount - 1) / bandCount;
+        List<Future<int[]>> futures = new ArrayList<>(bandCount - 1);
+        final int stripLength = strip.length;
+        for (int band = 1; band < bandCount; band++) {
+            final int bandTop = top + band * rowsPerBand;
+            final int bandBottom = Math.min(bottom, bandTop + rowsPerBand - 1);
+            if (bandTop > bandBottom) {
+                break;
+            }
+            futures.add(executor.submit(new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    return findVisibleColumns(source, new int[stripLength], bandTop, bandBottom);
+                }
+            }));
+        }
+        // The first band runs on the calling thread
+        int[] bounds = findVisibleColumns(source, strip, top, Math.min(bottom, top + rowsPerBand - 1));
+        for (Future<int[]> future : futures) {
+            int[] bandBounds;
+            try {
+                bandBounds = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while removing transparency", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Failed to remove transparency", e.getCause());
+            }
+            bounds[0] = Math.min(bounds[0], bandBounds[0]);
+            bounds[1] = Math.max(bounds[1], bandBounds[1]);
+        }
+        return bounds;
+    }
+}
@@ -0,0 +1,212 @@
+package net.zedge.photoeditor;
+
+import android.graphics.Rect;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.WeakHashMap;
+
+/**
+ * <p>
+ * Queue of the {@link ZedgeImageFilterView.RenderJob}s which are not rendered yet, the job with the
+ * highest priority is rendered first and jobs of the same priority in the order they were queued.
+ * Jobs whose target view is visible get a higher priority than the others.
+ * </p>
+ * <p>
+ * Jobs are indexed by their id and their target view. Queuing a job with the id or the target view
+ * of a queued job replaces it, e.g. when a recycled thumbnail view is bound to another filter.
+ * Removed jobs are only marked in the heap and skipped when they come up, so cancelling is O(1).
+ * </p>
+ * <br></br>
+ * <b>Note :</b> Jobs which are dropped without being rendered still own their effect, take them
+ * with {@link #takeDropped()} on the GL thread to release it.
+ */
+class RenderJobQueue {
+
+    // Added to the priority of jobs whose target view is visible
+    static final int VISIBLE_PRIORITY_BOOST = 1000;
+
+    private final PriorityQueue<Entry> mHeap = new PriorityQueue<>(16, new Comparator<Entry>() {
+        @Override
+        public int compare(Entry first, Entry second) {
+            if (first.priority != second.priority) {
+                return first.priority > second.priority ? -1 : 1;
+            }
+            return first.sequence < second.sequence ? -1 : (first.sequence == second.sequence ? 0 : 1);
+        }
+    });
+    private final Map<String, Entry> mById = new HashMap<>();
+    private final Map<View, Entry> mByTarget = new WeakHashMap<>();
+    private final List<ZedgeImageFilterView.RenderJob> mDropped = new ArrayList<>();
+    private long mSequence;
+    private int mStaleCount;
+
+    /**
+     * A job in the heap with the priority it was queued with
+     */
+    private static class Entry {
+        final ZedgeImageFilterView.RenderJob job;
+        final int priority;
+        final long sequence;
+        boolean isStale;
+
+        Entry(ZedgeImageFilterView.RenderJob job, int priority, long sequence) {
+            this.job = job;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Queue a job, replacing a queued job with the same id or the same target view. Call it on the
+     * main thread, the visibility of the target view is checked.
+     */
+    synchronized void add(ZedgeImageFilterView.RenderJob job) {
+        replace(mById.get(job.jobId), job);
+        View target = job.getTargetView();
+        if (target != null) {
+            replace(mByTarget.get(target), job);
+        }
+        push(job, priorityOf(job));
+    }
+
+    /**
+     * Remove a queued job
+     *
+     * @return true if the job was queued
+     */
+    synchronized boolean cancel(String jobId) {
+        Entry entry = mById.get(jobId);
+        drop(entry);
+        return entry != null;
+    }
+
+    /**
+     * Check the target views of the queued jobs again, e.g. after the thumbnails were scrolled.
+     * Jobs whose view became visible move up, jobs whose view was detached or collected are
+     * dropped. Call it on the main thread.
+     */
+    synchronized void updatePriorities() {
+        for (Entry entry : new ArrayList<>(mById.values())) {
+            if (!entry.job.hasTargetView()) {
+                continue;
+            }
+            View target = entry.job.getTargetView();
+            if (target == null || target.getWindowToken() == null) {
+                drop(entry);
+                continue;
+            }
+            int priority = priorityOf(entry.job);
+            if (priority != entry.priority) {
+                // Lazy decrease key, the old entry is skipped when it comes up
+                markStale(entry);
+                push(entry.job, priority);
+            }
+        }
+    }
+
+    /**
+     * @return job with the highest priority, null if none is queued
+     */
+    synchronized ZedgeImageFilterView.RenderJob poll() {
+        Entry entry;
+        while ((entry = mHeap.poll()) != null) {
+            if (entry.isStale) {
+                mStaleCount--;
+                continue;
+            }
+            unlink(entry);
+            if (entry.job.hasTargetView() && entry.job.getTargetView() == null) {
+                // Nobody is left to show the result
+                mDropped.add(entry.job);
+                continue;
+            }
+            return entry.job;
+        }
+        return null;
+    }
+
+    synchronized boolean isEmpty() {
+        return mById.isEmpty();
+    }
+
+    /**
+     * @return jobs which were dropped since the last call, their effects were not released yet
+     */
+    synchronized List<ZedgeImageFilterView.RenderJob> takeDropped() {
+        if (mDropped.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<ZedgeImageFilterView.RenderJob> dropped = new ArrayList<>(mDropped);
+        mDropped.clear();
+        return dropped;
+    }
+
+    private void push(ZedgeImageFilterView.RenderJob job, int priority) {
+        Entry entry = new Entry(job, priority, mSequence++);
+        mHeap.add(entry);
+        mById.put(job.jobId, entry);
+        View target = job.getTargetView();
+        if (target != null) {
+            mByTarget.put(target, entry);
+        }
+    }
+
+    private void replace(Entry entry, ZedgeImageFilterView.RenderJob job) {
+        if (entry != null && entry.job.effect == job.effect) {
+            // The new job renders the same effect, it must not be released
+            markStale(entry);
+            unlink(entry);
+        } else {
+            drop(entry);
+        }
+    }
+
+    private void drop(Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        markStale(entry);
+        unlink(entry);
+        mDropped.add(entry.job);
+    }
+
+    private void markStale(Entry entry) {
+        entry.isStale = true;
+        mStaleCount++;
+        if (mStaleCount > 32 && mStaleCount > mHeap.size() / 2) {
+            // Most of the heap is skipped anyway, rebuild it from the live entries
+            List<Entry> live = new ArrayList<>(mHeap.size() - mStaleCount);
+            for (Entry queued : mHeap) {
+                if (!queued.isStale) {
+                    live.add(queued);
+                }
+            }
+            mHeap.clear();
+            mHeap.addAll(live);
+            mStaleCount = 0;
+        }
+    }
+
+    private void unlink(Entry entry) {
+        if (mById.get(entry.job.jobId) == entry) {
+            mById.remove(entry.job.jobId);
+        }
+        View target = entry.job.getTargetView();
+        if (target != null && mByTarget.get(target) == entry) {
+            mByTarget.remove(target);
+        }
+    }
+
+    private static int priorityOf(ZedgeImageFilterView.RenderJob job) {
+        View target = job.getTargetView();
+        boolean isVisible = target != null && target.isShown() && target.getGlobalVisibleRect(new Rect());
+        return job.priority + (isVisible ? VISIBLE_PRIORITY_BOOST : 0);
+    }
+}
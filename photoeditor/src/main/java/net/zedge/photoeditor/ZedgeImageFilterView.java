@@ -5,31 +5,47 @@ import android.graphics.Bitmap;
 import android.media.effect.Effect;
 import android.media.effect.EffectContext;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.AttributeSet;
+import android.view.View;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
+import ja.burhanrashid52.photoeditor.BitmapPool;
 import ja.burhanrashid52.photoeditor.BitmapUtil;
 import ja.burhanrashid52.photoeditor.CustomEffect;
-import ja.burhanrashid52.photoeditor.GLToolbox;
+import ja.burhanrashid52.photoeditor.EffectChain;
+import ja.burhanrashid52.photoeditor.EffectChainRenderer;
 import ja.burhanrashid52.photoeditor.ImageFilterView;
+import ja.burhanrashid52.photoeditor.OnSaveBitmap;
 import ja.burhanrashid52.photoeditor.PhotoFilter;
 
 public class ZedgeImageFilterView extends ImageFilterView {
 
     private static final String TAG = "ZedgeImageFilterView";
-    private boolean mShouldReloadTexture = false;
+    private static final long DEFAULT_RENDER_JOB_BUDGET_MILLIS = 8;
     private boolean mShouldReloadEffect = false;
+    // Whether mTextures[1] still holds the output of mEffect for the current source
+    private boolean isEffectOutputValid = false;
+    // Source scaled to the size of the render jobs and the output of the job which runs
+    private final int[] mJobTextures = new int[2];
+    private int mJobSourceWidth;
+    private int mJobSourceHeight;
+    private volatile long mRenderJobBudgetNanos = DEFAULT_RENDER_JOB_BUDGET_MILLIS * 1000000L;
     private Effect mNewEffect = null;
+    // Effects of this view or stages of an EffectChain, which are applied by ImageFilterView
+    private List<Object> mEffects = Collections.emptyList();
+    private List<Object> mNewEffects = null;
     private final Object mDrawLock = new Object();
 
+    /**
+     * The bitmap comes from the {@link BitmapPool}, release it there once the preview is replaced
+     */
     public interface RenderJobSuccessCallback {
         void onRenderJobSuccess(String jobName, Bitmap bitmap);
     }
@@ -44,6 +60,8 @@ public class ZedgeImageFilterView extends ImageFilterView {
         float scale;
         RenderJobSuccessCallback successCallback;
         RenderJobFailureCallback failureCallback;
+        int priority;
+        WeakReference<View> targetView;
         public RenderJob(String jobId,
                          Effect effect,
                          float scale,
@@ -55,9 +73,35 @@ public class ZedgeImageFilterView extends ImageFilterView {
             this.successCallback = successCallback;
             this.failureCallback = failureCallback;
         }
+
+        /**
+         * Jobs with a higher priority are rendered first, the default is zero
+         */
+        public RenderJob setPriority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * View which shows the result, e.g. the thumbnail of the filter. The job is rendered earlier
+         * while the view is visible, replaced by a newer job for the same view and dropped when the
+         * view is gone. The view is only weakly referenced.
+         */
+        public RenderJob setTargetView(View targetView) {
+            this.targetView = targetView != null ? new WeakReference<>(targetView) : null;
+            return this;
+        }
+
+        boolean hasTargetView() {
+            return targetView != null;
+        }
+
+        View getTargetView() {
+            return targetView != null ? targetView.get() : null;
+        }
     }
 
-    private List<RenderJob> mRenderJobs = Collections.synchronizedList(new ArrayList<RenderJob>());
+    private final RenderJobQueue mRenderJobs = new RenderJobQueue();
 
     public ZedgeImageFilterView(Context context) {
         super(context);
@@ -70,11 +114,39 @@ public class ZedgeImageFilterView extends ImageFilterView {
     @Override
     protected void setSourceBitmap(Bitmap sourceBitmap) {
         synchronized (mDrawLock) {
-            if (sourceBitmap == mSourceBitmap) {
-                return;
-            }
             mSourceBitmap = sourceBitmap;
-            mShouldReloadTexture = true;
+        }
+    }
+
+    @Override
+    public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        super.onSurfaceCreated(gl, config);
+        synchronized (mDrawLock) {
+            // The job textures of a previous context were released or abandoned by super
+            mJobTextures[0] = 0;
+            mJobTextures[1] = 0;
+            mJobSourceWidth = 0;
+            mJobSourceHeight = 0;
+            isEffectOutputValid = false;
+        }
+    }
+
+    @Override
+    protected void releaseGlResources() {
+        if (!canReleaseGlResources()) {
+            // Kept until a context of the same share group is current again
+            return;
+        }
+        synchronized (mDrawLock) {
+            if (mJobTextures[0] != 0) {
+                GLES20.glDeleteTextures(2, mJobTextures, 0);
+            }
+            mJobTextures[0] = 0;
+            mJobTextures[1] = 0;
+            mJobSourceWidth = 0;
+            mJobSourceHeight = 0;
+            isEffectOutputValid = false;
+            super.releaseGlResources();
         }
     }
 
@@ -85,21 +157,70 @@ public class ZedgeImageFilterView extends ImageFilterView {
         if (!mTexRenderer.isInitialized()) {
             mTexRenderer.init();
             createTextures();
-            reloadTextures();
+            isEffectOutputValid = false;
         }
-        if (mShouldReloadTexture) {
-            mShouldReloadTexture = false;
-            reloadTextures();
+        // Only uploads when the bitmap or its pixels changed
+        reloadTextures();
+    }
+
+    /**
+     * Render queued jobs until the time budget of the frame is used up, the rest is left for the
+     * next frame. At least one job runs per frame so the queue always makes progress.
+     */
+    private void drainRenderJobs() {
+        long deadline = System.nanoTime() + mRenderJobBudgetNanos;
+        boolean isFirst = true;
+        while (!mRenderJobs.isEmpty()) {
+            if (!isFirst && System.nanoTime() >= deadline) {
+                requestRender();
+                break;
+            }
+            RenderJob renderJob = mRenderJobs.poll();
+            if (renderJob == null) {
+                break;
+            }
+            isFirst = false;
+            drawJobFrame(renderJob);
+        }
+        // Jobs which were cancelled or replaced still own their effect
+        for (RenderJob dropped : mRenderJobs.takeDropped()) {
+            dropped.effect.release();
         }
     }
 
-    private void drawJobFrame(RenderJob renderJob) {
-        int viewPortWidth = Math.round(mImageWidth * renderJob.scale);
-        int viewPortHeight = Math.round(mImageHeight * renderJob.scale);
-        applyEffect(renderJob.effect, viewPortWidth, viewPortHeight);
+    /**
+     * Render the job offscreen into a texture of its own size, the frame of this view is untouched
+     */
+    private void drawJobFrame(final RenderJob renderJob) {
+        int viewPortWidth = Math.max(1, Math.round(mImageWidth * renderJob.scale));
+        int viewPortHeight = Math.max(1, Math.round(mImageHeight * renderJob.scale));
+        if (mJobTextures[0] == 0) {
+            GLES20.glGenTextures(2, mJobTextures, 0);
+        }
+        if (viewPortWidth != mJobSourceWidth || viewPortHeight != mJobSourceHeight) {
+            // Jobs of the same scale share the scaled source
+            drawScaledTexture(mTextures[0], viewPortWidth, viewPortHeight, mJobTextures[0]);
+            mJobSourceWidth = viewPortWidth;
+            mJobSourceHeight = viewPortHeight;
+        }
+        renderJob.effect.apply(mJobTextures[0], viewPortWidth, viewPortHeight, mJobTextures[1]);
+        if (isAsyncReadbackEnabled && mPixelReader.readTexture(mJobTextures[1], viewPortWidth, viewPortHeight,
+                new OnSaveBitmap() {
+                    @Override
+                    public void onBitmapReady(Bitmap saveBitmap) {
+                        renderJob.successCallback.onRenderJobSuccess(renderJob.jobId, saveBitmap);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        renderJob.failureCallback.onRenderJobFailure(renderJob.jobId, e);
+                    }
+                })) {
+            renderJob.effect.release();
+            return;
+        }
         try {
-            Bitmap bitmap = BitmapUtil.createBitmapFromGlFrameBuffer(
-                    0, 0, viewPortWidth, viewPortHeight);
+            Bitmap bitmap = BitmapUtil.createBitmapFromGlTexture(mJobTextures[1], viewPortWidth, viewPortHeight);
             renderJob.successCallback.onRenderJobSuccess(renderJob.jobId, bitmap);
         } catch (Throwable t) {
             renderJob.failureCallback.onRenderJobFailure(renderJob.jobId, t);
@@ -111,67 +232,79 @@ public class ZedgeImageFilterView extends ImageFilterView {
         if (mShouldReloadEffect) {
             mShouldReloadEffect = false;
             initEffect();
+            isEffectOutputValid = false;
         }
-        if (mEffect != null) {
+        if (!mEffects.isEmpty()) {
+            // Only the stages which changed since the last frame run again
+            mChainResultTexture = mChainRenderer.render(mTextures[0], mImageWidth, mImageHeight, mEffects,
+                    new EffectChainRenderer.StageRenderer() {
+                        @Override
+                        public void renderStage(int stage, int inputTexture, int width, int height,
+                                                int outputTexture) {
+                            renderEffectStage(mEffects.get(stage), inputTexture, width, height, outputTexture);
+                        }
+                    });
+        } else if (mEffect != null && !isEffectOutputValid) {
+            // Frames which only ran render jobs keep the output of the effect
             applyEffect(mEffect, mImageWidth, mImageHeight);
+            isEffectOutputValid = true;
         }
+        // The surface has to be redrawn on every frame, its buffer is undefined after the swap
         renderResult();
         if (isSaveImage) {
             isSaveImage = false;
-            try {
-                final Bitmap mFilterBitmap = BitmapUtil.createBitmapFromGLSurface(this, gl);
-                new Handler(Looper.getMainLooper()).post(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (mOnSaveBitmap != null) {
-                            mOnSaveBitmap.onBitmapReady(mFilterBitmap);
-                        }
-                    }
-                });
-            } catch (final Throwable e) {
-                new Handler(Looper.getMainLooper()).post(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (mOnSaveBitmap != null) {
-                            mOnSaveBitmap.onFailure(e);
-                        }
-                    }
-                });
-            }
+            readSaveBitmap();
         }
     }
 
     @Override
     public void onDrawFrame(GL10 gl) {
         synchronized (mDrawLock) {
+            collectPendingReads();
             if (mSourceBitmap == null) {
                 return;
             }
             prepareToDraw();
-            if (!mRenderJobs.isEmpty()) {
-                drawJobFrame(mRenderJobs.remove(0));
-                drawNormalFrame(gl);
-                if (!mRenderJobs.isEmpty()) {
-                    // Trigger another render iteration to handle the next job.
-                    requestRender();
-                }
-            } else {
-                drawNormalFrame(gl);
-            }
+            drainRenderJobs();
+            drawNormalFrame(gl);
         }
     }
 
     @Override
-    protected void renderResult() {
-        if (mEffect != null) {
-            // render the result of applyEffect()
-            mTexRenderer.renderTexture(mTextures[1]);
+    protected int getResultTexture() {
+        if (!mEffects.isEmpty()) {
+            return mChainResultTexture;
+        }
+        return mEffect != null ? mTextures[1] : mTextures[0];
+    }
+
+    @Override
+    protected List<?> getReplayStages() {
+        if (!mEffects.isEmpty()) {
+            return mEffects;
+        }
+        return mEffect != null ? Collections.singletonList(mEffect) : Collections.emptyList();
+    }
+
+    @Override
+    protected void renderReplayStage(Object stage, int inputTexture, int width, int height, int outputTexture) {
+        renderEffectStage(stage, inputTexture, width, height, outputTexture);
+    }
+
+    private void renderEffectStage(Object stage, int inputTexture, int width, int height, int outputTexture) {
+        if (stage instanceof Effect) {
+            ((Effect) stage).apply(inputTexture, width, height, outputTexture);
         } else {
-            // if no effect is chosen, just render the original bitmap
-            mTexRenderer.renderTexture(mTextures[0]);
+            renderChainStage(stage, inputTexture, width, height, outputTexture);
         }
     }
 
+    @Override
+    protected boolean isReplayTileable() {
+        // Nothing is known about the effects, they may look at the whole image
+        return mEffects.isEmpty() && mEffect == null;
+    }
+
     @Override
     protected void setFilterEffect(PhotoFilter effect) {
         synchronized (mDrawLock) {
@@ -190,36 +323,83 @@ public class ZedgeImageFilterView extends ImageFilterView {
         }
     }
 
+    /**
+     * Apply the stages of the chain like {@link #setFilterEffects(List)}, unchanged stages at the
+     * start of the chain keep their cached output
+     */
+    @Override
+    protected void setFilterEffect(EffectChain effectChain) {
+        synchronized (mDrawLock) {
+            mNewEffect = null;
+            mNewEffects = new ArrayList<Object>(effectChain.getStages());
+            mShouldReloadEffect = true;
+            requestRender();
+        }
+    }
+
     public void setFilterEffect(Effect effect) {
         synchronized (mDrawLock) {
             mNewEffect = effect;
+            mNewEffects = Collections.emptyList();
             mShouldReloadEffect = true;
             requestRender();
         }
     }
 
-    void submitRenderJob(RenderJob renderJob) {
+    /**
+     * Apply the effects one after the other. Effects which are at the same position as in the
+     * current chain keep their cached output, so replacing the effect at index k only applies
+     * the effects from k on again. Effects which are not part of the new chain are released.
+     *
+     * @param effects effects created in the GL context of this view
+     */
+    public void setFilterEffects(List<Effect> effects) {
         synchronized (mDrawLock) {
-            mRenderJobs.add(renderJob);
+            mNewEffect = null;
+            mNewEffects = new ArrayList<Object>(effects);
+            mShouldReloadEffect = true;
             requestRender();
         }
     }
 
+    /**
+     * Time each frame may spend on render jobs before the rest is left for the next frame
+     *
+     * @param budgetMillis budget per frame, a frame runs at least one job even when it is zero
+     */
+    public void setRenderJobTimeBudget(long budgetMillis) {
+        mRenderJobBudgetNanos = Math.max(0, budgetMillis) * 1000000L;
+    }
+
+    void submitRenderJob(RenderJob renderJob) {
+        mRenderJobs.add(renderJob);
+        requestRender();
+    }
+
     void cancelRenderJob(String jobId) {
-        synchronized (mDrawLock) {
-            for (RenderJob renderJob : mRenderJobs) {
-                if (renderJob.jobId.equals(jobId)) {
-                    mRenderJobs.remove(renderJob);
-                }
-            }
+        if (mRenderJobs.cancel(jobId)) {
+            // Release the effect of the job on the GL thread
+            requestRender();
         }
     }
 
+    /**
+     * Check the visibility of the target views of the queued jobs again, call it after the views
+     * were scrolled or recycled
+     *
+     * @see RenderJob#setTargetView(View)
+     */
+    public void updateRenderJobPriorities() {
+        mRenderJobs.updatePriorities();
+        requestRender();
+    }
+
     protected void removeEffect() {
         synchronized (mDrawLock) {
             mCurrentEffect = PhotoFilter.NONE;
             mCustomEffect = null;
             mNewEffect = null;
+            mNewEffects = Collections.emptyList();
             mShouldReloadEffect = true;
             requestRender();
         }
@@ -228,24 +408,25 @@ public class ZedgeImageFilterView extends ImageFilterView {
     private void reloadTextures() {
         // Load input bitmap
         if (mSourceBitmap != null) {
-            mImageWidth = mSourceBitmap.getWidth();
-            mImageHeight = mSourceBitmap.getHeight();
-            mTexRenderer.updateTextureSize(mImageWidth, mImageHeight);
-
-            // Upload to texture
             GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[0]);
-            GLToolbox.checkGlError("glBindTexture");
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, mSourceBitmap, 0);
-            GLToolbox.checkGlError("texImage2D");
-
-            // Set texture parameters
-            GLToolbox.initTexParams();
+            Bitmap previewBitmap = obtainPreviewBitmap(mSourceBitmap);
+            boolean isUploaded = mSourceTexture.update(previewBitmap);
+            mTextures[0] = mSourceTexture.getTextureId();
+            if (isUploaded) {
+                mImageWidth = previewBitmap.getWidth();
+                mImageHeight = previewBitmap.getHeight();
+                mTexRenderer.updateTextureSize(mImageWidth, mImageHeight);
+                mChainRenderer.invalidate();
+                isEffectOutputValid = false;
+                mJobSourceWidth = 0;
+                mJobSourceHeight = 0;
+            }
         }
     }
 
     private void createTextures() {
-        GLES20.glGenTextures(2, mTextures, 0);
+        // The source texture is created by mSourceTexture, only the output needs a name
+        GLES20.glGenTextures(1, mTextures, 1);
     }
 
     private void initEffect() {
@@ -257,6 +438,16 @@ public class ZedgeImageFilterView extends ImageFilterView {
             mEffect = mNewEffect;
             mNewEffect = null;
         }
+        if (mNewEffects != null) {
+            for (Object effect : mEffects) {
+                // Stages of a chain are descriptions, their effects belong to the cache of the view
+                if (effect instanceof Effect && !mNewEffects.contains(effect)) {
+                    ((Effect) effect).release();
+                }
+            }
+            mEffects = mNewEffects;
+            mNewEffects = null;
+        }
     }
 
     private void applyEffect(Effect effect, int viewPortWidth, int viewPortHeight) {
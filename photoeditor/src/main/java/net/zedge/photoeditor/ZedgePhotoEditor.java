@@ -3,6 +3,8 @@ package net.zedge.photoeditor;
 import android.content.Context;
 import android.media.effect.Effect;
 
+import java.util.List;
+
 import ja.burhanrashid52.photoeditor.DefaultLogger;
 import ja.burhanrashid52.photoeditor.Logger;
 import ja.burhanrashid52.photoeditor.PhotoEditor;
@@ -21,16 +23,45 @@ public class ZedgePhotoEditor extends PhotoEditor {
 
     public void setFilterEffect(Effect effect) {
         mZedgePhotoEditorView.setFilterEffect(effect);
+        invalidateCompositeCache();
+    }
+
+    /**
+     * Apply several effects one after the other, see {@link ZedgeImageFilterView#setFilterEffects(List)}
+     */
+    public void setFilterEffects(List<Effect> effects) {
+        mZedgePhotoEditorView.setFilterEffects(effects);
+        invalidateCompositeCache();
     }
 
     public void createFilterPreview(ZedgeImageFilterView.RenderJob renderJob) {
         mZedgePhotoEditorView.submitRenderJob(renderJob);
     }
 
+    /**
+     * Time each frame may spend rendering filter previews, the remaining previews are rendered on
+     * the next frames
+     *
+     * @param budgetMillis budget per frame in milliseconds
+     */
+    public void setFilterPreviewTimeBudget(long budgetMillis) {
+        mZedgePhotoEditorView.setRenderJobTimeBudget(budgetMillis);
+    }
+
     public void cancelFilterPreview(String jobId) {
         mZedgePhotoEditorView.cancelRenderJob(jobId);
     }
 
+    /**
+     * Render the previews of visible thumbnails first and drop the previews of recycled ones,
+     * call it when the thumbnails were scrolled
+     *
+     * @see ZedgeImageFilterView.RenderJob#setTargetView(android.view.View)
+     */
+    public void updateFilterPreviewPriorities() {
+        mZedgePhotoEditorView.updateRenderJobPriorities();
+    }
+
     public void removeFilter() {
         mZedgePhotoEditorView.removeFilter();
     }
@@ -7,6 +7,8 @@ import android.support.annotation.RequiresApi;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 
+import java.util.List;
+
 import ja.burhanrashid52.photoeditor.ImageFilterView;
 import ja.burhanrashid52.photoeditor.PhotoEditorView;
 
@@ -42,6 +44,17 @@ public class ZedgePhotoEditorView extends PhotoEditorView {
         mZedgeImageFilterView.setFilterEffect(effect);
     }
 
+    public void setFilterEffects(List<Effect> effects) {
+        mZedgeImageFilterView.setFilterEffects(effects);
+    }
+
+    /**
+     * @see ZedgeImageFilterView#setRenderJobTimeBudget(long)
+     */
+    public void setRenderJobTimeBudget(long budgetMillis) {
+        mZedgeImageFilterView.setRenderJobTimeBudget(budgetMillis);
+    }
+
     void submitRenderJob(ZedgeImageFilterView.RenderJob renderJob) {
         mZedgeImageFilterView.setVisibility(VISIBLE);
         mZedgeImageFilterView.submitRenderJob(renderJob);
@@ -51,6 +64,10 @@ public class ZedgePhotoEditorView extends PhotoEditorView {
         mZedgeImageFilterView.cancelRenderJob(jobId);
     }
 
+    void updateRenderJobPriorities() {
+        mZedgeImageFilterView.updateRenderJobPriorities();
+    }
+
     void removeFilter() {
         mZedgeImageFilterView.setVisibility(GONE);
         mZedgeImageFilterView.removeEffect();
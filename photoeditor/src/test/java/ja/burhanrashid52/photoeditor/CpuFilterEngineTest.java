@@ -0,0 +1,161 @@
+package ja.burhanrashid52.photoeditor;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CpuFilterEngineTest {
+
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+    // The shaders compute in float, the reference in double, both round once per pass
+    private static final int TOLERANCE = 1;
+
+    private final CpuFilterEngine mEngine = new CpuFilterEngine(null, 1);
+
+    @Test
+    public void goldenColors() {
+        assertFiltered(PhotoFilter.NEGATIVE, 0xff102030, 0xffefdfcf);
+        // Alpha is kept, the colors are not premultiplied
+        assertFiltered(PhotoFilter.NEGATIVE, 0x80ffffff, 0x80000000);
+        // 200 * 0.299
+        assertFiltered(PhotoFilter.GRAY_SCALE, 0xffc80000, 0xff3c3c3c);
+        assertFiltered(PhotoFilter.BRIGHTNESS, 0xff406080, 0xff80c0ff);
+        // 0.393 + 0.769 + 0.189 and 0.272 + 0.534 + 0.131 of white
+        assertFiltered(PhotoFilter.SEPIA, 0xffffffff, 0xffffffef);
+        // 128 plus and minus 0.08 * 255
+        assertFiltered(PhotoFilter.TEMPERATURE, 0xff808080, 0xff94806c);
+        // 128 / 255 is level 4 of 7
+        assertFiltered(PhotoFilter.POSTERIZE, 0xff808080, 0xff929292);
+        assertFiltered(PhotoFilter.CROSS_PROCESS, 0xff000000, 0xff000020);
+    }
+
+    @Test
+    public void goldenGeometry() {
+        int[] pixels = {1, 2, 3, 4, 5, 6};
+        int[] flipped = new int[6];
+        mEngine.apply(pixels, flipped, 3, 2, PhotoFilter.FLIP_HORIZONTAL);
+        assertArrayEquals(new int[]{3, 2, 1, 6, 5, 4}, flipped);
+        mEngine.apply(pixels, flipped, 3, 2, PhotoFilter.FLIP_VERTICAL);
+        assertArrayEquals(new int[]{4, 5, 6, 1, 2, 3}, flipped);
+        mEngine.apply(pixels, flipped, 3, 2, PhotoFilter.ROTATE);
+        assertArrayEquals(new int[]{6, 5, 4, 3, 2, 1}, flipped);
+    }
+
+    @Test
+    public void flatImageKeepsItsLevels() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        Arrays.fill(pixels, 0xff808080);
+        mEngine.apply(pixels, pixels, WIDTH, HEIGHT, PhotoFilter.AUTO_FIX);
+        assertEquals(0xff808080, pixels[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sharpenCannotFilterInPlace() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        mEngine.apply(pixels, pixels, WIDTH, HEIGHT, PhotoFilter.SHARPEN);
+    }
+
+    @Test
+    public void presetsMatchTheShaders() {
+        int[] pixels = createImage();
+        for (PhotoFilter filter : PhotoFilter.values()) {
+            if (filter == PhotoFilter.AUTO_FIX) {
+                // Only the effect framework has it
+                continue;
+            }
+            int[] actual = new int[pixels.length];
+            mEngine.apply(pixels, actual, WIDTH, HEIGHT, filter);
+            assertClose(filter.toString(),
+                    ShaderReference.apply(pixels, WIDTH, HEIGHT, Collections.singletonList(filter)), actual);
+        }
+    }
+
+    @Test
+    public void chainsMatchTheShaders() {
+        List<List<PhotoFilter>> chains = Arrays.asList(
+                Arrays.asList(PhotoFilter.BRIGHTNESS, PhotoFilter.GRAY_SCALE),
+                Arrays.asList(PhotoFilter.CONTRAST, PhotoFilter.SATURATE, PhotoFilter.NEGATIVE),
+                Arrays.asList(PhotoFilter.SEPIA, PhotoFilter.VIGNETTE, PhotoFilter.FLIP_HORIZONTAL),
+                Arrays.asList(PhotoFilter.SHARPEN, PhotoFilter.TINT, PhotoFilter.FISH_EYE));
+        int[] pixels = createImage();
+        for (List<PhotoFilter> chain : chains) {
+            int[] actual = pixels.clone();
+            mEngine.apply(actual, new int[actual.length], WIDTH, HEIGHT, chain);
+            // Every stage may round differently
+            assertClose(chain.toString(), ShaderReference.apply(pixels, WIDTH, HEIGHT, chain), actual,
+                    TOLERANCE * chain.size());
+        }
+    }
+
+    @Test
+    public void bandsMatchOneThread() {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            CpuFilterEngine parallel = new CpuFilterEngine(executor, 4);
+            int width = 97;
+            int height = 131;
+            int[] pixels = new int[width * height];
+            Random random = new Random(17);
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = random.nextInt();
+            }
+            for (PhotoFilter filter : PhotoFilter.values()) {
+                int[] expected = new int[pixels.length];
+                int[] actual = new int[pixels.length];
+                mEngine.apply(pixels, expected, width, height, filter);
+                parallel.apply(pixels, actual, width, height, filter);
+                assertArrayEquals(expected, actual);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void assertFiltered(PhotoFilter filter, int color, int expected) {
+        int[] pixels = {color};
+        mEngine.apply(pixels, pixels, 1, 1, filter);
+        assertEquals(filter + " of " + Integer.toHexString(color), expected, pixels[0]);
+    }
+
+    /**
+     * @return opaque gradients which reach both ends of every channel
+     */
+    private static int[] createImage() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int red = x * 255 / (WIDTH - 1);
+                int green = y * 255 / (HEIGHT - 1);
+                int blue = (x * 7 + y * 13) % 256;
+                pixels[y * WIDTH + x] = 0xff000000 | (red << 16) | (green << 8) | blue;
+            }
+        }
+        return pixels;
+    }
+
+    private static void assertClose(String message, int[] expected, int[] actual) {
+        assertClose(message, expected, actual, TOLERANCE);
+    }
+
+    private static void assertClose(String message, int[] expected, int[] actual, int tolerance) {
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                int difference = ((expected[i] >>> shift) & 0xff) - ((actual[i] >>> shift) & 0xff);
+                if (Math.abs(difference) > tolerance) {
+                    fail(message + " at " + i % WIDTH + "," + i / WIDTH + ": expected "
+                            + Integer.toHexString(expected[i]) + " but was " + Integer.toHexString(actual[i]));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package ja.burhanrashid52.photoeditor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FilterMatrixTest {
+
+    // Values at and next to the ends of the range saturate once doubled or contrasted
+    private static final int[] LEVELS = {0, 1, 64, 128, 200, 254, 255};
+    // Stages one by one round to whole values in between, folded ones don't
+    private static final int TOLERANCE = 2;
+
+    @Test
+    public void rangeOfPresets() {
+        assertTrue(FilterMatrix.identity().isInRange());
+        assertTrue(FilterMatrix.grayScale().isInRange());
+        assertTrue(FilterMatrix.negative().isInRange());
+        assertFalse(FilterMatrix.forFilter(PhotoFilter.BRIGHTNESS).isInRange());
+        assertFalse(FilterMatrix.forFilter(PhotoFilter.CONTRAST).isInRange());
+        assertFalse(FilterMatrix.forFilter(PhotoFilter.SATURATE).isInRange());
+    }
+
+    @Test
+    public void brightnessIsClampedBeforeGrayScale() {
+        int[] pixels = {0xffc80000};
+        new CpuFilterEngine(null, 1).apply(pixels, new int[1], 1, 1,
+                Arrays.asList(PhotoFilter.BRIGHTNESS, PhotoFilter.GRAY_SCALE));
+        // 200 * 2 clamps to 255 before the luma, folded it would be 400 * 0.299
+        assertEquals(0xff4c4c4c, pixels[0]);
+    }
+
+    @Test
+    public void foldedPairsMatchStagesOneByOne() {
+        List<PhotoFilter> presets = new ArrayList<>();
+        for (PhotoFilter filter : PhotoFilter.values()) {
+            if (FilterMatrix.forFilter(filter) != null) {
+                presets.add(filter);
+            }
+        }
+        int[] colors = createColors();
+        CpuFilterEngine engine = new CpuFilterEngine(null, 1);
+        for (PhotoFilter first : presets) {
+            for (PhotoFilter second : presets) {
+                int[] expected = colors.clone();
+                FilterMatrix.forFilter(first).apply(expected, 0, expected.length);
+                FilterMatrix.forFilter(second).apply(expected, 0, expected.length);
+                int[] actual = colors.clone();
+                engine.apply(actual, new int[actual.length], actual.length, 1, Arrays.asList(first, second));
+                for (int i = 0; i < colors.length; i++) {
+                    assertClose(first + " then " + second + " of " + Integer.toHexString(colors[i]),
+                            expected[i], actual[i]);
+                }
+            }
+        }
+    }
+
+    private static int[] createColors() {
+        int[] colors = new int[LEVELS.length * LEVELS.length * LEVELS.length];
+        int i = 0;
+        for (int red : LEVELS) {
+            for (int green : LEVELS) {
+                for (int blue : LEVELS) {
+                    colors[i++] = 0xff000000 | (red << 16) | (green << 8) | blue;
+                }
+            }
+        }
+        return colors;
+    }
+
+    private static void assertClose(String message, int expected, int actual) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            int difference = ((expected >>> shift) & 0xff) - ((actual >>> shift) & 0xff);
+            if (Math.abs(difference) > TOLERANCE) {
+                fail(message + ": expected " + Integer.toHexString(expected)
+                        + " but was " + Integer.toHexString(actual));
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ja.burhanrashid52.photoeditor;
+
+/**
+ * {@link VisibleBoundsScanner.RowSource} over a frame held in an int array, standing in for a bitmap
+ */
+class IntArrayRowSource implements VisibleBoundsScanner.RowSource {
+
+    final int[] pixels;
+    private final int mWidth;
+    private final int mHeight;
+
+    IntArrayRowSource(int width, int height) {
+        pixels = new int[width * height];
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Fill the rectangle <code>[left, right) x [top, bottom)</code> with an opaque color
+     */
+    IntArrayRowSource fill(int left, int top, int right, int bottom) {
+        for (int y = top; y < bottom; y++) {
+            for (int x = left; x < right; x++) {
+                pixels[y * mWidth + x] = 0xff336699;
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public void readRows(int[] strip, int top, int rows) {
+        System.arraycopy(pixels, top * mWidth, strip, 0, rows * mWidth);
+    }
+}
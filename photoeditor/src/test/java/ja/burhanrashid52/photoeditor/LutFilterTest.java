@@ -0,0 +1,154 @@
+package ja.burhanrashid52.photoeditor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class LutFilterTest {
+
+    // The shader interpolates in float, the CPU rounds once
+    private static final int TOLERANCE = 1;
+
+    @Test
+    public void redChangesFastest() throws IOException {
+        LutFilter lutFilter = parse(cube(2, false));
+        int[] strip = lutFilter.getStrip();
+        // Index is green * size * size + blue * size + red
+        assertEquals(0xffff0000, strip[1]);
+        assertEquals(0xff0000ff, strip[2]);
+        assertEquals(0xff00ff00, strip[4]);
+        assertEquals(0xffffffff, strip[7]);
+    }
+
+    @Test
+    public void identityKeepsColorsAndAlpha() throws IOException {
+        LutFilter lutFilter = parse(cube(17, false));
+        int[] pixels = {0xff000000, 0xffffffff, 0x80123456, 0xff7f8081};
+        int[] expected = pixels.clone();
+        lutFilter.apply(pixels, 0, pixels.length);
+        assertClose(expected, pixels);
+    }
+
+    @Test
+    public void skipsCommentsTitleAndOtherKeywords() throws IOException {
+        parse("# graded look\nTITLE \"Look\"\nLUT_3D_INPUT_RANGE 0 1\n\n" + cube(2, false));
+    }
+
+    @Test
+    public void acceptsDefaultDomain() throws IOException {
+        parse("DOMAIN_MIN 0 0 0\nDOMAIN_MAX 1.0 1.0 1.0\n" + cube(2, false));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMissingSize() throws IOException {
+        parse(cube(2, false).replace("LUT_3D_SIZE 2\n", ""));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEmptyFile() throws IOException {
+        parse("# nothing\n");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsShortData() throws IOException {
+        String cube = cube(2, false);
+        parse(cube.substring(0, cube.lastIndexOf('\n', cube.length() - 2) + 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsExtraData() throws IOException {
+        parse(cube(2, false) + "0.5 0.5 0.5\n");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsIncompleteEntry() throws IOException {
+        parse(cube(2, false).replace("1.000000 1.000000 1.000000", "1.000000 1.000000"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNonDefaultDomain() throws IOException {
+        parse("DOMAIN_MAX 2 2 2\n" + cube(2, false));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOneDimensionalTable() throws IOException {
+        parse("LUT_1D_SIZE 2\n0 0 0\n1 1 1\n");
+    }
+
+    @Test
+    public void rejectsUnsupportedSizes() {
+        for (String size : new String[]{"1", "65", "large"}) {
+            try {
+                parse("LUT_3D_SIZE " + size + "\n");
+                fail("Size " + size + " was accepted");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void cpuMatchesTheShader() throws IOException {
+        for (int size : new int[]{2, 17, 33}) {
+            LutFilter lutFilter = parse(cube(size, true));
+            int[] pixels = new int[18 * 18 * 18];
+            int i = 0;
+            for (int red = 0; red < 256; red += 15) {
+                for (int green = 0; green < 256; green += 15) {
+                    for (int blue = 0; blue < 256; blue += 15) {
+                        pixels[i++] = 0xff000000 | (red << 16) | (green << 8) | blue;
+                    }
+                }
+            }
+            int[] expected = ShaderReference.applyLut(pixels, lutFilter);
+            lutFilter.apply(pixels, 0, pixels.length);
+            assertClose(expected, pixels);
+        }
+    }
+
+    private static LutFilter parse(String cube) throws IOException {
+        return LutFilter.fromCube("test", new ByteArrayInputStream(cube.getBytes("UTF-8")));
+    }
+
+    /**
+     * @param curved false for the identity, true for a look which bends and mixes the channels
+     */
+    private static String cube(int size, boolean curved) {
+        StringBuilder cube = new StringBuilder("LUT_3D_SIZE " + size + "\n");
+        for (int blue = 0; blue < size; blue++) {
+            for (int green = 0; green < size; green++) {
+                for (int red = 0; red < size; red++) {
+                    double r = red / (size - 1.0);
+                    double g = green / (size - 1.0);
+                    double b = blue / (size - 1.0);
+                    if (curved) {
+                        double outRed = Math.sqrt(r);
+                        double outGreen = g * g * 0.8 + b * 0.2;
+                        double outBlue = 1 - b * (0.5 + 0.5 * r);
+                        r = outRed;
+                        g = outGreen;
+                        b = outBlue;
+                    }
+                    cube.append(String.format(Locale.US, "%.6f %.6f %.6f\n", r, g, b));
+                }
+            }
+        }
+        return cube.toString();
+    }
+
+    private static void assertClose(int[] expected, int[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                int difference = ((expected[i] >>> shift) & 0xff) - ((actual[i] >>> shift) & 0xff);
+                if (Math.abs(difference) > TOLERANCE) {
+                    fail("Expected " + Integer.toHexString(expected[i]) + " but was " + Integer.toHexString(actual[i]));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package ja.burhanrashid52.photoeditor;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ReplacingFileOutputStreamTest {
+
+    @Test
+    public void abortKeepsTheTarget() throws IOException {
+        File directory = createDirectory();
+        File target = new File(directory, "image.png");
+        write(target, new byte[]{1, 2, 3});
+        ReplacingFileOutputStream out = new ReplacingFileOutputStream(target);
+        out.write(new byte[]{4, 5});
+        out.abort();
+        assertArrayEquals(new byte[]{1, 2, 3}, read(target));
+        assertEquals(1, directory.list().length);
+    }
+
+    @Test
+    public void concurrentSavesToTheSameTargetDontShareTheTemporaryFile() throws IOException {
+        File directory = createDirectory();
+        File target = new File(directory, "image.png");
+        ReplacingFileOutputStream first = new ReplacingFileOutputStream(target);
+        ReplacingFileOutputStream second = new ReplacingFileOutputStream(target);
+        first.write(new byte[]{1, 1, 1});
+        second.write(new byte[]{2, 2});
+        // Aborting one save must not delete what the other one wrote
+        first.abort();
+        second.commit();
+        second.abort();
+        assertArrayEquals(new byte[]{2, 2}, read(target));
+        assertEquals(1, directory.list().length);
+    }
+
+    private static File createDirectory() throws IOException {
+        File directory = File.createTempFile("replacing", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Can't create " + directory);
+        }
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += in.read(bytes, offset, bytes.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,218 @@
+package ja.burhanrashid52.photoeditor;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates the fragment shaders of {@link ShaderFilterRenderer} in double precision, the way the
+ * GPU renders them into an RGBA8 texture with linear filtering and clamp to edge. Every stage is
+ * a pass of its own, so the result is rounded to bytes between the stages. The matrix presets
+ * are read back from the GLSL {@link FilterMatrix#toGlsl()} emits, a {@link LutFilter} is looked
+ * up in its strip texture.
+ */
+class ShaderReference {
+
+    private static final Pattern NUMBER = Pattern.compile("-?\\d+\\.\\d+");
+
+    private ShaderReference() {
+    }
+
+    static int[] apply(int[] pixels, int width, int height, List<PhotoFilter> stages) {
+        int[] result = pixels.clone();
+        for (PhotoFilter filter : stages) {
+            result = applyPass(result, width, height, filter);
+        }
+        return result;
+    }
+
+    /**
+     * Look up the colors in the strip of the look like the LUT snippet, the texture interpolates
+     * red and green and the shader mixes the two nearest blue slices
+     */
+    static int[] applyLut(int[] pixels, LutFilter lutFilter) {
+        int size = lutFilter.getSize();
+        int[] strip = lutFilter.getStrip();
+        double last = size - 1;
+        int[] result = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            int pixel = pixels[i];
+            double[] color = {channel(pixel, 16), channel(pixel, 8), channel(pixel, 0), channel(pixel, 24)};
+            double blue = color[2] * last;
+            double slice = Math.floor(blue);
+            double u = (color[0] * last + 0.5) / (size * size);
+            double v = (color[1] * last + 0.5) / size;
+            double[] low = sample(strip, size * size, size, u + slice / size, v);
+            double[] high = sample(strip, size * size, size, u + Math.min(slice + 1, last) / size, v);
+            for (int c = 0; c < 3; c++) {
+                color[c] = mix(low[c], high[c], blue - slice);
+            }
+            result[i] = toPixel(color);
+        }
+        return result;
+    }
+
+    private static int[] applyPass(int[] src, int width, int height, PhotoFilter filter) {
+        double[] matrix = FilterMatrix.forFilter(filter) != null ? parseGlsl(FilterMatrix.forFilter(filter).toGlsl()) : null;
+        int[] dst = new int[src.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double u = (x + 0.5) / width;
+                double v = (y + 0.5) / height;
+                double[] color;
+                switch (filter) {
+                    case FLIP_HORIZONTAL:
+                        color = sample(src, width, height, 1 - u, v);
+                        break;
+                    case FLIP_VERTICAL:
+                        color = sample(src, width, height, u, 1 - v);
+                        break;
+                    case ROTATE:
+                        color = sample(src, width, height, 1 - u, 1 - v);
+                        break;
+                    case FISH_EYE: {
+                        double scale = mix(1.0, Math.hypot(u - 0.5, v - 0.5) * 1.4142, 0.5);
+                        color = sample(src, width, height, 0.5 + (u - 0.5) * scale, 0.5 + (v - 0.5) * scale);
+                        break;
+                    }
+                    case SHARPEN: {
+                        color = sample(src, width, height, u, v);
+                        double[] right = sample(src, width, height, u + 1.0 / width, v);
+                        double[] left = sample(src, width, height, u - 1.0 / width, v);
+                        double[] down = sample(src, width, height, u, v + 1.0 / height);
+                        double[] up = sample(src, width, height, u, v - 1.0 / height);
+                        for (int c = 0; c < 3; c++) {
+                            double neighbours = right[c] + left[c] + down[c] + up[c];
+                            color[c] = clamp(color[c] + 0.5 * (4.0 * color[c] - neighbours));
+                        }
+                        break;
+                    }
+                    default:
+                        color = sample(src, width, height, u, v);
+                        if (matrix != null) {
+                            color = applyMatrix(matrix, color);
+                        } else {
+                            applyColor(filter, color, u, v, x + 0.5, y + 0.5);
+                        }
+                        break;
+                }
+                dst[y * width + x] = toPixel(color);
+            }
+        }
+        return dst;
+    }
+
+    private static void applyColor(PhotoFilter filter, double[] color, double u, double v,
+                                   double fragX, double fragY) {
+        double luma = 0.299 * color[0] + 0.587 * color[1] + 0.114 * color[2];
+        double distance = Math.hypot(u - 0.5, v - 0.5);
+        for (int c = 0; c < 3; c++) {
+            double value = color[c];
+            switch (filter) {
+                case CROSS_PROCESS:
+                    value = c == 0 ? value * value * (3 - 2 * value)
+                            : c == 1 ? mix(value, value * value * (3 - 2 * value), 0.5)
+                            : value * 0.75 + 0.125;
+                    break;
+                case DOCUMENTARY:
+                    value = mix(luma, value, 0.3) * (1 - 0.5 * smoothstep(0.3, 0.8, distance));
+                    break;
+                case FILL_LIGHT:
+                    value = Math.pow(value, 1 - 0.4 * 0.8 * (1 - luma));
+                    break;
+                case GRAIN: {
+                    double hash = Math.sin(fragX * 12.9898 + fragY * 78.233) * 43758.5453;
+                    value += 0.1 * (hash - Math.floor(hash) - 0.5);
+                    break;
+                }
+                case LOMISH:
+                    value = ((mix(luma, value, 1.4) - 0.5) * 1.2 + 0.5)
+                            * (1 - 0.7 * smoothstep(0.25, 0.75, distance));
+                    break;
+                case POSTERIZE:
+                    value = Math.floor(value * 7 + 0.5) / 7;
+                    break;
+                case VIGNETTE:
+                    value *= 1 - 0.5 * smoothstep(0.3, 0.75, distance);
+                    break;
+                case NONE:
+                    break;
+                default:
+                    throw new IllegalArgumentException("No shader for " + filter);
+            }
+            color[c] = value;
+        }
+    }
+
+    /**
+     * @return the 16 values of the <code>mat4</code>, column by column, and the 4 of the offset
+     */
+    private static double[] parseGlsl(String glsl) {
+        double[] values = new double[20];
+        Matcher matcher = NUMBER.matcher(glsl);
+        for (int i = 0; i < values.length; i++) {
+            if (!matcher.find()) {
+                throw new IllegalArgumentException("Not a matrix: " + glsl);
+            }
+            values[i] = Double.parseDouble(matcher.group());
+        }
+        return values;
+    }
+
+    private static double[] applyMatrix(double[] glsl, double[] color) {
+        double[] result = new double[4];
+        for (int row = 0; row < 4; row++) {
+            double sum = glsl[16 + row];
+            for (int column = 0; column < 4; column++) {
+                sum += glsl[column * 4 + row] * color[column];
+            }
+            result[row] = clamp(sum);
+        }
+        return result;
+    }
+
+    /**
+     * Linear filtering with clamp to edge at the texture coordinate
+     */
+    private static double[] sample(int[] src, int width, int height, double u, double v) {
+        double x = Math.max(0, Math.min(width - 1, u * width - 0.5));
+        double y = Math.max(0, Math.min(height - 1, v * height - 0.5));
+        int x0 = (int) x;
+        int y0 = (int) y;
+        int x1 = Math.min(width - 1, x0 + 1);
+        int y1 = Math.min(height - 1, y0 + 1);
+        double[] color = new double[4];
+        int[] shifts = {16, 8, 0, 24};
+        for (int c = 0; c < 4; c++) {
+            double top = mix(channel(src[y0 * width + x0], shifts[c]), channel(src[y0 * width + x1], shifts[c]), x - x0);
+            double bottom = mix(channel(src[y1 * width + x0], shifts[c]), channel(src[y1 * width + x1], shifts[c]), x - x0);
+            color[c] = mix(top, bottom, y - y0);
+        }
+        return color;
+    }
+
+    private static double channel(int pixel, int shift) {
+        return ((pixel >>> shift) & 0xff) / 255.0;
+    }
+
+    private static int toPixel(double[] color) {
+        return (toByte(color[3]) << 24) | (toByte(color[0]) << 16) | (toByte(color[1]) << 8) | toByte(color[2]);
+    }
+
+    private static int toByte(double value) {
+        return (int) Math.round(clamp(value) * 255);
+    }
+
+    private static double clamp(double value) {
+        return Math.max(0, Math.min(1, value));
+    }
+
+    private static double mix(double from, double to, double amount) {
+        return from + (to - from) * amount;
+    }
+
+    private static double smoothstep(double edge0, double edge1, double x) {
+        double t = clamp((x - edge0) / (edge1 - edge0));
+        return t * t * (3 - 2 * t);
+    }
+}
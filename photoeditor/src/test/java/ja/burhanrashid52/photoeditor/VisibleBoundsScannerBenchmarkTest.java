@@ -0,0 +1,114 @@
+package ja.burhanrashid52.photoeditor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares {@link VisibleBoundsScanner} with the scan it replaced, which copied the whole frame
+ * and walked it column by column, on 4K and 8K frames with transparent edges.
+ * <p>
+ * <b>Note :</b> The timings depend on the machine, so the benchmarks only run when the
+ * <code>benchmark</code> project property is set, e.g. <code>./gradlew test -Pbenchmark</code>
+ * </p>
+ */
+public class VisibleBoundsScannerBenchmarkTest {
+
+    private static final String BENCHMARK_PROPERTY = "photoeditor.benchmark";
+    private static final int ROUNDS = 5;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+    }
+
+    @Test
+    public void benchmark4k() {
+        benchmark("4K", 3840, 2160);
+    }
+
+    @Test
+    public void benchmark8k() {
+        benchmark("8K", 7680, 4320);
+    }
+
+    private static void benchmark(String name, int width, int height) {
+        // A sticker in the middle with wide transparent margins, the common case of a crop
+        IntArrayRowSource source = new IntArrayRowSource(width, height)
+                .fill(width / 4, height / 5, width * 3 / 4, height * 4 / 5);
+        int processors = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(processors);
+        try {
+            int[] expected = scanColumnMajor(source);
+            assertArrayEquals(expected, VisibleBoundsScanner.findBounds(source, executor, processors));
+            long columnMajor = Long.MAX_VALUE;
+            long strips = Long.MAX_VALUE;
+            for (int i = 0; i < ROUNDS; i++) {
+                long start = System.nanoTime();
+                scanColumnMajor(source);
+                columnMajor = Math.min(columnMajor, System.nanoTime() - start);
+                start = System.nanoTime();
+                VisibleBoundsScanner.findBounds(source, executor, processors);
+                strips = Math.min(strips, System.nanoTime() - start);
+            }
+            assertTrue(String.format("%s: column major %.1f ms, strips %.1f ms",
+                    name, columnMajor / 1e6, strips / 1e6), strips < columnMajor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The previous implementation: a full frame copy and four column or row scans over it
+     */
+    private static int[] scanColumnMajor(IntArrayRowSource source) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int[] pixels = new int[width * height];
+        source.readRows(pixels, 0, height);
+        int firstX = 0, firstY = 0, lastX = width - 1, lastY = height - 1;
+        loop:
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                if (pixels[x + y * width] != 0) {
+                    firstX = x;
+                    break loop;
+                }
+            }
+        }
+        loop:
+        for (int y = 0; y < height; y++) {
+            for (int x = firstX; x < width; x++) {
+                if (pixels[x + y * width] != 0) {
+                    firstY = y;
+                    break loop;
+                }
+            }
+        }
+        loop:
+        for (int x = width - 1; x >= firstX; x--) {
+            for (int y = height - 1; y >= firstY; y--) {
+                if (pixels[x + y * width] != 0) {
+                    lastX = x;
+                    break loop;
+                }
+            }
+        }
+        loop:
+        for (int y = height - 1; y >= firstY; y--) {
+            for (int x = width - 1; x >= firstX; x--) {
+                if (pixels[x + y * width] != 0) {
+                    lastY = y;
+                    break loop;
+                }
+            }
+        }
+        return new int[]{firstX, firstY, lastX, lastY};
+    }
+}
@@ -0,0 +1,54 @@
+package ja.burhanrashid52.photoeditor;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class VisibleBoundsScannerTest {
+
+    @Test
+    public void transparentFrameHasNoBounds() {
+        assertNull(VisibleBoundsScanner.findBounds(new IntArrayRowSource(40, 30), null, 1));
+    }
+
+    @Test
+    public void findsSinglePixel() {
+        IntArrayRowSource source = new IntArrayRowSource(40, 30).fill(7, 11, 8, 12);
+        assertArrayEquals(new int[]{7, 11, 7, 11}, VisibleBoundsScanner.findBounds(source, null, 1));
+    }
+
+    @Test
+    public void opaqueFrameKeepsEveryEdge() {
+        IntArrayRowSource source = new IntArrayRowSource(40, 30).fill(0, 0, 40, 30);
+        assertArrayEquals(new int[]{0, 0, 39, 29}, VisibleBoundsScanner.findBounds(source, null, 1));
+    }
+
+    @Test
+    public void widerThanHighFrameScansEveryColumn() {
+        // The column scan was once bounded by the height
+        IntArrayRowSource source = new IntArrayRowSource(300, 20).fill(250, 5, 290, 6);
+        assertArrayEquals(new int[]{250, 5, 289, 5}, VisibleBoundsScanner.findBounds(source, null, 1));
+    }
+
+    @Test
+    public void bandsFindTheSameBounds() {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            // Each edge is moved by a different band
+            IntArrayRowSource source = new IntArrayRowSource(200, 1000)
+                    .fill(100, 3, 101, 4)
+                    .fill(20, 300, 30, 310)
+                    .fill(150, 600, 180, 620)
+                    .fill(50, 990, 51, 991);
+            int[] expected = {20, 3, 179, 990};
+            assertArrayEquals(expected, VisibleBoundsScanner.findBounds(source, null, 1));
+            assertArrayEquals(expected, VisibleBoundsScanner.findBounds(source, executor, 4));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}